@@ -22,9 +22,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.lang3.StringUtils;
@@ -32,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.SearchResultBatch;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
 
@@ -45,14 +44,12 @@ public class ExportToCSVQueryTask extends JointQueryTask {
     private List<String> tagsOrder;
     // private OutputStream outputStream;
     private PrintWriter writter;
-    private CountDownLatch latch;
 
     private int nLines = 0;
 
     public ExportToCSVQueryTask(List<String> tagsOrder, OutputStream outputStream) {
         super();
         this.tagsOrder = tagsOrder;
-        this.latch = new CountDownLatch(1);
         writter = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
 
         printFirstLine();
@@ -63,16 +60,19 @@ public class ExportToCSVQueryTask extends JointQueryTask {
         log.debug("ExportToCSV task: completed");
         writter.flush();
         writter.close();
-        latch.countDown();
 
         log.info("Exported CSV Table: ", tagsOrder.toString(), nLines);
     }
 
     @Override
-    public void onReceive(Task<Iterable<SearchResult>> e) {
+    public synchronized void onReceive(Task<Iterable<SearchResult>> e) {
         log.debug("ExportToCSV task: Received results");
         try {
             Iterable<SearchResult> it = e.get();
+            if (it instanceof SearchResultBatch) {
+                printLines((SearchResultBatch) it);
+                return;
+            }
             for (SearchResult result : it) {
                 printLine(result);
             }
@@ -101,19 +101,8 @@ public class ExportToCSVQueryTask extends JointQueryTask {
     private void printLine(SearchResult result) {
         StringBuilder builder = new StringBuilder();
 
-        HashMap<String, Object> extraFields = result.getExtraData();
-
         for (String tag : tagsOrder) {
-            Object temp1 = extraFields.get(tag);
-
-            final String s = (temp1 != null) ? temp1.toString().trim() : "";
-
-            if (s.length() > 0) {
-                String temp = StringUtils.replaceEach(s, searchChars, replaceChars);
-                builder.append('\"').append(temp).append("\";");
-            } else {
-                builder.append(";");
-            }
+            appendValue(builder, result.get(tag));
         }
 
         log.trace("Printing Line: ", builder.toString());
@@ -121,11 +110,43 @@ public class ExportToCSVQueryTask extends JointQueryTask {
         this.writter.println(builder.toString());
     }
 
+    /** Print the lines of a batch of results, reading its columns directly. */
+    private void printLines(SearchResultBatch batch) {
+        int[] columns = new int[tagsOrder.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = batch.fieldIndex(tagsOrder.get(i));
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int row = 0; row < batch.size(); row++) {
+            builder.setLength(0);
+            for (int column : columns) {
+                appendValue(builder, column < 0 ? null : batch.get(row, column));
+            }
+            nLines++;
+            this.writter.println(builder);
+        }
+    }
+
+    private static void appendValue(StringBuilder builder, Object value) {
+        final String s = (value != null) ? value.toString().trim() : "";
+
+        if (s.length() > 0) {
+            String temp = StringUtils.replaceEach(s, searchChars, replaceChars);
+            builder.append('\"').append(temp).append("\";");
+        } else {
+            builder.append(";");
+        }
+    }
+
     public void await() {
         try {
-            latch.await();
+            getCompletion().get();
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for the CSV export", e);
+        } catch (ExecutionException e) {
+            log.warn("CSV export failed", e.getCause());
         }
     }
 
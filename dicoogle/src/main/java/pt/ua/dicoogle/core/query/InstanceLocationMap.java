@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/** A least recently used map from DICOM UIDs to URIs, of fixed capacity.
+ *
+ * Keys are kept as 64-bit hashes in an open addressing table, with the UIDs themselves packed
+ * at four bits per character to tell apart the rare UIDs of equal hash.
+ * The entries are linked in recency order through arrays of indices, so that no objects are created
+ * per entry besides the packed UID and the URI.
+ *
+ * Only UIDs made of digits and dots, of up to 64 characters, are accepted.
+ * All methods are synchronized.
+ */
+final class InstanceLocationMap {
+
+    private static final int NIL = -1;
+    private static final int MAX_UID_LENGTH = 64;
+
+    private final int capacity;
+    private final long[] hashes;
+    private final byte[][] uids;
+    private final URI[] uris;
+    /** recency list, from the most recently used (head) to the least (tail); next also links the free entries */
+    private final int[] prev;
+    private final int[] next;
+    /** hash table of entry indices plus one, 0 for an empty slot */
+    private final int[] table;
+    private final int mask;
+
+    private int head = NIL;
+    private int tail = NIL;
+    private int free = NIL;
+    private int allocated = 0;
+    private int size = 0;
+
+    InstanceLocationMap(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.hashes = new long[capacity];
+        this.uids = new byte[capacity][];
+        this.uris = new URI[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+        int tableSize = Integer.highestOneBit(Math.max(capacity * 2 - 1, 1)) << 1;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /** Pack a UID at four bits per character, or return null if it is not a valid UID. */
+    static byte[] pack(String uid) {
+        int n = uid.length();
+        if (n == 0 || n > MAX_UID_LENGTH) {
+            return null;
+        }
+        byte[] packed = new byte[(n + 1) / 2];
+        for (int i = 0; i < n; i++) {
+            char c = uid.charAt(i);
+            int v;
+            if (c >= '0' && c <= '9') {
+                v = c - '0' + 1;
+            } else if (c == '.') {
+                v = 11;
+            } else {
+                return null;
+            }
+            packed[i >> 1] |= (i & 1) == 0 ? v << 4 : v;
+        }
+        return packed;
+    }
+
+    private static long hash(byte[] packed) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (byte b : packed) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private int slotOf(long hash) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /** @return the slot of the table holding the entry, or the negated empty slot where it would go, minus one */
+    private int find(long hash, byte[] packed) {
+        int slot = slotOf(hash);
+        while (true) {
+            int e = table[slot] - 1;
+            if (e < 0) {
+                return -slot - 1;
+            }
+            if (hashes[e] == hash && Arrays.equals(uids[e], packed)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    synchronized URI get(String uid) {
+        byte[] packed = pack(uid);
+        if (packed == null) {
+            return null;
+        }
+        int slot = find(hash(packed), packed);
+        if (slot < 0) {
+            return null;
+        }
+        int e = table[slot] - 1;
+        moveToHead(e);
+        return uris[e];
+    }
+
+    /** Map a UID to a URI.
+     *
+     * @return whether the UID was valid, and so kept
+     */
+    synchronized boolean put(String uid, URI uri) {
+        byte[] packed = pack(uid);
+        if (packed == null || uri == null) {
+            return false;
+        }
+        long hash = hash(packed);
+        int slot = find(hash, packed);
+        if (slot >= 0) {
+            int e = table[slot] - 1;
+            uris[e] = uri;
+            moveToHead(e);
+            return true;
+        }
+        if (size == capacity) {
+            removeEntry(tail);
+            // the table may have changed
+            slot = find(hash, packed);
+        }
+        int e = allocate();
+        hashes[e] = hash;
+        uids[e] = packed;
+        uris[e] = uri;
+        table[-slot - 1] = e + 1;
+        linkHead(e);
+        size++;
+        return true;
+    }
+
+    synchronized boolean remove(String uid) {
+        byte[] packed = pack(uid);
+        if (packed == null) {
+            return false;
+        }
+        int slot = find(hash(packed), packed);
+        if (slot < 0) {
+            return false;
+        }
+        removeEntry(table[slot] - 1);
+        return true;
+    }
+
+    /** Remove all entries whose URI satisfies a predicate.
+     *
+     * @return the number of entries removed
+     */
+    synchronized int removeIf(Predicate<URI> predicate) {
+        int count = 0;
+        for (int e = head; e != NIL;) {
+            int n = next[e];
+            if (predicate.test(uris[e])) {
+                removeEntry(e);
+                count++;
+            }
+            e = n;
+        }
+        return count;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(uids, null);
+        Arrays.fill(uris, null);
+        head = tail = free = NIL;
+        allocated = 0;
+        size = 0;
+    }
+
+    private int allocate() {
+        if (free != NIL) {
+            int e = free;
+            free = next[e];
+            return e;
+        }
+        return allocated++;
+    }
+
+    private void removeEntry(int e) {
+        int slot = find(hashes[e], uids[e]);
+        deleteSlot(slot);
+        unlink(e);
+        uids[e] = null;
+        uris[e] = null;
+        next[e] = free;
+        free = e;
+        size--;
+    }
+
+    /** Empty a slot of the table, shifting back the entries which probed past it. */
+    private void deleteSlot(int slot) {
+        int i = slot;
+        table[i] = 0;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0) {
+                return;
+            }
+            int k = slotOf(hashes[table[j] - 1]);
+            // move the entry at j to i unless its home slot k lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private void linkHead(int e) {
+        prev[e] = NIL;
+        next[e] = head;
+        if (head != NIL) {
+            prev[head] = e;
+        }
+        head = e;
+        if (tail == NIL) {
+            tail = e;
+        }
+    }
+
+    private void unlink(int e) {
+        if (prev[e] != NIL) {
+            next[prev[e]] = next[e];
+        } else {
+            head = next[e];
+        }
+        if (next[e] != NIL) {
+            prev[next[e]] = prev[e];
+        } else {
+            tail = prev[e];
+        }
+    }
+
+    private void moveToHead(int e) {
+        if (head != e) {
+            unlink(e);
+            linkHead(e);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.core.settings.ServerSettingsManager;
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.JointQueryTask;
+import pt.ua.dicoogle.sdk.task.Task;
+
+/**
+ * Resolves SOP Instance UIDs to the URIs of their files, for all retrieval paths
+ * (image rendering, downloads, WADO, whole slide imaging).
+ *
+ * Resolved locations are kept in a bounded least recently used map, which is also filled
+ * from the results of queries which include the SOPInstanceUID field and from newly stored instances.
+ * When an instance has to be looked up, the remaining instances of its series are looked up
+ * in the background with a single query, since viewers tend to request them next.
+ *
+ * Locations are not tied to the providers which found them: a SOP Instance UID identifies one instance,
+ * no matter which provider indexes it.
+ * They are invalidated when their files are unindexed or removed.
+ */
+public class InstanceURIResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanceURIResolver.class);
+
+    private static final int CAPACITY = Integer.parseInt(System.getProperty("dicoogle.uidResolver.capacity", "262144"));
+    private static final boolean PREFETCH_SERIES =
+            Boolean.parseBoolean(System.getProperty("dicoogle.uidResolver.prefetchSeries", "true"));
+    /** the number of series recently prefetched, which are not fetched again */
+    private static final int PREFETCHED_SERIES_MEMORY = 256;
+
+    private static InstanceURIResolver instance;
+
+    public static synchronized InstanceURIResolver getInstance() {
+        if (instance == null) {
+            instance = new InstanceURIResolver(CAPACITY);
+        }
+        return instance;
+    }
+
+    private final InstanceLocationMap locations;
+    private final Set<String> prefetchedSeries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    InstanceURIResolver(int capacity) {
+        this.locations = new InstanceLocationMap(capacity);
+        this.prefetchedSeries = Collections.synchronizedSet(Collections
+                .newSetFromMap(new LinkedHashMap<String, Boolean>(PREFETCHED_SERIES_MEMORY * 2, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                        return size() > PREFETCHED_SERIES_MEMORY;
+                    }
+                }));
+    }
+
+    /** Resolve a SOP Instance UID, querying the DIM providers of the archive if needed.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @return the URI of the instance, or null if no provider has it
+     */
+    public URI resolve(String sopInstanceUID) {
+        return resolve(sopInstanceUID, null);
+    }
+
+    /** Resolve a SOP Instance UID, querying the given providers if needed.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @param providers the query providers to look up the instance,
+     *        or null for the DIM providers of the archive
+     * @return the URI of the instance, or null if no provider has it
+     */
+    public URI resolve(String sopInstanceUID, List<String> providers) {
+        if (sopInstanceUID == null) {
+            return null;
+        }
+        String sop = sopInstanceUID.trim();
+        URI uri = locations.get(sop);
+        if (uri != null) {
+            hits.incrementAndGet();
+            return uri;
+        }
+        misses.incrementAndGet();
+
+        providers = providersOrDefault(providers);
+        PluginController pc = PluginController.getInstance();
+        SearchResult res;
+        // the SOP instance UID is unique, stop at the first provider which has it
+        try (JointQueryTask.ResultStream it =
+                pc.query(emptyHolder(), providers, "SOPInstanceUID:\"" + sop + '"', fields()).stream(1)) {
+            if (!it.hasNext()) {
+                return null;
+            }
+            res = it.next();
+        }
+        locations.put(sop, res.getURI());
+
+        Object series = res.get("SeriesInstanceUID");
+        if (PREFETCH_SERIES && series != null) {
+            prefetchSeries(series.toString().trim(), providers);
+        }
+        return res.getURI();
+    }
+
+    /** Resolve all instances of a series with a single query, keeping their locations.
+     *
+     * @param seriesInstanceUID the Series Instance UID
+     * @param providers the query providers to look up the series, or null for the DIM providers of the archive
+     * @return the URIs of the instances of the series, by SOP Instance UID
+     */
+    public Map<String, URI> resolveSeries(String seriesInstanceUID, List<String> providers) {
+        Map<String, URI> out = new LinkedHashMap<>();
+        if (seriesInstanceUID == null) {
+            return out;
+        }
+        PluginController pc = PluginController.getInstance();
+        JointQueryTask task = pc.query(emptyHolder(), providersOrDefault(providers),
+                "SeriesInstanceUID:\"" + seriesInstanceUID.trim() + '"', fields());
+        try (JointQueryTask.ResultStream it = task.stream()) {
+            while (it.hasNext()) {
+                SearchResult r = it.next();
+                Object sop = r.get("SOPInstanceUID");
+                if (sop != null && !out.containsKey(sop.toString().trim())) {
+                    out.put(sop.toString().trim(), r.getURI());
+                }
+            }
+        }
+        for (Map.Entry<String, URI> e : out.entrySet()) {
+            locations.put(e.getKey(), e.getValue());
+        }
+        return out;
+    }
+
+    private void prefetchSeries(String seriesInstanceUID, List<String> providers) {
+        if (!prefetchedSeries.add(seriesInstanceUID)) {
+            return;
+        }
+        PluginController pc = PluginController.getInstance();
+        String query = "SeriesInstanceUID:\"" + seriesInstanceUID + '"';
+        for (String provider : providers) {
+            Task<Iterable<SearchResult>> t = pc.query(provider, query, fields());
+            if (t == null) {
+                continue;
+            }
+            t.onCompletion(() -> {
+                try {
+                    fill(t.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | RuntimeException e) {
+                    logger.debug("Could not prefetch the locations of series {}", seriesInstanceUID, e);
+                }
+            });
+        }
+    }
+
+    /** Keep the locations of the instances in the given results, if they carry the SOPInstanceUID field. */
+    public void fill(Iterable<SearchResult> results) {
+        if (results == null) {
+            return;
+        }
+        for (SearchResult r : results) {
+            fill(r);
+        }
+    }
+
+    /** Keep the location of the instance of a result, if it carries the SOPInstanceUID field. */
+    public void fill(SearchResult result) {
+        Object sop = result.get("SOPInstanceUID");
+        if (sop != null) {
+            locations.put(sop.toString().trim(), result.getURI());
+        }
+    }
+
+    /** Keep the location of an instance. */
+    public void put(String sopInstanceUID, URI uri) {
+        if (sopInstanceUID != null) {
+            locations.put(sopInstanceUID.trim(), uri);
+        }
+    }
+
+    /** Forget the locations of the given files, or of files in the given directories.
+     *
+     * @param uris the files or directories unindexed or removed
+     */
+    public void invalidate(Collection<URI> uris) {
+        Set<String> removed = new HashSet<>(uris.size() * 2);
+        List<String> prefixes = new ArrayList<>(uris.size());
+        for (URI u : uris) {
+            String s = u.toString();
+            removed.add(s);
+            prefixes.add(s.endsWith("/") ? s : s + '/');
+        }
+        int count = locations.removeIf(u -> {
+            String s = u.toString();
+            if (removed.contains(s)) {
+                return true;
+            }
+            for (String p : prefixes) {
+                if (s.startsWith(p)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+        prefetchedSeries.clear();
+        logger.debug("Forgot the locations of {} instances after removing {} items", count, uris.size());
+    }
+
+    /** Forget all locations. */
+    public void clear() {
+        locations.clear();
+        prefetchedSeries.clear();
+    }
+
+    public int getSize() {
+        return locations.size();
+    }
+
+    public int getCapacity() {
+        return locations.capacity();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static HashMap<String, String> fields() {
+        HashMap<String, String> fields = new HashMap<>();
+        fields.put("SOPInstanceUID", "SOPInstanceUID");
+        fields.put("SeriesInstanceUID", "SeriesInstanceUID");
+        return fields;
+    }
+
+    private static JointQueryTask emptyHolder() {
+        return new JointQueryTask() {
+            @Override
+            public void onCompletion() {}
+
+            @Override
+            public void onReceive(Task<Iterable<SearchResult>> e) {}
+        };
+    }
+
+    /** @return the given providers, or the DIM providers of the archive if null */
+    private static List<String> providersOrDefault(List<String> providers) {
+        if (providers != null) {
+            return providers;
+        }
+        PluginController pc = PluginController.getInstance();
+        // use only DIM sources
+        providers = ServerSettingsManager.getSettings().getArchiveSettings().getDIMProviders();
+        if (providers == null) {
+            // fallback to all query providers
+            return pc.getQueryProvidersName(true);
+        }
+        // exclude unknown query providers
+        providers = new ArrayList<>(providers);
+        providers.removeIf(pName -> pc.getQueryProviderByName(pName, true) == null);
+        if (providers.isEmpty()) {
+            // fallback to all query providers
+            return pc.getQueryProvidersName(true);
+        }
+        return providers;
+    }
+}
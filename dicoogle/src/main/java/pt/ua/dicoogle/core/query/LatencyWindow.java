@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.util.Arrays;
+
+/**
+ * The most recent latencies of a query provider, from which percentiles are taken.
+ */
+final class LatencyWindow {
+
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    /** Record a latency, replacing the oldest one if the window is full. */
+    synchronized void add(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    synchronized int count() {
+        return count;
+    }
+
+    /** @return the latency below which the given percentage of the recorded ones fall, or -1 if none */
+    synchronized long percentile(double percent) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(percent / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, i))];
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.QueryHints;
+import pt.ua.dicoogle.sdk.datastructs.ResultPage;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.sdk.utils.QueryException;
+
+/**
+ * A query over several providers which obtains a single page of results,
+ * going through the providers one after the other, in the order given.
+ *
+ * Providers supporting pagination only produce the page requested,
+ * the others are paginated by {@link PluginController#queryPage}.
+ * The position after a page is given as an opaque cursor, which carries either
+ * the cursor of the provider itself or the number of results already taken from it.
+ */
+public class PagedQuery {
+
+    private static final Logger logger = LoggerFactory.getLogger(PagedQuery.class);
+
+    /** The outcome of a paged query. */
+    public static final class Page {
+        private final List<SearchResult> results;
+        private final long totalCount;
+        private final String nextCursor;
+
+        Page(List<SearchResult> results, long totalCount, String nextCursor) {
+            this.results = results;
+            this.totalCount = totalCount;
+            this.nextCursor = nextCursor;
+        }
+
+        /** @return the results in this page */
+        public List<SearchResult> getResults() {
+            return results;
+        }
+
+        /** @return the total number of results across all providers, or -1 if it was not requested */
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        /** @return the cursor to the next page, or null if there are no more results */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /** The position within the results of a paged query. */
+    private static final class Position {
+        final int provider;
+        final long offset;
+        final String token;
+
+        Position(int provider, long offset, String token) {
+            this.provider = provider;
+            this.offset = offset;
+            this.token = token;
+        }
+    }
+
+    private final List<String> providers;
+    private final String query;
+    private final Object[] parameters;
+    private final List<QueryHints.SortField> sort;
+    private boolean includeTotal = true;
+
+    /**
+     * @param providers the names of the query providers, in the order in which they are to be paged through
+     * @param query the query string
+     * @param sort the fields to sort the results of each provider by, honoured only by pageable providers
+     * @param parameters the query parameters
+     */
+    public PagedQuery(List<String> providers, String query, List<QueryHints.SortField> sort, Object... parameters) {
+        this.providers = providers;
+        this.query = query;
+        this.sort = sort;
+        this.parameters = parameters;
+    }
+
+    /** @param includeTotal whether to obtain the total number of results along with the page */
+    public PagedQuery setIncludeTotal(boolean includeTotal) {
+        this.includeTotal = includeTotal;
+        return this;
+    }
+
+    /** Obtain a page of results.
+     *
+     * @param cursor a cursor returned with the previous page, or null to start from the offset
+     * @param offset the number of results to skip from the beginning, when no cursor is given
+     * @param limit the maximum number of results in the page, or a negative number for no limit
+     * @return the page
+     * @throws IllegalArgumentException if the cursor is not valid for these providers
+     * @throws QueryException if a provider could not perform the query
+     * @throws InterruptedException if interrupted while waiting for the providers
+     */
+    public Page execute(String cursor, long offset, int limit) throws InterruptedException {
+        PluginController pc = PluginController.getInstance();
+        Position start = cursor != null ? decode(cursor) : new Position(0, 0, null);
+        long skip = cursor != null ? 0 : offset;
+
+        List<Task<ResultPage>> counts = new ArrayList<>();
+        if (includeTotal) {
+            // providers paged through before have to be counted separately
+            for (int i = 0; i < start.provider; i++) {
+                counts.add(pc.queryPage(providers.get(i), query, countOnly(), parameters));
+            }
+        }
+
+        List<SearchResult> results = new ArrayList<>(limit >= 0 ? Math.min(limit, 1024) : 64);
+        long total = 0;
+        String nextCursor = null;
+        int i = start.provider;
+        for (; i < providers.size(); i++) {
+            boolean first = i == start.provider;
+            long from = first ? start.offset + skip : skip;
+            int want = limit < 0 ? -1 : limit - results.size();
+            QueryHints.Builder hints = QueryHints.builder().limit(want).includeTotal(includeTotal || skip > 0);
+            for (QueryHints.SortField f : sort) {
+                hints.sortBy(f.getField(), f.isDescending());
+            }
+            if (first && start.token != null) {
+                hints.searchAfter(start.token);
+            } else {
+                hints.offset((int) Math.min(from, Integer.MAX_VALUE));
+            }
+
+            ResultPage page = get(pc.queryPage(providers.get(i), query, hints.build(), parameters));
+            int taken = 0;
+            for (SearchResult r : page.getResults()) {
+                if (want >= 0 && taken >= want) {
+                    break;
+                }
+                results.add(r);
+                taken++;
+            }
+            long providerTotal = page.getTotalCount();
+            if (providerTotal >= 0) {
+                total += providerTotal;
+                // whatever is left to skip carries over to the next provider
+                skip = Math.max(0, from - providerTotal);
+            } else {
+                skip = 0;
+            }
+
+            if (want >= 0 && taken >= want) {
+                // the page is full, so this is where the next one starts
+                boolean exhausted;
+                if (page.getNextCursor() != null) {
+                    nextCursor = encode(new Position(i, 0, page.getNextCursor()));
+                    exhausted = false;
+                } else if (first && start.token != null) {
+                    exhausted = true;
+                } else {
+                    exhausted = providerTotal >= 0 && from + taken >= providerTotal;
+                    if (!exhausted) {
+                        nextCursor = encode(new Position(i, from + taken, null));
+                    }
+                }
+                i++;
+                if (exhausted && i < providers.size()) {
+                    nextCursor = encode(new Position(i, 0, null));
+                }
+                break;
+            }
+        }
+
+        if (includeTotal) {
+            for (; i < providers.size(); i++) {
+                counts.add(pc.queryPage(providers.get(i), query, countOnly(), parameters));
+            }
+            for (Task<ResultPage> t : counts) {
+                total += Math.max(0, get(t).getTotalCount());
+            }
+        }
+        return new Page(results, includeTotal ? total : -1, nextCursor);
+    }
+
+    private static QueryHints countOnly() {
+        return QueryHints.builder().countOnly(true).build();
+    }
+
+    private static ResultPage get(Task<ResultPage> task) throws InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof QueryException) {
+                throw (QueryException) cause;
+            }
+            logger.warn("Query plugin {} failed unexpectedly", task.getName(), cause);
+            return ResultPage.countOnly(0);
+        } catch (CancellationException ex) {
+            logger.warn("Query plugin {} did not answer in time, its results are left out", task.getName());
+            return ResultPage.countOnly(0);
+        }
+    }
+
+    private String encode(Position p) {
+        String value = p.token != null ? "t:" + p.token : "o:" + p.offset;
+        String raw = providers.get(p.provider) + '\n' + value;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Position decode(String cursor) {
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        int sep = raw.indexOf('\n');
+        if (sep < 0 || raw.length() < sep + 3 || raw.charAt(sep + 2) != ':') {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        int provider = providers.indexOf(raw.substring(0, sep));
+        if (provider < 0) {
+            throw new IllegalArgumentException("Cursor does not belong to the providers of this query");
+        }
+        String value = raw.substring(sep + 3);
+        switch (raw.charAt(sep + 1)) {
+            case 't':
+                return new Position(provider, 0, value);
+            case 'o':
+                try {
+                    long offset = Long.parseLong(value);
+                    if (offset < 0) {
+                        throw new NumberFormatException();
+                    }
+                    return new Position(provider, offset, null);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid cursor");
+                }
+            default:
+                throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.taskManager.TaskManager;
+
+/**
+ * Dispatches query provider tasks, so that no provider can hold a request, or a query thread, forever.
+ *
+ * Each provider task is given a deadline, after which it is cancelled as timed out,
+ * so that callers waiting for it get partial results instead of blocking.
+ *
+ * A provider may also have a replica, another provider with the same content.
+ * When a query to the provider takes longer than most of its recent queries
+ * (a latency percentile), or fails, the same query is also sent to the replica,
+ * and the results of whichever finishes first are taken.
+ */
+public class QueryDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryDispatcher.class);
+
+    /** the number of recent latencies kept per provider */
+    private static final int LATENCY_WINDOW = 128;
+    /** the number of latencies needed before queries to a provider are hedged */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final TaskManager executor;
+    private final Predicate<String> available;
+    private final long providerTimeout;
+    private final double hedgePercentile;
+    private final Map<String, String> replicas;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    /** Create a dispatcher configured by the system properties
+     * <tt>dicoogle.query.providerTimeout</tt> (milliseconds, 0 for none),
+     * <tt>dicoogle.query.replicas</tt> (a list of <tt>provider=replica</tt> pairs separated by commas)
+     * and <tt>dicoogle.query.hedgePercentile</tt>.
+     *
+     * @param executor the executor of the provider tasks
+     * @param available whether a provider is enabled, so that it can be sent hedged queries
+     * @return a new dispatcher
+     */
+    public static QueryDispatcher create(TaskManager executor, Predicate<String> available) {
+        long providerTimeout = Long.parseLong(System.getProperty("dicoogle.query.providerTimeout", "120000"));
+        double hedgePercentile = Double.parseDouble(System.getProperty("dicoogle.query.hedgePercentile", "95"));
+        return new QueryDispatcher(executor, available, providerTimeout, hedgePercentile,
+                parseReplicas(System.getProperty("dicoogle.query.replicas", "")));
+    }
+
+    /**
+     * @param executor the executor of the provider tasks
+     * @param available whether a provider is enabled, so that it can be sent hedged queries
+     * @param providerTimeout the deadline of each provider task in milliseconds, 0 or less for none
+     * @param hedgePercentile the percentile of the latency of a provider after which the replica is queried
+     * @param replicas the replica of each provider which has one
+     */
+    QueryDispatcher(TaskManager executor, Predicate<String> available, long providerTimeout, double hedgePercentile,
+            Map<String, String> replicas) {
+        this.executor = executor;
+        this.available = available;
+        this.providerTimeout = providerTimeout;
+        this.hedgePercentile = hedgePercentile;
+        this.replicas = Collections.unmodifiableMap(new HashMap<>(replicas));
+        this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "query-deadlines");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    static Map<String, String> parseReplicas(String spec) {
+        Map<String, String> replicas = new HashMap<>();
+        for (String pair : spec.split(",")) {
+            int sep = pair.indexOf('=');
+            if (sep > 0 && sep < pair.length() - 1) {
+                replicas.put(pair.substring(0, sep).trim(), pair.substring(sep + 1).trim());
+            } else if (!pair.trim().isEmpty()) {
+                logger.warn("Ignoring invalid query replica \"{}\", expected provider=replica", pair);
+            }
+        }
+        return replicas;
+    }
+
+    /** Prepare the query task of a provider, which may be hedged with its replica.
+     * The task must then be started with {@link #dispatchQuery(Task)}.
+     *
+     * @param provider the name of the query provider
+     * @param tasks creates the query task for a given provider, which is not dispatched
+     * @return the task to obtain the results of the query
+     */
+    public Task<Iterable<SearchResult>> prepareQuery(String provider,
+            Function<String, Task<Iterable<SearchResult>>> tasks) {
+        Task<Iterable<SearchResult>> primary = tasks.apply(provider);
+        String replica = replicas.get(provider);
+        if (replica == null || primary.isDone()) {
+            return primary;
+        }
+        return new HedgedQueryTask(primary, replica, tasks);
+    }
+
+    /** Start a task from {@link #prepareQuery}, unless it is already done,
+     * recording the latency of the provider.
+     */
+    public void dispatchQuery(Task<Iterable<SearchResult>> task) {
+        if (task.isDone()) {
+            return;
+        }
+        if (task instanceof HedgedQueryTask) {
+            ((HedgedQueryTask) task).start();
+            return;
+        }
+        runQuery(task);
+        expireAfterTimeout(task);
+    }
+
+    /** Start any other provider task, with the deadline of providers. */
+    public void dispatch(Task<?> task) {
+        executor.dispatch(task);
+        expireAfterTimeout(task);
+    }
+
+    /** @return the number of queries sent to a replica so far */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    private void runQuery(Task<Iterable<SearchResult>> task) {
+        long start = System.nanoTime();
+        task.onCompletion(() -> {
+            if (succeeded(task)) {
+                latencies.computeIfAbsent(task.getName(), k -> new LatencyWindow(LATENCY_WINDOW))
+                        .add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        });
+        executor.dispatch(task);
+    }
+
+    private void expireAfterTimeout(Task<?> task) {
+        if (providerTimeout <= 0 || task.isDone()) {
+            return;
+        }
+        ScheduledFuture<?> expiry = timer.schedule(() -> {
+            if (task.cancelOnTimeout()) {
+                logger.warn("Query provider {} did not finish within {} ms, its results are left out", task.getName(),
+                        providerTimeout);
+            }
+        }, providerTimeout, TimeUnit.MILLISECONDS);
+        task.onCompletion(() -> expiry.cancel(false));
+    }
+
+    /** @return how long to wait for a provider before querying its replica, or -1 if unknown */
+    private long hedgeDelay(String provider) {
+        LatencyWindow window = latencies.get(provider);
+        if (window == null || window.count() < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        return window.percentile(hedgePercentile);
+    }
+
+    private static boolean succeeded(Task<?> task) {
+        if (!task.isDone() || task.isCancelled()) {
+            return false;
+        }
+        try {
+            task.get();
+            return true;
+        } catch (ExecutionException | CancellationException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** A query to a provider, which is also sent to its replica if slow or failed.
+     * It completes with the first results obtained, and fails only if both fail.
+     */
+    private final class HedgedQueryTask extends Task<Iterable<SearchResult>> {
+        private final Task<Iterable<SearchResult>> primary;
+        private final String replica;
+        private final Function<String, Task<Iterable<SearchResult>>> tasks;
+        private Task<Iterable<SearchResult>> hedge = null;
+
+        HedgedQueryTask(Task<Iterable<SearchResult>> primary, String replica,
+                Function<String, Task<Iterable<SearchResult>>> tasks) {
+            super(primary.getUid(), primary.getName(), () -> {
+                throw new IllegalStateException("Hedged queries are completed by their provider tasks");
+            });
+            this.primary = primary;
+            this.replica = replica;
+            this.tasks = tasks;
+        }
+
+        void start() {
+            primary.onCompletion(this::update);
+            runQuery(primary);
+            long delay = hedgeDelay(primary.getName());
+            if (delay >= 0) {
+                timer.schedule(this::sendHedge, delay, TimeUnit.MILLISECONDS);
+            }
+            expireAfterTimeout(this);
+        }
+
+        /** Query the replica, unless already done.
+         *
+         * @return whether the replica is being queried
+         */
+        private synchronized boolean sendHedge() {
+            if (hedge != null) {
+                return true;
+            }
+            if (isDone() || !available.test(replica)) {
+                return false;
+            }
+            logger.debug("Query provider {} is slow or failed, also querying its replica {}", getName(), replica);
+            hedgeCount.incrementAndGet();
+            Task<Iterable<SearchResult>> h = tasks.apply(replica);
+            hedge = h;
+            h.onCompletion(this::update);
+            if (!h.isDone()) {
+                runQuery(h);
+            }
+            return true;
+        }
+
+        /** Complete with the first results obtained, or fail once both providers failed. */
+        private synchronized void update() {
+            if (isDone()) {
+                return;
+            }
+            if (completeWith(primary) || completeWith(hedge)) {
+                cancelProviders();
+                return;
+            }
+            if (!primary.isDone()) {
+                return;
+            }
+            // the primary failed, fail over to the replica
+            if (hedge == null && sendHedge()) {
+                return;
+            }
+            if (hedge != null && !hedge.isDone()) {
+                return;
+            }
+            try {
+                primary.get();
+            } catch (ExecutionException ex) {
+                setException(ex.getCause());
+            } catch (InterruptedException | CancellationException ex) {
+                setException(ex);
+            }
+        }
+
+        private boolean completeWith(Task<Iterable<SearchResult>> task) {
+            if (task == null || !succeeded(task)) {
+                return false;
+            }
+            try {
+                set(task.get());
+                return true;
+            } catch (InterruptedException | ExecutionException ex) {
+                // not the case, it succeeded
+                return false;
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                cancelProviders();
+            }
+            return cancelled;
+        }
+
+        private void cancelProviders() {
+            primary.cancel(true);
+            Task<Iterable<SearchResult>> h;
+            synchronized (this) {
+                h = hedge;
+            }
+            if (h != null) {
+                h.cancel(true);
+            }
+        }
+    }
+}
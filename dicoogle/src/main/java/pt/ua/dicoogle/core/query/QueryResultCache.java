@@ -0,0 +1,523 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.SearchResultBatch;
+
+/**
+ * A bounded cache of the results of queries to each query provider,
+ * keyed by the normalized query string, the provider and the requested fields.
+ *
+ * The cache is bounded by an estimate of the memory taken by the results, and entries expire after a while.
+ * Results are cached once they have been read in full, and results of queries with too many results are not cached.
+ *
+ * Entries are invalidated when the archive changes:
+ * <ul>
+ * <li>Indexing new files drops the entries of queries confined to the studies of those files,
+ * which are study lookups (<code>StudyInstanceUID:...</code>) and single-instance lookups
+ * (<code>SOPInstanceUID:...</code>) which already found their instance.
+ * Any other query may gain results from any study, and its entry is dropped as well,
+ * by making it stale rather than looking for it.</li>
+ * <li>Unindexing or removing files drops the entries holding them,
+ * and any other entry of the same studies.</li>
+ * </ul>
+ *
+ * Cached results are shared, and must not be modified.
+ */
+public class QueryResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+    private static final long MAX_BYTES =
+            Long.parseLong(System.getProperty("dicoogle.queryCache.maxBytes", "67108864"));
+    private static final int MAX_ENTRY_RESULTS =
+            Integer.parseInt(System.getProperty("dicoogle.queryCache.maxEntryResults", "10000"));
+    private static final long TTL = Long.parseLong(System.getProperty("dicoogle.queryCache.ttl", "60000"));
+
+    private static final Pattern INSTANCE_LOOKUP =
+            Pattern.compile("^SOPInstanceUID\\s*:\\s*\"?[0-9.]+\"?$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern STUDY_LOOKUP =
+            Pattern.compile("^StudyInstanceUID\\s*:\\s*\"?([0-9.]+)\"?$", Pattern.CASE_INSENSITIVE);
+
+    /** Identifies the results of a query to one provider. */
+    public static final class Key {
+        private final String query;
+        private final String provider;
+        private final SortedMap<String, String> fields;
+        private final int hash;
+
+        Key(String query, String provider, SortedMap<String, String> fields) {
+            this.query = query;
+            this.provider = provider;
+            this.fields = fields;
+            this.hash = (query.hashCode() * 31 + provider.hashCode()) * 31 + fields.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && query.equals(other.query) && provider.equals(other.provider)
+                    && fields.equals(other.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return provider + ':' + query + fields.keySet();
+        }
+    }
+
+    private static final class Entry {
+        final SearchResultBatch results;
+        /** the studies the query is confined to, or null if it may match any study */
+        final Set<String> studies;
+        /** the broad generation the entry belongs to, if it may match any study */
+        final long broadGeneration;
+        final int weight;
+
+        Entry(SearchResultBatch results, Set<String> studies, long broadGeneration, int weight) {
+            this.results = results;
+            this.studies = studies;
+            this.broadGeneration = broadGeneration;
+            this.weight = weight;
+        }
+    }
+
+    private final Cache<Key, Entry> cache;
+    /** the keys of the entries confined to each study */
+    private final Map<String, Set<Key>> byStudy = new ConcurrentHashMap<>();
+    /** incremented on every invalidation, so that results obtained before it are not cached */
+    private final AtomicLong generation = new AtomicLong();
+    /** incremented on every indexing, making stale the entries which may match any study */
+    private final AtomicLong broadGeneration = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong uncacheable = new AtomicLong();
+
+    public QueryResultCache() {
+        this(MAX_BYTES, TTL);
+    }
+
+    /**
+     * @param maxBytes the approximate maximum memory taken by the cached results, in bytes
+     * @param ttl the time after which an entry expires, in milliseconds
+     */
+    public QueryResultCache(long maxBytes, long ttl) {
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+                .weigher((Key k, Entry e) -> e.weight + k.query.length() * 2)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS).recordStats().removalListener(n -> {
+                    // a replacing entry of the same query was indexed already
+                    if (n.getCause() != RemovalCause.REPLACED) {
+                        unindex(n.getKey(), n.getValue());
+                    }
+                }).build();
+    }
+
+    /** Obtain the cache key of a query.
+     *
+     * @param provider the name of the query provider
+     * @param query the query string
+     * @param parameters the query parameters
+     * @return the key, or null if the query cannot be cached because of its parameters
+     */
+    public static Key key(String provider, String query, Object... parameters) {
+        if (provider == null || query == null) {
+            return null;
+        }
+        SortedMap<String, String> fields = new TreeMap<>();
+        if (parameters.length == 1 && parameters[0] instanceof Map) {
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) parameters[0]).entrySet()) {
+                fields.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+            }
+        } else if (parameters.length != 0) {
+            return null;
+        }
+        return new Key(normalize(query), provider.toLowerCase(Locale.ROOT), Collections.unmodifiableSortedMap(fields));
+    }
+
+    /** Trim the query and collapse runs of white space outside of quotes. */
+    static String normalize(String query) {
+        StringBuilder sb = new StringBuilder(query.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && sb.length() > 0) {
+                sb.append(' ');
+            }
+            space = false;
+            if (c == '"' && (i == 0 || query.charAt(i - 1) != '\\')) {
+                quoted = !quoted;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** @return the cached results of a query, or null if there are none */
+    public Iterable<SearchResult> get(Key key) {
+        Entry e = cache.asMap().get(key);
+        if (e != null && e.studies == null && e.broadGeneration != broadGeneration.get()) {
+            // files were indexed since, which the query may match
+            if (cache.asMap().remove(key, e)) {
+                invalidations.incrementAndGet();
+            }
+            e = null;
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.results;
+    }
+
+    /** @return the current generation, to be given to {@link #put} with the results obtained after this call */
+    public long generation() {
+        return generation.get();
+    }
+
+    /** Cache the results of a query as they are read, unless the cache was invalidated since they were requested.
+     *
+     * The results are gathered into a read only {@link SearchResultBatch} while the first iteration goes through them,
+     * and cached once it reaches their end. Gathering stops as soon as there are more than the maximum number of
+     * results per entry, and results which are not read in full are not cached.
+     *
+     * @param key the query key
+     * @param generation the generation of the cache before the query was performed
+     * @param results the results of the query
+     * @return the same results, to be used instead of the ones given
+     */
+    public Iterable<SearchResult> put(Key key, long generation, Iterable<SearchResult> results) {
+        if (results == null) {
+            return null;
+        }
+        return new Filling(key, generation, results);
+    }
+
+    /** Results which are cached once read in full. */
+    private final class Filling implements Iterable<SearchResult> {
+        private final Key key;
+        private final long generation;
+        private final Iterable<SearchResult> source;
+        private final AtomicBoolean started = new AtomicBoolean();
+        /** all of the results, once read */
+        private volatile SearchResultBatch complete = null;
+
+        Filling(Key key, long generation, Iterable<SearchResult> source) {
+            this.key = key;
+            this.generation = generation;
+            this.source = source;
+        }
+
+        @Override
+        public Iterator<SearchResult> iterator() {
+            SearchResultBatch all = complete;
+            if (all != null) {
+                return all.iterator();
+            }
+            Iterator<SearchResult> it = source.iterator();
+            if (!started.compareAndSet(false, true)) {
+                // only the first iteration gathers results
+                return it;
+            }
+            return new Iterator<SearchResult>() {
+                private SearchResultBatch batch = new SearchResultBatch();
+
+                @Override
+                public boolean hasNext() {
+                    if (it.hasNext()) {
+                        return true;
+                    }
+                    if (batch != null) {
+                        complete = store(key, generation, batch);
+                        batch = null;
+                    }
+                    return false;
+                }
+
+                @Override
+                public SearchResult next() {
+                    SearchResult r = it.next();
+                    if (batch != null) {
+                        if (batch.size() >= MAX_ENTRY_RESULTS) {
+                            // too many to cache, let go of what was gathered so far
+                            uncacheable.incrementAndGet();
+                            batch = null;
+                        } else {
+                            batch.add(r);
+                        }
+                    }
+                    return r;
+                }
+            };
+        }
+    }
+
+    /** Cache the full results of a query.
+     *
+     * @return the results, now read only
+     */
+    private SearchResultBatch store(Key key, long generation, SearchResultBatch batch) {
+        batch.setReadOnly();
+        if (this.generation.get() != generation) {
+            return batch;
+        }
+        Set<String> studies = studiesOf(key, batch);
+        int weight = (int) Math.min(Integer.MAX_VALUE, batch.estimateBytes());
+        Entry e = new Entry(batch, studies, broadGeneration.get(), weight);
+        if (studies != null) {
+            for (String study : studies) {
+                byStudy.compute(study, (k, keys) -> {
+                    Set<Key> set = keys != null ? keys : new HashSet<>();
+                    set.add(key);
+                    return set;
+                });
+            }
+        }
+        cache.put(key, e);
+        if (this.generation.get() != generation) {
+            // invalidated while being stored
+            cache.asMap().remove(key, e);
+        }
+        return batch;
+    }
+
+    /** @return the studies a query is confined to, or null if it may match any study */
+    private static Set<String> studiesOf(Key key, SearchResultBatch results) {
+        Matcher m = STUDY_LOOKUP.matcher(key.query);
+        if (m.matches()) {
+            return Collections.singleton(m.group(1));
+        }
+        if (results.isEmpty() || !INSTANCE_LOOKUP.matcher(key.query).matches()) {
+            return null;
+        }
+        Set<String> studies = new HashSet<>();
+        for (int row = 0; row < results.size(); row++) {
+            Object study = results.get(row, "StudyInstanceUID");
+            if (study == null) {
+                return null;
+            }
+            studies.add(study.toString().trim());
+        }
+        return studies;
+    }
+
+    private void unindex(Key key, Entry e) {
+        if (key == null || e == null || e.studies == null) {
+            return;
+        }
+        for (String study : e.studies) {
+            byStudy.computeIfPresent(study, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    /** Invalidate the entries which may have changed after indexing files.
+     *
+     * Entries confined to the given studies are dropped,
+     * and entries which may match any study are made stale at once.
+     *
+     * @param studies the StudyInstanceUID of the files indexed,
+     * or null if they are not known, which drops all entries
+     */
+    public void invalidateIndexed(Collection<String> studies) {
+        generation.incrementAndGet();
+        if (studies == null) {
+            long size = cache.size();
+            cache.invalidateAll();
+            invalidations.addAndGet(size);
+            logger.debug("Invalidated all {} cached queries after indexing files of unknown studies", size);
+            return;
+        }
+        broadGeneration.incrementAndGet();
+        int count = 0;
+        for (String study : studies) {
+            Set<Key> keys = byStudy.remove(study.trim());
+            if (keys != null) {
+                for (Key k : keys) {
+                    if (cache.asMap().remove(k) != null) {
+                        count++;
+                    }
+                }
+            }
+        }
+        invalidations.addAndGet(count);
+        logger.debug("Invalidated {} cached queries of {} studies after indexing", count, studies.size());
+    }
+
+    /** Invalidate the entries holding the given files, or files in the given directories,
+     * and all other entries of the same studies.
+     *
+     * @param uris the files or directories unindexed or removed
+     */
+    public void invalidateRemoved(Collection<URI> uris) {
+        generation.incrementAndGet();
+        Set<String> removed = toStrings(uris);
+        List<String> prefixes = new ArrayList<>(removed.size());
+        for (String u : removed) {
+            prefixes.add(u.endsWith("/") ? u : u + '/');
+        }
+        Set<String> studies = new HashSet<>();
+        Set<Key> affected = new HashSet<>();
+        for (Map.Entry<Key, Entry> e : cache.asMap().entrySet()) {
+            if (containsAny(e.getValue(), removed, prefixes)) {
+                affected.add(e.getKey());
+                SearchResultBatch results = e.getValue().results;
+                for (int row = 0; row < results.size(); row++) {
+                    Object study = results.get(row, "StudyInstanceUID");
+                    if (study != null) {
+                        studies.add(study.toString().trim());
+                    }
+                }
+            }
+        }
+        if (!studies.isEmpty()) {
+            for (Map.Entry<Key, Entry> e : cache.asMap().entrySet()) {
+                SearchResultBatch results = e.getValue().results;
+                for (int row = 0; row < results.size(); row++) {
+                    Object study = results.get(row, "StudyInstanceUID");
+                    if (study != null && studies.contains(study.toString().trim())) {
+                        affected.add(e.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+        cache.invalidateAll(affected);
+        invalidations.addAndGet(affected.size());
+        logger.debug("Invalidated {} cached queries of {} studies after removing {} items", affected.size(),
+                studies.size(), uris.size());
+    }
+
+    private static Set<String> toStrings(Collection<URI> uris) {
+        Set<String> set = new HashSet<>(uris.size() * 2);
+        for (URI u : uris) {
+            set.add(u.toString());
+        }
+        return set;
+    }
+
+    private static boolean containsAny(Entry e, Set<String> uris, List<String> prefixes) {
+        for (int row = 0; row < e.results.size(); row++) {
+            String u = e.results.getURI(row).toString();
+            if (uris.contains(u)) {
+                return true;
+            }
+            for (String p : prefixes) {
+                if (u.startsWith(p)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Drop all entries. */
+    public void clear() {
+        generation.incrementAndGet();
+        long size = cache.size();
+        cache.invalidateAll();
+        invalidations.addAndGet(size);
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    /** @return the estimated memory taken by the cached results, in bytes */
+    public long getWeight() {
+        long w = 0;
+        for (Map.Entry<Key, Entry> e : cache.asMap().entrySet()) {
+            w += e.getValue().weight + e.getKey().query.length() * 2;
+        }
+        return w;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the ratio of lookups which found cached results, 1 if there were no lookups */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 1.0 : (double) h / total;
+    }
+
+    /** @return the number of entries dropped to keep the cache within its bounds, or because they expired */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /** @return the number of entries dropped because of changes in the archive */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /** @return the number of queries with too many results to be cached */
+    public long getUncacheableCount() {
+        return uncacheable.get();
+    }
+}
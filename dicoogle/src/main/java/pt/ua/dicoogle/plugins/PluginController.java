@@ -20,29 +20,42 @@ package pt.ua.dicoogle.plugins;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.io.FileUtils;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Iterables;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
 import org.restlet.resource.ServerResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.core.mlprovider.DatastoreRequest;
 import pt.ua.dicoogle.core.mlprovider.PrepareDatastoreTask;
+import pt.ua.dicoogle.core.query.InstanceURIResolver;
+import pt.ua.dicoogle.core.query.QueryDispatcher;
+import pt.ua.dicoogle.core.query.QueryResultCache;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.webui.WebUIPlugin;
 import pt.ua.dicoogle.plugins.webui.WebUIPluginManager;
 import pt.ua.dicoogle.sdk.*;
+import pt.ua.dicoogle.sdk.datastructs.QueryHints;
 import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.datastructs.ResultPage;
 import pt.ua.dicoogle.sdk.datastructs.UnindexReport;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimCounts;
 import pt.ua.dicoogle.sdk.datastructs.dim.DimLevel;
 import pt.ua.dicoogle.sdk.mlprovider.*;
 import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.sdk.utils.QueryException;
 import pt.ua.dicoogle.server.ControlServices;
 import pt.ua.dicoogle.server.PluginRestletApplication;
 import pt.ua.dicoogle.server.web.DicoogleWeb;
 import pt.ua.dicoogle.taskManager.RunningIndexTasks;
 import pt.ua.dicoogle.taskManager.TaskManager;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
@@ -50,6 +63,7 @@ import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.zip.ZipFile;
 
@@ -70,6 +84,11 @@ import java.util.zip.ZipFile;
 public class PluginController {
 
     private static final Logger logger = LoggerFactory.getLogger(PluginController.class);
+
+    /** Maximum number of indexed files whose headers are read to invalidate the query cache by study */
+    private static final int MAX_STUDY_READS =
+            Integer.parseInt(System.getProperty("dicoogle.queryCache.maxStudyReads", "1000"));
+
     private static PluginController instance;
 
     public synchronized static PluginController getInstance() {
@@ -93,10 +112,18 @@ public class PluginController {
     // Task Managers for Queries
     private TaskManager taskManagerQueries =
             new TaskManager(Integer.parseInt(System.getProperty("dicoogle.taskManager.nQueryThreads", "4")));
+    // Deadlines and hedging of the query tasks
+    private final QueryDispatcher queryDispatcher =
+            QueryDispatcher.create(taskManagerQueries, name -> getQueryProviderByName(name, true) != null);
 
     private final TaskManager taskManagerML =
             new TaskManager(Integer.parseInt(System.getProperty("dicoogle.taskManager.nMLThreads", "1")));
 
+    /** Cache of query results, null if disabled */
+    private final QueryResultCache queryCache =
+            Boolean.parseBoolean(System.getProperty("dicoogle.queryCache.enabled", "true")) ? new QueryResultCache()
+                    : null;
+
     /** Whether to shut down Dicoogle when a plugin is marked as dead */
     private static boolean DEAD_PLUGIN_KILL_SWITCH =
             System.getProperty("dicoogle.deadPluginKillSwitch", "false").equalsIgnoreCase("true");
@@ -566,8 +593,9 @@ public class PluginController {
     }
 
     public Task<Iterable<SearchResult>> query(String querySource, final String query, final Object... parameters) {
-        Task<Iterable<SearchResult>> t = getTaskForQuery(querySource, query, parameters);
-        taskManagerQueries.dispatch(t);
+        Task<Iterable<SearchResult>> t =
+                queryDispatcher.prepareQuery(querySource, p -> getTaskForQuery(p, query, parameters));
+        queryDispatcher.dispatchQuery(t);
         return t;
 
     }
@@ -575,7 +603,7 @@ public class PluginController {
     public Task<Iterable<SearchResult>> query(String querySource, final String query, final DimLevel level,
             final Object... parameters) {
         Task<Iterable<SearchResult>> t = getTaskForQueryDim(querySource, query, level, parameters);
-        taskManagerQueries.dispatch(t);
+        queryDispatcher.dispatch(t);
 
         return t;// returns the handler to obtain the computation results
     }
@@ -587,14 +615,17 @@ public class PluginController {
 
         List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
         for (String p : querySources) {
-            Task<Iterable<SearchResult>> task = getTaskForQuery(p, query, parameters);
+            Task<Iterable<SearchResult>> task =
+                    queryDispatcher.prepareQuery(p, source -> getTaskForQuery(source, query, parameters));
             tasks.add(task);
-            holder.addTask(task);
         }
+        // added at once, since the tasks answered from the cache are already finished
+        holder.addTasks(tasks);
 
-        // and executes said task asynchronously
-        for (Task<?> t : tasks)
-            taskManagerQueries.dispatch(t);
+        // and executes said task asynchronously, unless its results were cached
+        for (Task<Iterable<SearchResult>> t : tasks) {
+            queryDispatcher.dispatchQuery(t);
+        }
 
         return holder;// returns the handler to obtain the computation results
     }
@@ -608,33 +639,198 @@ public class PluginController {
         for (String p : querySources) {
             Task<Iterable<SearchResult>> task = getTaskForQueryDim(p, query, level, parameters);
             tasks.add(task);
-            holder.addTask(task);
         }
+        holder.addTasks(tasks);
 
         // and executes said task asynchronously
         for (Task<?> t : tasks)
-            taskManagerQueries.dispatch(t);
+            queryDispatcher.dispatch(t);
 
         return holder;// returns the handler to obtain the computation results
     }
 
+    /** Check whether a query provider can return pages of results by itself.
+     *
+     * @param querySource the name of the query provider
+     * @return whether the provider is enabled and implements {@link PageableQueryInterface}
+     */
+    public boolean isPageable(String querySource) {
+        return getQueryProviderByName(querySource, true) instanceof PageableQueryInterface;
+    }
+
+    /** Query a single provider for a page of results.
+     *
+     * Providers which implement {@link PageableQueryInterface} return only the page requested.
+     * For the others, the page is taken from the full results of the query, ignoring the sort fields,
+     * as would otherwise be done by the caller.
+     *
+     * @param querySource the name of the query provider
+     * @param query the query string
+     * @param hints which results are wanted
+     * @param parameters the query parameters
+     * @return a task to obtain the page of results, which fails if the provider could not perform the query
+     */
+    public Task<ResultPage> queryPage(String querySource, final String query, final QueryHints hints,
+            final Object... parameters) {
+        Task<ResultPage> t = getTaskForQueryPage(querySource, query, hints, parameters);
+        queryDispatcher.dispatch(t);
+        return t;
+    }
+
+    private Task<ResultPage> getTaskForQueryPage(final String querySource, final String query, final QueryHints hints,
+            final Object... parameters) {
+        final QueryInterface queryEngine = getQueryProviderByName(querySource, true);
+        String uid = UUID.randomUUID().toString();
+        return new Task<>(uid, querySource, () -> {
+            if (queryEngine == null) {
+                return ResultPage.countOnly(0);
+            }
+            try {
+                if (queryEngine instanceof PageableQueryInterface) {
+                    ResultPage page = ((PageableQueryInterface) queryEngine).queryPage(query, hints, parameters);
+                    if (page == null) {
+                        return ResultPage.countOnly(0);
+                    }
+                    if (hints.isIncludeTotal() && page.getTotalCount() < 0) {
+                        // the total was requested but not provided, count it the slow way
+                        long total = countResults(queryEngine.query(query, parameters));
+                        return new ResultPage(page.getResults(), total, page.getNextCursor());
+                    }
+                    return page;
+                }
+                if (hints.isCountOnly() && queryEngine instanceof CountableQueryInterface) {
+                    DimCounts counts = ((CountableQueryInterface) queryEngine).countQuery(query, parameters);
+                    return ResultPage.countOnly(counts == null ? 0 : counts.getInstances());
+                }
+                return pageOf(queryEngine.query(query, parameters), hints);
+            } catch (QueryException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                logger.warn("Query plugin {} failed unexpectedly", querySource, ex);
+                return ResultPage.countOnly(0);
+            }
+        });
+    }
+
+    /** Count the distinct patients, studies, series and instances matching a query in each of the given providers.
+     *
+     * Providers which implement {@link CountableQueryInterface} count the results by themselves.
+     * For the others, the results are gone through with only the identifying fields requested,
+     * keeping their identifiers and nothing else.
+     *
+     * @param querySources the names of the query providers
+     * @param query the query string
+     * @param parameters the query parameters, {@link DimCounts#FIELDS} being requested if none are given
+     * @return a task per provider to obtain its counts, which fails if the provider could not perform the query
+     */
+    public List<Task<DimCounts>> countQuery(List<String> querySources, final String query, final Object... parameters) {
+        List<Task<DimCounts>> tasks = new ArrayList<>(querySources.size());
+        for (String p : querySources) {
+            tasks.add(getTaskForCountQuery(p, query, parameters));
+        }
+        for (Task<?> t : tasks) {
+            queryDispatcher.dispatch(t);
+        }
+        return tasks;
+    }
+
+    private Task<DimCounts> getTaskForCountQuery(final String querySource, final String query,
+            final Object... parameters) {
+        final QueryInterface queryEngine = getQueryProviderByName(querySource, true);
+        final Object[] actualParameters =
+                parameters.length == 0 ? new Object[] {new HashMap<>(DimCounts.FIELDS)} : parameters;
+        String uid = UUID.randomUUID().toString();
+        return new Task<>(uid, querySource, () -> {
+            if (queryEngine == null) {
+                return DimCounts.EMPTY;
+            }
+            try {
+                if (queryEngine instanceof CountableQueryInterface) {
+                    DimCounts counts = ((CountableQueryInterface) queryEngine).countQuery(query, actualParameters);
+                    return counts == null ? DimCounts.EMPTY : counts;
+                }
+                Iterable<SearchResult> results = queryEngine.query(query, actualParameters);
+                if (results == null) {
+                    return DimCounts.EMPTY;
+                }
+                return new DimCounts.Counter().addAll(results).toCounts();
+            } catch (QueryException ex) {
+                throw ex;
+            } catch (RuntimeException ex) {
+                logger.warn("Query plugin {} failed unexpectedly", querySource, ex);
+                return DimCounts.EMPTY;
+            }
+        });
+    }
+
+    private static long countResults(Iterable<SearchResult> results) {
+        long count = 0;
+        if (results != null) {
+            for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); it.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Take a page out of the full results of a query. */
+    private static ResultPage pageOf(Iterable<SearchResult> results, QueryHints hints) {
+        if (hints.isCountOnly()) {
+            return ResultPage.countOnly(countResults(results));
+        }
+        List<SearchResult> page = new ArrayList<>(hints.hasLimit() ? Math.min(hints.getLimit(), 1024) : 16);
+        if (results == null) {
+            return new ResultPage(page, 0, null);
+        }
+        long count = 0;
+        long end = hints.hasLimit() ? (long) hints.getOffset() + hints.getLimit() : Long.MAX_VALUE;
+        Iterator<SearchResult> it = results.iterator();
+        while (it.hasNext()) {
+            SearchResult r = it.next();
+            if (count >= hints.getOffset() && count < end) {
+                page.add(r);
+            }
+            count++;
+            if (count >= end && !hints.isIncludeTotal()) {
+                break;
+            }
+        }
+        return new ResultPage(page, hints.isIncludeTotal() || !it.hasNext() ? count : -1, null);
+    }
+
 
     private Task<Iterable<SearchResult>> getTaskForQuery(final String querySource, final String query,
             final Object... parameters) {
 
         final QueryInterface queryEngine = getQueryProviderByName(querySource, true);
-        // returns a tasks that runs the query from the selected query engine
+        final QueryResultCache.Key cacheKey =
+                queryCache != null && queryEngine != null ? QueryResultCache.key(querySource, query, parameters) : null;
         String uid = UUID.randomUUID().toString();
+        final Iterable<SearchResult> cached = cacheKey != null ? queryCache.get(cacheKey) : null;
+        if (cached != null) {
+            // the task is completed right away, and need not be dispatched
+            Task<Iterable<SearchResult>> cachedTask = new Task<>(uid, querySource, () -> cached);
+            cachedTask.run();
+            return cachedTask;
+        }
+
+        // returns a tasks that runs the query from the selected query engine
         Task<Iterable<SearchResult>> queryTask = new Task<>(uid, querySource, new Callable<Iterable<SearchResult>>() {
             @Override
             public Iterable<SearchResult> call() throws Exception {
                 if (queryEngine == null)
                     return Collections.emptyList();
                 try {
-                    return queryEngine.query(query, parameters);
+                    if (cacheKey != null) {
+                        long generation = queryCache.generation();
+                        return queryCache.put(cacheKey, generation,
+                                withLocations(queryEngine.query(query, parameters), parameters));
+                    }
+                    return withLocations(queryEngine.query(query, parameters), parameters);
                 } catch (RuntimeException ex) {
+                    // fail the task, so that the provider is reported as failed and its replica is tried
                     logger.warn("Query plugin {} failed unexpectedly", querySource, ex);
-                    return Collections.emptyList();
+                    throw ex;
                 }
 
             }
@@ -699,6 +895,7 @@ public class PluginController {
         // Collection<IndexerInterface> indexers = getIndexingPluginsByMimeType(path);
         ArrayList<Task<Report>> rettasks = new ArrayList<>();
         final String pathF = path.toString();
+        Supplier<Set<String>> studies = Suppliers.memoize(() -> readStudies(store.at(path)));
         for (IndexerInterface indexer : indexers) {
             try {
                 Task<Report> task = indexer.index(store.at(path));
@@ -708,6 +905,7 @@ public class PluginController {
                 task.setName(String.format("[%s]index %s", indexer.getName(), path));
                 task.onCompletion(() -> {
                     logger.info("Task [{}] complete on {}", taskUniqueID, pathF);
+                    invalidateIndexed(studies);
                 });
 
                 taskManager.dispatch(task);
@@ -745,6 +943,7 @@ public class PluginController {
                     @Override
                     public void run() {
                         logger.info("Task [{}] complete on {}", taskUniqueID, pathF);
+                        invalidateIndexed(() -> readStudies(store.at(path)));
                     }
                 });
 
@@ -778,6 +977,7 @@ public class PluginController {
 
             store.at(path).forEach(objectsToStore::add);
         }
+        Supplier<Set<String>> studies = Suppliers.memoize(() -> readStudies(objectsToStore));
 
         for (IndexerInterface indexer : indexers) {
             try {
@@ -788,6 +988,7 @@ public class PluginController {
                 task.setName(String.format("[%s]index %d items", indexer.getName(), objectsToStore.size()));
                 task.onCompletion(() -> {
                     logger.info("Task [{}] complete on {} items", taskUniqueID, objectsToStore.size());
+                    invalidateIndexed(studies);
                 });
 
                 taskManager.dispatch(task);
@@ -881,6 +1082,7 @@ public class PluginController {
         for (IndexerInterface indexer : indexers) {
             indexer.unindex(path);
         }
+        invalidateRemoved(Collections.singleton(path));
         logger.info("Finished unindexing {}", path);
     }
 
@@ -895,12 +1097,73 @@ public class PluginController {
     public void doRemove(URI uri, StorageInterface si) {
         if (Objects.equals(uri.getScheme(), si.getScheme())) {
             si.remove(uri);
+            invalidateRemoved(Collections.singleton(uri));
         } else {
             logger.warn("Storage Plugin does not handle URI: {},{}", uri, si);
         }
         logger.info("Finished removing {}", uri);
     }
 
+    /** @return the cache of query results, or null if it is disabled */
+    public QueryResultCache getQueryCache() {
+        return queryCache;
+    }
+
+    private void invalidateIndexed(Supplier<Set<String>> studies) {
+        if (queryCache != null) {
+            queryCache.invalidateIndexed(studies.get());
+        }
+    }
+
+    /** Read the StudyInstanceUID of indexed files from their headers.
+     *
+     * @param files the files indexed
+     * @return the studies of the files, or null if there are too many files or some could not be read
+     */
+    private static Set<String> readStudies(Iterable<StorageInputStream> files) {
+        Set<String> studies = new HashSet<>();
+        int count = 0;
+        for (StorageInputStream file : files) {
+            if (++count > MAX_STUDY_READS) {
+                return null;
+            }
+            try (DicomInputStream in = new DicomInputStream(new BufferedInputStream(file.getInputStream()))) {
+                in.setHandler(new StopTagInputHandler(Tag.StudyInstanceUID + 1));
+                String study = in.readDicomObject().getString(Tag.StudyInstanceUID);
+                if (study == null) {
+                    return null;
+                }
+                studies.add(study.trim());
+            } catch (IOException | RuntimeException ex) {
+                logger.debug("Could not read the header of {}", file.getURI(), ex);
+                return null;
+            }
+        }
+        return studies;
+    }
+
+    private void invalidateRemoved(Collection<URI> paths) {
+        if (queryCache != null) {
+            queryCache.invalidateRemoved(paths);
+        }
+        InstanceURIResolver.getInstance().invalidate(paths);
+    }
+
+    /** Let the instance URI resolver learn the locations in the results of a query as they are read,
+     * if the query requested the SOPInstanceUID field.
+     */
+    private static Iterable<SearchResult> withLocations(Iterable<SearchResult> results, Object... parameters) {
+        if (results == null || parameters.length != 1 || !(parameters[0] instanceof Map)
+                || !((Map<?, ?>) parameters[0]).containsKey("SOPInstanceUID")) {
+            return results;
+        }
+        InstanceURIResolver resolver = InstanceURIResolver.getInstance();
+        return Iterables.transform(results, r -> {
+            resolver.fill(r);
+            return r;
+        });
+    }
+
     /*
      * Convinience method that calls index(URI) and runs the returned
      * tasks on the executing thread 
@@ -945,6 +1208,7 @@ public class PluginController {
             task.setName(String.format("[%s]unindex", indexer.getName()));
             task.onCompletion(() -> {
                 logger.info("Unindexing task [{}] complete", taskUniqueID);
+                invalidateRemoved(items);
             });
             taskManager.dispatch(task);
         }
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+/** Incremental aggregator of instance-level search results into
+ * study or series level C-FIND entries.
+ *
+ * Unlike building a full DIM tree, only one small record is kept per study (or series),
+ * holding the first matching result as a template and the counters needed for the response.
+ *
+ * Results are not necessarily grouped by study or series: several associations may store
+ * at the same time, batches are indexed in parallel, and there may be more than one provider.
+ * So when the counters are needed, entries are only complete once the stream of results ends.
+ * Otherwise, the template is all there is to an entry, which is then complete as soon as
+ * its first result arrives, and later results of the same entry are left out.
+ *
+ * Memory is bounded by the number of distinct entries, up to <tt>maxEntries</tt>.
+ * Past that, results are no longer accepted and the query cannot be answered.
+ *
+ * @see SearchDicomResult
+ */
+class CFindAggregator {
+
+    /** An aggregated C-FIND entry at the study or series level. */
+    static final class Entry {
+        private final SearchResult template;
+        private final Set<String> modalities = new LinkedHashSet<>(2);
+        private final Set<String> series = new HashSet<>();
+        private int instances = 0;
+
+        Entry(SearchResult template) {
+            this.template = template;
+        }
+
+        /** @return the first search result of this entry, from which the common attributes are taken */
+        SearchResult getTemplate() {
+            return template;
+        }
+
+        /** @return the distinct modalities found in this entry, in order of appearance */
+        Set<String> getModalities() {
+            return modalities;
+        }
+
+        /** @return the number of distinct series found in this entry */
+        int getNumberOfSeries() {
+            return series.size();
+        }
+
+        /** @return the number of instances found in this entry */
+        int getNumberOfInstances() {
+            return instances;
+        }
+
+        void add(SearchResult r) {
+            instances += 1;
+            String modality = trimmed(r.get("Modality"));
+            if (modality != null) {
+                modalities.add(modality);
+            }
+            String seriesUID = trimmed(r.get("SeriesInstanceUID"));
+            if (seriesUID != null) {
+                series.add(seriesUID);
+            }
+        }
+    }
+
+    private final String groupKey;
+    private final boolean counting;
+    private final int maxEntries;
+    /** entries being counted, in order of appearance */
+    private final Map<String, Entry> open = new LinkedHashMap<>();
+    /** keys of the entries already released, when not counting */
+    private final Set<String> released = new HashSet<>();
+    private final Queue<Entry> complete = new ArrayDeque<>();
+
+    /**
+     * @param groupKey the name of the attribute identifying an entry
+     * (StudyInstanceUID or SeriesInstanceUID)
+     * @param counting whether the responses need the counters of each entry
+     * (number of related instances or series, modalities in study),
+     * in which case entries are only complete at the end of the stream
+     * @param maxEntries the maximum number of distinct entries
+     */
+    CFindAggregator(String groupKey, boolean counting, int maxEntries) {
+        this.groupKey = groupKey;
+        this.counting = counting;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /** Feed one instance-level result into the aggregator.
+     *
+     * @param r the search result
+     * @return false if the result belongs to a new entry and there are already <tt>maxEntries</tt> entries
+     */
+    boolean add(SearchResult r) {
+        String key = trimmed(r.get(groupKey));
+        if (key == null) {
+            key = "";
+        }
+        if (counting) {
+            Entry e = open.get(key);
+            if (e == null) {
+                if (open.size() >= maxEntries) {
+                    return false;
+                }
+                e = new Entry(r);
+                open.put(key, e);
+            }
+            e.add(r);
+            return true;
+        }
+        if (released.contains(key)) {
+            return true;
+        }
+        if (released.size() >= maxEntries) {
+            return false;
+        }
+        released.add(key);
+        Entry e = new Entry(r);
+        e.add(r);
+        complete.add(e);
+        return true;
+    }
+
+    /** Release all entries as complete, to be called once the stream of results has ended. */
+    void flush() {
+        complete.addAll(open.values());
+        open.clear();
+    }
+
+    /** @return whether there are complete entries ready to be emitted */
+    boolean hasComplete() {
+        return !complete.isEmpty();
+    }
+
+    /** @return the next complete entry, or null if none is ready */
+    Entry pollComplete() {
+        return complete.poll();
+    }
+
+    /** Discard all state held by the aggregator. */
+    void clear() {
+        open.clear();
+        released.clear();
+        complete.clear();
+    }
+
+    static String trimmed(Object o) {
+        if (o == null) {
+            return null;
+        }
+        return StringUtils.trimToNull(o.toString());
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.utils.TagValue;
+import pt.ua.dicoogle.sdk.utils.TagsStruct;
+
+/** Builds IMAGE level C-FIND responses from indexed search results.
+ *
+ * Every key requested in the C-FIND identifier is mapped to the search result's
+ * extra field with the same name, and encoded with the VR known by {@link TagsStruct}.
+ * Sequence keys are mapped one level deep, using the flattened
+ * <tt>SequenceName_ItemAttribute</tt> field names.
+ * Only when a requested key was not indexed by the provider
+ * is the object's header read from storage, up to the pixel data.
+ */
+class CFindResponseBuilder {
+    private static final Logger logger = LoggerFactory.getLogger(CFindResponseBuilder.class);
+
+    /** Keys returned when no identifier is given, as in the original IMAGE level response */
+    private static final int[] DEFAULT_KEYS = {Tag.InstitutionName, Tag.StudyInstanceUID, Tag.SeriesInstanceUID,
+            Tag.SOPInstanceUID, Tag.SeriesDescription, Tag.SeriesDate, Tag.SeriesTime, Tag.Modality,
+            Tag.SeriesNumber};
+
+    /** A requested key, resolved once per query */
+    private static final class Key {
+        final int tag;
+        final VR vr;
+        /** field name in the index */
+        final String field;
+        /** item keys, if this is a sequence */
+        final List<Key> items;
+
+        Key(int tag, VR vr, String field, List<Key> items) {
+            this.tag = tag;
+            this.vr = vr;
+            this.field = field;
+            this.items = items;
+        }
+    }
+
+    private final List<Key> keys = new ArrayList<>();
+    private final Set<String> fieldNames = new LinkedHashSet<>();
+
+    /**
+     * @param identifier the C-FIND request identifier, or null for the default set of keys
+     */
+    CFindResponseBuilder(DicomObject identifier) {
+        if (identifier == null) {
+            identifier = new BasicDicomObject();
+            for (int tag : DEFAULT_KEYS) {
+                identifier.putNull(tag, null);
+            }
+        }
+        Iterator<DicomElement> it = identifier.datasetIterator();
+        while (it.hasNext()) {
+            DicomElement e = it.next();
+            if (e.tag() == Tag.SpecificCharacterSet || e.tag() == Tag.QueryRetrieveLevel) {
+                continue;
+            }
+            Key key = resolve(e, null);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+    }
+
+    private Key resolve(DicomElement e, String prefix) {
+        TagValue tv = TagsStruct.getInstance().getTagValue(e.tag());
+        if (tv == null) {
+            // private or unknown attribute, can only be obtained from the file
+            return new Key(e.tag(), e.vr(), null, null);
+        }
+        String field = prefix == null ? tv.getAlias() : prefix + "_" + tv.getAlias();
+        VR vr = vrOf(tv, e.vr());
+        if (vr == VR.SQ) {
+            if (prefix != null) {
+                // nested sequences are not indexed
+                return new Key(e.tag(), vr, null, null);
+            }
+            List<Key> items = new ArrayList<>();
+            DicomObject item = e.countItems() > 0 ? e.getDicomObject() : null;
+            if (item != null) {
+                Iterator<DicomElement> it = item.datasetIterator();
+                while (it.hasNext()) {
+                    items.add(resolve(it.next(), field));
+                }
+            }
+            return new Key(e.tag(), vr, items.isEmpty() ? null : field, items);
+        }
+        fieldNames.add(field);
+        return new Key(e.tag(), vr, field, null);
+    }
+
+    private static VR vrOf(TagValue tv, VR fallback) {
+        String vr = tv.getVR();
+        if (vr != null && vr.length() == 2) {
+            try {
+                return VR.valueOf((vr.charAt(0) << 8) | vr.charAt(1));
+            } catch (IllegalArgumentException ex) {
+                // not a known VR, use the one from the request
+            }
+        }
+        return fallback;
+    }
+
+    /** @return the names of the index fields needed to answer the requested keys */
+    Set<String> getFieldNames() {
+        return Collections.unmodifiableSet(fieldNames);
+    }
+
+    /** Build the C-FIND response for one instance.
+     *
+     * @param r the search result of the instance
+     * @return the response dataset
+     */
+    DicomObject build(SearchResult r) {
+        BasicDicomObject result = new BasicDicomObject();
+        result.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+        result.putString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+
+        List<Key> missing = null;
+        Map<String, Object> extra = r.getExtraData();
+        for (Key key : keys) {
+            if (!put(result, key, extra)) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(key);
+            }
+        }
+
+        if (missing != null) {
+            DicomObject header = readHeader(r.getURI());
+            if (header != null) {
+                for (Key key : missing) {
+                    DicomElement e = header.get(key.tag);
+                    if (e != null) {
+                        result.add(e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Put the key's value from the indexed fields.
+     * @return false if the key was not indexed
+     */
+    private static boolean put(DicomObject result, Key key, Map<String, Object> extra) {
+        if (key.field == null) {
+            return false;
+        }
+        if (key.items != null) {
+            DicomObject item = new BasicDicomObject();
+            item.setParent(result);
+            for (Key itemKey : key.items) {
+                if (!put(item, itemKey, extra)) {
+                    return false;
+                }
+            }
+            result.putNestedDicomObject(key.tag, item);
+            return true;
+        }
+        if (!extra.containsKey(key.field)) {
+            return false;
+        }
+        String value = toString(extra.get(key.field), key.vr);
+        if (value == null) {
+            result.putNull(key.tag, key.vr);
+        } else {
+            result.putString(key.tag, key.vr, value);
+        }
+        return true;
+    }
+
+    private static String toString(Object o, VR vr) {
+        String value = CFindAggregator.trimmed(o);
+        if (value != null && (vr == VR.IS || vr == VR.US || vr == VR.UL || vr == VR.SS || vr == VR.SL)
+                && value.endsWith(".0")) {
+            // numeric fields may be indexed as floating point
+            value = value.substring(0, value.length() - 2);
+        }
+        return value;
+    }
+
+    private static DicomObject readHeader(URI uri) {
+        StorageInterface storage = PluginController.getInstance().getStorageForSchema(uri);
+        if (storage == null) {
+            return null;
+        }
+        for (StorageInputStream sis : storage.at(uri)) {
+            try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(sis.getInputStream()))) {
+                dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+                return dis.readDicomObject();
+            } catch (IOException ex) {
+                logger.warn("Could not read the header of {}", uri, ex);
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -18,18 +18,32 @@
  */
 package pt.ua.dicoogle.server;
 
+import pt.ua.dicoogle.core.query.InstanceURIResolver;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.UID;
 import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.Device;
@@ -47,8 +61,6 @@ import org.dcm4che2.net.service.StorageService;
 import org.dcm4che2.net.service.VerificationService;
 
 
-import pt.ua.dicoogle.plugins.PluginController;
-import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
 
 
@@ -63,6 +75,25 @@ public class DicomStorage extends StorageService {
 
     private static final Logger LOG = LoggerFactory.getLogger(DicomStorage.class);
 
+    /** Status code for refusing an object for lack of resources */
+    private static final int OUT_OF_RESOURCES = 0xA700;
+
+    /** What to do with objects received while the index queue is saturated (delay or reject) */
+    private static final String BACKPRESSURE_POLICY =
+            System.getProperty("dicoogle.cstore.backpressure.policy", "delay").trim().toLowerCase();
+    /** Backpressure policies for specific calling AE titles */
+    private static final Map<String, String> BACKPRESSURE_AET_POLICIES =
+            parseAETPolicies(System.getProperty("dicoogle.cstore.backpressure.aetPolicies", ""));
+    private static final long BACKPRESSURE_MAX_DELAY =
+            Long.parseLong(System.getProperty("dicoogle.cstore.backpressure.maxDelay", "30000"));
+
+    /** Write received objects straight to the main directory, as they arrive, instead of to the primary storage */
+    private static final boolean STREAM_TO_DISK =
+            Boolean.valueOf(System.getProperty("dicoogle.cstore.streamToDisk", "false"));
+
+    /** digits separated by single dots, as in the DICOM UID grammar */
+    private static final Pattern UID_PATTERN = Pattern.compile("[0-9]+(\\.[0-9]+)*");
+
     private SOPList list;
     private ServerSettings settings;
 
@@ -79,6 +110,9 @@ public class DicomStorage extends StorageService {
     // Changed to support priority queue.
     private NetworkApplicationEntity[] naeArr = null;
     private AtomicLong seqNum = new AtomicLong(0L);
+    private final StoragePipeline pipeline = new StoragePipeline();
+    /** Whether to write received objects straight to the main directory */
+    private final boolean streamToDisk;
 
     /**
      *
@@ -101,6 +135,10 @@ public class DicomStorage extends StorageService {
         if (path == null) {
             path = "/dev/null";
         }
+        streamToDisk = STREAM_TO_DISK && settings.getArchiveSettings().getMainDirectory() != null;
+        if (STREAM_TO_DISK && !streamToDisk) {
+            LOG.warn("No main directory configured, received objects will not be written to disk directly");
+        }
 
         this.priorityAETs = new HashSet<>(settings.getDicomServicesSettings().getPriorityAETitles());
         LoggerFactory.getLogger(DicomStorage.class).debug("Priority C-STORE: {}", this.priorityAETs);
@@ -256,10 +294,61 @@ public class DicomStorage extends StorageService {
         }
 
         final DicomObject rsp = CommandUtils.mkRSP(rq, CommandUtils.SUCCESS);
+        if (!admitStore(as)) {
+            // the index queue is saturated, refuse the object without storing it
+            dataStream.skipAll();
+            rsp.putInt(Tag.Status, VR.US, OUT_OF_RESOURCES);
+            rsp.putString(Tag.ErrorComment, VR.LO, "Indexing queue is full");
+            as.writeDimseRSP(pcid, rsp);
+            return;
+        }
         onCStoreRQ(as, pcid, rq, dataStream, tsuid, rsp);
         as.writeDimseRSP(pcid, rsp);
     }
 
+    /** Apply backpressure from the index queue, according to the policy of the calling AE title.
+     *
+     * While the index queue is saturated, objects from AE titles with the <tt>delay</tt> policy
+     * wait for it to drain for up to <tt>dicoogle.cstore.backpressure.maxDelay</tt> milliseconds,
+     * while objects from AE titles with the <tt>reject</tt> policy are refused right away.
+     *
+     * @param as the association
+     * @return whether the object can be stored
+     */
+    private boolean admitStore(Association as) {
+        IndexQueueWorker worker = IndexQueueWorker.getInstance();
+        if (!worker.isSaturated()) {
+            return true;
+        }
+        String policy = BACKPRESSURE_AET_POLICIES.getOrDefault(as.getCallingAET(), BACKPRESSURE_POLICY);
+        if (policy.equals("reject")) {
+            LOG.debug("Index queue saturated, rejecting object from {}", as.getCallingAET());
+            return false;
+        }
+        try {
+            if (worker.awaitCapacity(BACKPRESSURE_MAX_DELAY)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.warn("Index queue still saturated after {} ms, rejecting object from {}", BACKPRESSURE_MAX_DELAY,
+                as.getCallingAET());
+        return false;
+    }
+
+    /** Parse a list of AE title policies, in the form <tt>AET1=policy,AET2=policy</tt>. */
+    private static Map<String, String> parseAETPolicies(String value) {
+        Map<String, String> policies = new HashMap<>();
+        for (String entry : value.split(",")) {
+            int i = entry.indexOf('=');
+            if (i > 0) {
+                policies.put(entry.substring(0, i).trim(), entry.substring(i + 1).trim().toLowerCase());
+            }
+        }
+        return policies;
+    }
+
     @Override
     /**
      * Actually do the job of saving received file on disk
@@ -276,29 +365,50 @@ public class DicomStorage extends StorageService {
             String sendingAet = as.getCallingAET();
             String receivingAet = as.getCalledAET();
 
+            AtomicBoolean located = new AtomicBoolean();
+            Consumer<URI> enqueue = uri -> {
+                // the first location is the primary copy, which retrievals should be resolved to
+                if (located.compareAndSet(false, true)) {
+                    InstanceURIResolver.getInstance().put(iuid, uri);
+                }
+                // enqueue to index
+                ImageElement element = new ImageElement(uri, sendingAet, seqNum.getAndIncrement());
+                IndexQueueWorker.getInstance().addElement(element);
+            };
+
+            if (streamToDisk || pipeline.canStream()) {
+                // parse only up to the pixel data, and pass the rest of the received bytes along as they arrive
+                DicomObject fmi = new BasicDicomObject();
+                fmi.initFileMetaInformation(cuid, iuid, tsuid);
+                putProvenance(fmi, sendingAet, receivingAet);
+                try {
+                    DicomStreamReceiver receiver = new DicomStreamReceiver(dataStream, tsuid, fmi);
+                    DicomObject header = receiver.getHeader();
+                    if (!iuid.equals(header.getString(Tag.SOPInstanceUID))) {
+                        LOG.warn("SOP Instance UID {} in the dataset from {} does not match the request's {}",
+                                header.getString(Tag.SOPInstanceUID), sendingAet, iuid);
+                    }
+                    if (streamToDisk) {
+                        URI uri = writeToDisk(receiver, header, iuid);
+                        enqueue.accept(uri);
+                        pipeline.replicate(uri, enqueue);
+                    } else {
+                        pipeline.store(new DicomInputStream(new BufferedInputStream(receiver.asPart10Stream())),
+                                enqueue);
+                    }
+                } finally {
+                    // in case the storage did not read it all
+                    dataStream.skipAll();
+                }
+                return;
+            }
+
             DicomObject d = dataStream.readDataset();
 
             d.initFileMetaInformation(cuid, iuid, tsuid);
+            putProvenance(d.fileMetaInfo(), sendingAet, receivingAet);
 
-            // save provenance to FMI
-            if (settings.getDicomServicesSettings().getStorageSettings().isSaveAETitles()) {
-                // constants are missing in dcm4che 2
-                final int TAG_SENDING_APPLICATION_ENTITY_TITLE = 0x0002_0017;
-                final int TAG_RECEIVING_APPLICATION_ENTITY_TITLE = 0x0002_0018;
-                d.fileMetaInfo().putString(TAG_SENDING_APPLICATION_ENTITY_TITLE, VR.AE, sendingAet);
-                d.fileMetaInfo().putString(TAG_RECEIVING_APPLICATION_ENTITY_TITLE, VR.AE, receivingAet);
-            }
-
-            Iterable<StorageInterface> plugins = PluginController.getInstance().getStoragePlugins(true);
-
-            for (StorageInterface storage : plugins) {
-                URI uri = storage.store(d);
-                if (uri != null) {
-                    // enqueue to index
-                    ImageElement element = new ImageElement(uri, as.getCallingAET(), seqNum.getAndIncrement());
-                    IndexQueueWorker.getInstance().addElement(element);
-                }
-            }
+            pipeline.store(d, enqueue);
 
         } catch (Exception e) {
             LOG.error("DICOM storage service failure:", e);
@@ -306,6 +416,62 @@ public class DicomStorage extends StorageService {
         }
     }
 
+    /** Write a received object to a file in the archive's main directory,
+     * at <tt>StudyInstanceUID/SeriesInstanceUID/SOPInstanceUID.dcm</tt>.
+     * The file is written under a temporary name and then moved into place,
+     * so that a partially written file is never indexed.
+     *
+     * @return the location of the file
+     * @throws IOException if the file could not be written, or would land outside the main directory
+     */
+    private URI writeToDisk(DicomStreamReceiver receiver, DicomObject header, String iuid) throws IOException {
+        Path root = Paths.get(path).toAbsolutePath().normalize();
+        Path dir = root.resolve(fileName(header.getString(Tag.StudyInstanceUID)))
+                .resolve(fileName(header.getString(Tag.SeriesInstanceUID)));
+        Path target = dir.resolve(fileName(iuid) + ".dcm");
+        if (!target.normalize().startsWith(root)) {
+            throw new IOException("Refusing to store " + iuid + " outside of the main directory");
+        }
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, ".", ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long size = receiver.writeTo(channel);
+                LOG.debug("Wrote {} bytes to {}", size, target);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        return target.toUri();
+    }
+
+    /** Map a UID to a file name. Valid UIDs are kept as they are,
+     * anything else is mapped to a name derived from it which cannot escape a directory.
+     */
+    static String fileName(String uid) {
+        if (uid == null || uid.trim().isEmpty()) {
+            return "unknown";
+        }
+        uid = uid.trim();
+        if (uid.length() <= 64 && UID_PATTERN.matcher(uid).matches()) {
+            return uid;
+        }
+        return "x" + UUID.nameUUIDFromBytes(uid.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Save the provenance of the object to its file meta information, if enabled in the settings. */
+    private void putProvenance(DicomObject fmi, String sendingAet, String receivingAet) {
+        if (settings.getDicomServicesSettings().getStorageSettings().isSaveAETitles()) {
+            // constants are missing in dcm4che 2
+            final int TAG_SENDING_APPLICATION_ENTITY_TITLE = 0x0002_0017;
+            final int TAG_RECEIVING_APPLICATION_ENTITY_TITLE = 0x0002_0018;
+            fmi.putString(TAG_SENDING_APPLICATION_ENTITY_TITLE, VR.AE, sendingAet);
+            fmi.putString(TAG_RECEIVING_APPLICATION_ENTITY_TITLE, VR.AE, receivingAet);
+        }
+    }
+
     /**
      * A C-STORE entry.
      * For Each C-STORE RQ, an ImageElement is created
@@ -321,6 +487,7 @@ public class DicomStorage extends StorageService {
         private final URI uri;
         private final String callingAET;
         private final long seqNumber;
+        private final long enqueueTime = System.nanoTime();
 
         ImageElement(URI uri, String callingAET, long seqNumber) {
             Objects.requireNonNull(uri);
@@ -342,6 +509,11 @@ public class DicomStorage extends StorageService {
             return seqNumber;
         }
 
+        /** @return the time of creation of this element, in System.nanoTime() units */
+        public long getEnqueueTime() {
+            return enqueueTime;
+        }
+
         @Override
         public int compareTo(ImageElement other) {
             return compareElementsImpl(DicomStorage.this.priorityAETs, this.callingAET, this.seqNumber,
@@ -381,8 +553,15 @@ public class DicomStorage extends StorageService {
      * @throws java.io.IOException
      */
     public void start() throws IOException {
+        IndexQueueWorker worker = IndexQueueWorker.getInstance();
+        // re-enqueue the objects stored but not indexed before the last shutdown
+        for (IndexJournal.Entry entry : worker.openJournal()) {
+            worker.addRecoveredElement(new ImageElement(entry.getUri(), entry.getCallingAET(),
+                    entry.getSequenceNumber()));
+        }
+        seqNum.accumulateAndGet(worker.getNextSequenceNumber(), Math::max);
         device.startListening(executor);
-        IndexQueueWorker.getInstance().start();
+        worker.start();
     }
 
     /**
@@ -390,5 +569,6 @@ public class DicomStorage extends StorageService {
      */
     public void stop() {
         device.stopListening();
+        pipeline.shutdown();
     }
 }
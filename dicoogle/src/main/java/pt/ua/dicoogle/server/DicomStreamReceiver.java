@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+
+/** Receives a DICOM dataset as a stream, without reading its pixel data into memory.
+ *
+ * Only the attributes before the pixel data are parsed, which is enough to route and name the object.
+ * The bytes read while parsing them are kept, so that the whole object can then be written
+ * as it was received, after its file meta information, either to a file channel
+ * or as a DICOM Part 10 input stream.
+ *
+ * An instance can only be used to write the object once.
+ */
+final class DicomStreamReceiver {
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** Input stream which keeps a copy of all bytes read through it. */
+    private static final class RecordingInputStream extends FilterInputStream {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(4096);
+
+        RecordingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                record.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                record.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be recorded too
+            byte[] buf = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (r < 0) {
+                    break;
+                }
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private final InputStream data;
+    private final DicomObject fmi;
+    private final DicomObject header;
+    private final byte[] headerBytes;
+
+    /** Read the attributes of a dataset up to its pixel data.
+     *
+     * @param data the dataset stream, positioned at its beginning
+     * @param tsuid the transfer syntax of the dataset
+     * @param fmi the file meta information to write before the dataset
+     * @throws IOException if the attributes could not be read
+     */
+    DicomStreamReceiver(InputStream data, String tsuid, DicomObject fmi) throws IOException {
+        this.data = data;
+        this.fmi = fmi;
+        RecordingInputStream recorder = new RecordingInputStream(data);
+        // not closed, as that would close the underlying stream
+        DicomInputStream dis = new DicomInputStream(recorder, tsuid);
+        dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+        this.header = dis.readDicomObject();
+        this.headerBytes = recorder.record.toByteArray();
+    }
+
+    /** @return the attributes of the dataset before the pixel data */
+    DicomObject getHeader() {
+        return header;
+    }
+
+    /** @return the file meta information and the part of the dataset already read, in DICOM Part 10 format */
+    private byte[] head() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256 + headerBytes.length);
+        DicomOutputStream dos = new DicomOutputStream(out);
+        dos.writeFileMetaInformation(fmi);
+        dos.flush();
+        out.write(headerBytes);
+        return out.toByteArray();
+    }
+
+    /** Write the whole object to a file channel, in DICOM Part 10 format.
+     *
+     * @param channel the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if the object could not be read or written
+     */
+    long writeTo(FileChannel channel) throws IOException {
+        long written = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(head());
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        byte[] copy = new byte[COPY_BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(copy);
+        int n;
+        while ((n = data.read(copy)) != -1) {
+            buffer.clear().limit(n);
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+        }
+        return written;
+    }
+
+    /** @return a stream of the whole object, in DICOM Part 10 format, reading the rest of the dataset as needed */
+    InputStream asPart10Stream() throws IOException {
+        return new SequenceInputStream(new ByteArrayInputStream(head()), data);
+    }
+}
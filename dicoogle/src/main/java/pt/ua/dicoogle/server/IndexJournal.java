@@ -0,0 +1,421 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Write-ahead journal of the elements waiting in the index queue.
+ *
+ * Every element is recorded when it is enqueued, and marked as done once indexed.
+ * The journal is split in fixed-size segment files, of which only the one being written
+ * is memory-mapped, so that recording an element is a plain memory write.
+ * Records are not forced to disk unless <tt>dicoogle.index.journal.sync</tt> is true,
+ * leaving it to the operating system to write back the mapped pages, which survives
+ * a crash of the process but not of the machine.
+ *
+ * Old segments are deleted as soon as all of their elements are done. When there are more than
+ * <tt>maxSegments</tt> segments, the pending elements of the oldest one are copied
+ * to the current segment so that it can be deleted, which bounds the size of the journal
+ * even if a few elements remain pending for a long time.
+ *
+ * Each record is laid out as <tt>[length][crc32][type][sequence number][payload]</tt>.
+ * A zero length marks the end of a segment, and a record with a bad checksum
+ * (e.g. torn by a crash while being written) ends the replay of its segment.
+ *
+ * @see IndexQueueWorker
+ */
+final class IndexJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(IndexJournal.class);
+
+    private static final byte ENQUEUED = 1;
+    private static final byte DONE = 2;
+    /** length and checksum */
+    private static final int HEADER_SIZE = 8;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    /** An element recorded in the journal. */
+    static final class Entry {
+        private final long sequenceNumber;
+        private final URI uri;
+        private final String callingAET;
+
+        Entry(long sequenceNumber, URI uri, String callingAET) {
+            this.sequenceNumber = sequenceNumber;
+            this.uri = uri;
+            this.callingAET = callingAET;
+        }
+
+        long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        URI getUri() {
+            return uri;
+        }
+
+        String getCallingAET() {
+            return callingAET;
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        /** number of pending elements recorded in this segment */
+        int live = 0;
+
+        Segment(long id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    private static final class Pending {
+        final Entry entry;
+        Segment segment;
+
+        Pending(Entry entry, Segment segment) {
+            this.entry = entry;
+            this.segment = segment;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final boolean sync;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<Long, Pending> pending = new HashMap<>();
+    private final List<Entry> recovered;
+    private Segment current;
+    private long nextSequenceNumber = 0;
+    private boolean compacting = false;
+
+    /** Open the journal in the given directory, replaying the existing segments.
+     *
+     * @param dir the directory of the segment files, created if missing
+     * @param segmentSize the size of each segment file, in bytes
+     * @param maxSegments the number of segments above which pending elements are copied forward
+     * @param sync whether to force every record to disk
+     * @throws IOException if the journal could not be opened
+     */
+    IndexJournal(Path dir, int segmentSize, int maxSegments, boolean sync) throws IOException {
+        this.dir = dir;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.sync = sync;
+        Files.createDirectories(dir);
+        this.recovered = replay();
+        synchronized (this) {
+            roll();
+        }
+        if (!recovered.isEmpty()) {
+            logger.info("Recovered {} unfinished elements from the index journal", recovered.size());
+        }
+    }
+
+    /** @return the elements which were not done when the journal was opened, in sequence order */
+    List<Entry> getRecovered() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /** @return a sequence number greater than that of any element recorded so far */
+    synchronized long getNextSequenceNumber() {
+        return nextSequenceNumber;
+    }
+
+    /** @return the number of elements recorded and not yet done */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /** @return the number of segment files */
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Record an element added to the index queue.
+     *
+     * @param sequenceNumber the element's sequence number, unique among the pending elements
+     * @param uri the location of the stored object
+     * @param callingAET the AE title of the node which sent the object
+     * @throws IOException if the record could not be written
+     */
+    synchronized void append(long sequenceNumber, URI uri, String callingAET) throws IOException {
+        Entry entry = new Entry(sequenceNumber, uri, callingAET);
+        write(ENQUEUED, entry);
+        Pending previous = pending.put(sequenceNumber, new Pending(entry, current));
+        if (previous != null) {
+            previous.segment.live -= 1;
+        }
+        current.live += 1;
+        nextSequenceNumber = Math.max(nextSequenceNumber, sequenceNumber + 1);
+    }
+
+    /** Record that an element was indexed. Unknown sequence numbers are ignored.
+     *
+     * @param sequenceNumber the element's sequence number
+     * @throws IOException if the record could not be written
+     */
+    synchronized void done(long sequenceNumber) throws IOException {
+        Pending p = pending.remove(sequenceNumber);
+        if (p == null) {
+            return;
+        }
+        p.segment.live -= 1;
+        write(DONE, new Entry(sequenceNumber, null, null));
+        if (p.segment != current && p.segment.live == 0) {
+            compact();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (current != null) {
+            current.buffer.force();
+            current.channel.close();
+            current = null;
+        }
+    }
+
+    private void write(byte type, Entry entry) throws IOException {
+        byte[] aet = entry.callingAET == null ? null : entry.callingAET.getBytes(StandardCharsets.UTF_8);
+        byte[] uri = entry.uri == null ? null : entry.uri.toString().getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + (type == ENQUEUED ? 2 + aet.length + 4 + uri.length : 0);
+        if (HEADER_SIZE + length + 4 > segmentSize) {
+            throw new IOException("Journal record of " + length + " bytes does not fit in a segment");
+        }
+        // keep room for the end marker
+        if (current.buffer.remaining() < HEADER_SIZE + length + 4) {
+            roll();
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(type).putLong(entry.sequenceNumber);
+        if (type == ENQUEUED) {
+            body.putShort((short) aet.length).put(aet).putInt(uri.length).put(uri);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+
+        MappedByteBuffer buffer = current.buffer;
+        int start = buffer.position();
+        // write the length last, so that a partial record reads as the end of the segment
+        buffer.position(start + 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(body.array());
+        buffer.putInt(start, length);
+        if (sync) {
+            buffer.force();
+        }
+    }
+
+    /** Close the current segment and start writing to a new one. */
+    private void roll() throws IOException {
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        if (current != null) {
+            current.buffer.force();
+            current.channel.close();
+        }
+        Segment segment = new Segment(id, dir.resolve(PREFIX + id + SUFFIX));
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segments.put(id, segment);
+        current = segment;
+        compact();
+    }
+
+    /** Delete the old segments which are no longer needed, oldest first. */
+    private void compact() throws IOException {
+        if (compacting) {
+            return;
+        }
+        compacting = true;
+        try {
+            while (segments.size() > 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                if (oldest == current) {
+                    break;
+                }
+                if (oldest.live > 0) {
+                    if (segments.size() <= maxSegments) {
+                        break;
+                    }
+                    copyForward(oldest);
+                }
+                segments.remove(oldest.id);
+                try {
+                    Files.deleteIfExists(oldest.path);
+                } catch (IOException ex) {
+                    logger.warn("Could not delete index journal segment {}", oldest.path, ex);
+                }
+            }
+        } finally {
+            compacting = false;
+        }
+    }
+
+    /** Record again the pending elements of an old segment in the current one. */
+    private void copyForward(Segment segment) throws IOException {
+        List<Pending> moved = new ArrayList<>(segment.live);
+        for (Pending p : pending.values()) {
+            if (p.segment == segment) {
+                moved.add(p);
+            }
+        }
+        moved.sort(Comparator.comparingLong(p -> p.entry.sequenceNumber));
+        for (Pending p : moved) {
+            write(ENQUEUED, p.entry);
+            p.segment.live -= 1;
+            p.segment = current;
+            current.live += 1;
+        }
+        logger.debug("Copied {} pending elements forward from index journal segment {}", moved.size(), segment.id);
+    }
+
+    /** Read all existing segments, rebuilding the set of pending elements. */
+    private List<Entry> replay() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        }
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            try {
+                long id = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                segments.put(id, new Segment(id, p));
+            } catch (NumberFormatException ex) {
+                logger.warn("Ignoring unexpected file {} in the index journal", p);
+            }
+        }
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+
+        List<Entry> entries = new ArrayList<>(pending.size());
+        for (Pending p : pending.values()) {
+            entries.add(p.entry);
+        }
+        entries.sort(Comparator.comparingLong(Entry::getSequenceNumber));
+        return entries;
+    }
+
+    private void replay(Segment segment) throws IOException {
+        int records = 0;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - 4) {
+                    break;
+                }
+                int checksum = buffer.getInt();
+                byte[] body = new byte[length];
+                buffer.get(body);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warn("Corrupt record in index journal segment {}, ignoring the rest of it", segment.path);
+                    break;
+                }
+                if (!apply(segment, ByteBuffer.wrap(body))) {
+                    logger.warn("Unreadable record in index journal segment {}", segment.path);
+                }
+                records += 1;
+            }
+        }
+        logger.debug("Replayed {} records from index journal segment {}", records, segment.path);
+    }
+
+    private boolean apply(Segment segment, ByteBuffer body) {
+        try {
+            byte type = body.get();
+            long seq = body.getLong();
+            if (type == ENQUEUED) {
+                byte[] aet = new byte[body.getShort()];
+                body.get(aet);
+                byte[] uri = new byte[body.getInt()];
+                body.get(uri);
+                Entry entry = new Entry(seq, new URI(new String(uri, StandardCharsets.UTF_8)),
+                        new String(aet, StandardCharsets.UTF_8));
+                Pending previous = pending.put(seq, new Pending(entry, segment));
+                if (previous != null) {
+                    previous.segment.live -= 1;
+                }
+                segment.live += 1;
+                nextSequenceNumber = Math.max(nextSequenceNumber, seq + 1);
+            } else if (type == DONE) {
+                Pending p = pending.remove(seq);
+                if (p != null) {
+                    p.segment.live -= 1;
+                }
+            } else {
+                return false;
+            }
+            return true;
+        } catch (URISyntaxException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /** @return a description of the journal's state, for logging */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("IndexJournal{dir=").append(dir).append(", pending=")
+                .append(pending.size()).append(", segments=[");
+        for (Iterator<Segment> it = segments.values().iterator(); it.hasNext();) {
+            Segment s = it.next();
+            sb.append(s.id).append(':').append(s.live);
+            if (it.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -18,18 +18,60 @@
  */
 package pt.ua.dicoogle.server;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.server.DicomStorage.ImageElement;
+import pt.ua.dicoogle.utils.Platform;
 
 /** Index worker actor.
  * 
  * This singleton actor module is responsible for
  * dispatching indexing tasks for the DICOM files received via C-STORE.
+ *
+ * Elements are taken from the priority queue in micro-batches,
+ * bounded by size (<tt>dicoogle.index.batchSize</tt>) and by the time waited
+ * for more elements (<tt>dicoogle.index.batchDelay</tt>, in milliseconds).
+ * Each batch is grouped by storage scheme and handed to every indexer at once,
+ * and up to <tt>dicoogle.index.batchWorkers</tt> batches are indexed in parallel.
+ * A new batch is only taken once a worker is free,
+ * so that elements wait in the priority queue and keep their order.
+ * When <tt>dicoogle.index.async</tt> is false, batches are indexed one at a time.
+ *
+ * The queue becomes saturated once it reaches <tt>dicoogle.index.queue.highWatermark</tt> elements,
+ * and stays so until it drains down to <tt>dicoogle.index.queue.lowWatermark</tt>.
+ * The storage service is expected to hold back new objects while the queue is saturated
+ * (see {@link #awaitCapacity(long)}).
+ *
+ * Unless <tt>dicoogle.index.journal</tt> is false, queued elements are recorded in an
+ * {@link IndexJournal} (in <tt>dicoogle.index.journal.dir</tt>) until they are indexed,
+ * so that the elements still queued when the server stops are indexed on the next startup.
+ * Elements which fail to be indexed are queued again, up to <tt>dicoogle.index.maxRetries</tt> times,
+ * and are otherwise left pending in the journal.
+ *
+ * Once a batch is indexed, the elements which were indexed successfully are handed over
+ * to the registered index listeners (see {@link #addIndexListener(Consumer)}),
+ * so that further work can be done on them.
  * 
  * @see DicomStorage
  */
@@ -37,6 +79,28 @@ public final class IndexQueueWorker {
 
     private static final boolean ASYNC_INDEX = Boolean.valueOf(System.getProperty("dicoogle.index.async", "true"));
 
+    private static final int BATCH_SIZE = Integer.parseInt(System.getProperty("dicoogle.index.batchSize", "64"));
+    private static final long BATCH_DELAY = Long.parseLong(System.getProperty("dicoogle.index.batchDelay", "200"));
+    private static final int BATCH_WORKERS =
+            ASYNC_INDEX ? Integer.parseInt(System.getProperty("dicoogle.index.batchWorkers", "2")) : 1;
+
+    private static final int HIGH_WATERMARK =
+            Integer.parseInt(System.getProperty("dicoogle.index.queue.highWatermark", "10000"));
+    private static final int LOW_WATERMARK =
+            Math.min(HIGH_WATERMARK, Integer.parseInt(System.getProperty("dicoogle.index.queue.lowWatermark", "8000")));
+
+    private static final int MAX_RETRIES = Integer.parseInt(System.getProperty("dicoogle.index.maxRetries", "2"));
+
+    private static final boolean JOURNAL = Boolean.valueOf(System.getProperty("dicoogle.index.journal", "true"));
+    private static final String JOURNAL_DIR =
+            System.getProperty("dicoogle.index.journal.dir", Platform.homePath() + "index-journal");
+    private static final int JOURNAL_SEGMENT_SIZE =
+            Integer.parseInt(System.getProperty("dicoogle.index.journal.segmentSize", "8388608"));
+    private static final int JOURNAL_MAX_SEGMENTS =
+            Integer.parseInt(System.getProperty("dicoogle.index.journal.maxSegments", "4"));
+    private static final boolean JOURNAL_SYNC =
+            Boolean.valueOf(System.getProperty("dicoogle.index.journal.sync", "false"));
+
     private static final org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(IndexQueueWorker.class);
 
     private static IndexQueueWorker instance;
@@ -51,7 +115,29 @@ public final class IndexQueueWorker {
     private IndexQueueWorker() {}
 
     private final BlockingQueue<ImageElement> queue = new PriorityBlockingQueue<>();
+    private final Semaphore freeWorkers = new Semaphore(Math.max(1, BATCH_WORKERS));
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final ExecutorService batchExecutor = Executors.newFixedThreadPool(Math.max(1, BATCH_WORKERS), r -> {
+        Thread t = new Thread(r, "indexer-batch-worker-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
     private Thread thread;
+    private volatile IndexJournal journal;
+    private boolean journalOpened = false;
+
+    private final List<Consumer<List<URI>>> indexListeners = new CopyOnWriteArrayList<>();
+    /** number of failed indexing attempts, by sequence number of the elements queued again */
+    private final Map<Long, Integer> retries = new ConcurrentHashMap<>();
+
+    private final Object capacityLock = new Object();
+    private volatile boolean saturated = false;
+
+    // metrics
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong dequeuedCount = new AtomicLong();
+    private final AtomicLong totalTimeInQueue = new AtomicLong();
+    private final AtomicLong maxTimeInQueue = new AtomicLong();
 
     public synchronized void start() {
         if (thread == null || !thread.isAlive()) {
@@ -65,22 +151,308 @@ public final class IndexQueueWorker {
         }
     }
 
+    /** Open the index journal, if enabled and not yet open.
+     *
+     * @return the elements which were left unfinished the last time the journal was used,
+     * in sequence order (empty if the journal was already open)
+     */
+    public synchronized List<IndexJournal.Entry> openJournal() {
+        if (!JOURNAL || journalOpened) {
+            return Collections.emptyList();
+        }
+        journalOpened = true;
+        try {
+            IndexJournal j =
+                    new IndexJournal(Paths.get(JOURNAL_DIR), JOURNAL_SEGMENT_SIZE, JOURNAL_MAX_SEGMENTS, JOURNAL_SYNC);
+            journal = j;
+            return j.getRecovered();
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Could not open the index journal in {}, queued elements will not survive a restart", JOURNAL_DIR,
+                    ex);
+            return Collections.emptyList();
+        }
+    }
+
+    /** @return a sequence number greater than that of any element in the journal, or 0 without a journal */
+    public long getNextSequenceNumber() {
+        IndexJournal j = journal;
+        return j == null ? 0 : j.getNextSequenceNumber();
+    }
+
     /** Push this DICOM element to be indexed. */
     public void addElement(ImageElement element) {
+        IndexJournal j = journal;
+        if (j != null) {
+            try {
+                j.append(element.getSequenceNumber(), element.getUri(), element.getCallingAET());
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Could not record {} in the index journal", element.getUri(), ex);
+            }
+        }
+        enqueue(element);
+    }
+
+    /** Push an element recovered from the index journal, which is already recorded there. */
+    void addRecoveredElement(ImageElement element) {
+        enqueue(element);
+    }
+
+    private void enqueue(ImageElement element) {
         queue.add(element);
+        enqueuedCount.incrementAndGet();
+        if (!saturated && queue.size() >= HIGH_WATERMARK) {
+            saturated = true;
+            LOG.warn("Index queue reached {} elements, holding back storage until it drains to {}", HIGH_WATERMARK,
+                    LOW_WATERMARK);
+        }
+    }
+
+    /** Register a listener of indexed elements.
+     *
+     * The listener is called from an index worker thread once each batch is indexed,
+     * with the URIs of the elements which were indexed successfully,
+     * and should hand over any lengthy work to another thread.
+     *
+     * @param listener the listener of indexed elements
+     */
+    public void addIndexListener(Consumer<List<URI>> listener) {
+        indexListeners.add(listener);
+    }
+
+    /** Unregister a listener of indexed elements. */
+    public void removeIndexListener(Consumer<List<URI>> listener) {
+        indexListeners.remove(listener);
+    }
+
+    /** Check whether the queue is saturated, so that no more elements should be added.
+     * @return true if the queue went over the high watermark and did not yet drain to the low watermark
+     */
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    /** Wait until the queue is no longer saturated.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return true if the queue has capacity, false if it remained saturated for the whole time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCapacity(long timeout) throws InterruptedException {
+        if (!saturated) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (capacityLock) {
+            while (saturated) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(capacityLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    private void onDequeued(List<ImageElement> batch) {
+        long now = System.nanoTime();
+        for (ImageElement element : batch) {
+            long t = now - element.getEnqueueTime();
+            totalTimeInQueue.addAndGet(t);
+            maxTimeInQueue.accumulateAndGet(t, Math::max);
+        }
+        dequeuedCount.addAndGet(batch.size());
+        if (saturated && queue.size() <= LOW_WATERMARK) {
+            synchronized (capacityLock) {
+                saturated = false;
+                capacityLock.notifyAll();
+            }
+            LOG.info("Index queue drained to {} elements, resuming storage", queue.size());
+        }
+    }
+
+    /** @return the number of elements waiting to be indexed */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** @return how long the next element in the queue has been waiting, in milliseconds */
+    public long getLag() {
+        ImageElement head = queue.peek();
+        if (head == null) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.getEnqueueTime());
+    }
+
+    /** @return the average time spent by elements in the queue, in milliseconds */
+    public double getAverageTimeInQueue() {
+        long n = dequeuedCount.get();
+        return n == 0 ? 0 : totalTimeInQueue.get() / (n * 1e6);
+    }
+
+    /** @return the longest time spent by an element in the queue, in milliseconds */
+    public long getMaxTimeInQueue() {
+        return TimeUnit.NANOSECONDS.toMillis(maxTimeInQueue.get());
+    }
+
+    /** @return the number of elements added to the queue since startup */
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /** @return the number of elements taken from the queue for indexing since startup */
+    public long getDequeuedCount() {
+        return dequeuedCount.get();
+    }
+
+    public int getHighWatermark() {
+        return HIGH_WATERMARK;
+    }
+
+    public int getLowWatermark() {
+        return LOW_WATERMARK;
+    }
+
+    /** Take the next batch of elements, in priority order.
+     * Blocks until at least one element is available.
+     */
+    private List<ImageElement> takeBatch() throws InterruptedException {
+        List<ImageElement> batch = new ArrayList<>(BATCH_SIZE);
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_DELAY);
+        while (batch.size() < BATCH_SIZE) {
+            // take whatever is already there before waiting for more
+            if (queue.drainTo(batch, BATCH_SIZE - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            ImageElement element = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (element == null) {
+                break;
+            }
+            batch.add(element);
+        }
+        return batch;
+    }
+
+    /** Index a batch of elements, blocking until all indexers are done with it,
+     * and mark the successfully indexed ones as done in the journal.
+     * Elements of a failed indexing task are queued again (see {@link #retry(ImageElement)}).
+     */
+    private void indexBatch(List<ImageElement> batch) {
+        // group by storage scheme, keeping the priority order within each group
+        Map<String, List<ImageElement>> byScheme = new LinkedHashMap<>();
+        for (ImageElement element : batch) {
+            byScheme.computeIfAbsent(element.getUri().getScheme(), k -> new ArrayList<>()).add(element);
+        }
+        Map<String, List<Task<?>>> tasksByScheme = new LinkedHashMap<>();
+        for (Map.Entry<String, List<ImageElement>> e : byScheme.entrySet()) {
+            List<URI> uris = new ArrayList<>(e.getValue().size());
+            for (ImageElement element : e.getValue()) {
+                uris.add(element.getUri());
+            }
+            tasksByScheme.put(e.getKey(), new ArrayList<>(PluginController.getInstance().index(uris)));
+        }
+
+        // an element is only indexed if all indexing tasks of its group succeeded
+        List<ImageElement> indexed = new ArrayList<>(batch.size());
+        List<ImageElement> failed = new ArrayList<>();
+        for (Map.Entry<String, List<Task<?>>> e : tasksByScheme.entrySet()) {
+            boolean ok = true;
+            for (Task<?> task : e.getValue()) {
+                try {
+                    task.get();
+                } catch (ExecutionException ex) {
+                    LOG.error("Indexing task {} failed", task.getName(), ex.getCause());
+                    ok = false;
+                } catch (InterruptedException ex) {
+                    // left in the journal, to be indexed again on the next startup
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (ok) {
+                indexed.addAll(byScheme.get(e.getKey()));
+            } else {
+                failed.addAll(byScheme.get(e.getKey()));
+            }
+        }
+
+        IndexJournal j = journal;
+        if (j != null) {
+            try {
+                for (ImageElement element : indexed) {
+                    j.done(element.getSequenceNumber());
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Could not mark indexed elements in the index journal", ex);
+            }
+        }
+        for (ImageElement element : indexed) {
+            retries.remove(element.getSequenceNumber());
+        }
+        for (ImageElement element : failed) {
+            retry(element);
+        }
+
+        if (!indexListeners.isEmpty() && !indexed.isEmpty()) {
+            List<URI> uris = new ArrayList<>(indexed.size());
+            for (ImageElement element : indexed) {
+                uris.add(element.getUri());
+            }
+            for (Consumer<List<URI>> listener : indexListeners) {
+                try {
+                    listener.accept(uris);
+                } catch (RuntimeException ex) {
+                    LOG.warn("Index listener failed", ex);
+                }
+            }
+        }
+    }
+
+    /** Queue again an element which failed to be indexed,
+     * up to <tt>dicoogle.index.maxRetries</tt> times.
+     * Past that, the element is left pending in the journal (if any),
+     * to be indexed again on the next startup.
+     */
+    private void retry(ImageElement element) {
+        int attempts = retries.merge(element.getSequenceNumber(), 1, Integer::sum);
+        if (attempts <= MAX_RETRIES) {
+            LOG.debug("Queueing {} again for indexing (retry {} of {})", element.getUri(), attempts, MAX_RETRIES);
+            enqueue(element);
+        } else {
+            retries.remove(element.getSequenceNumber());
+            LOG.warn("Giving up on indexing {} after {} retries", element.getUri(), MAX_RETRIES);
+        }
     }
 
     private final Runnable WORKER_RUN = () -> {
         while (true) {
             try {
-                // Fetch an element from the priority queue
-                ImageElement element = queue.take();
-                URI exam = element.getUri();
-                if (ASYNC_INDEX) {
-                    PluginController.getInstance().index(exam);
-                } else {
-                    PluginController.getInstance().indexBlocking(exam);
+                // wait for a free batch worker before taking elements from the priority queue
+                freeWorkers.acquire();
+                List<ImageElement> batch;
+                try {
+                    batch = takeBatch();
+                } catch (InterruptedException | RuntimeException ex) {
+                    freeWorkers.release();
+                    throw ex;
                 }
+                onDequeued(batch);
+                LOG.debug("Indexing batch of {} elements", batch.size());
+                batchExecutor.execute(() -> {
+                    try {
+                        indexBatch(batch);
+                    } catch (Exception ex) {
+                        LOG.error("Unexpected error while indexing batch", ex);
+                    } finally {
+                        freeWorkers.release();
+                    }
+                });
             } catch (InterruptedException ex) {
                 LOG.warn("Indexer queue worker thread interrupted", ex);
             } catch (Exception ex) {
@@ -25,31 +25,31 @@
 package pt.ua.dicoogle.server;
 
 import pt.ua.dicoogle.sdk.datastructs.dim.*;
-import pt.ua.dicoogle.sdk.datastructs.dim.Series;
 
 import java.io.*;
 
 import org.dcm4che2.data.*;
 import org.slf4j.Logger;
-import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import org.slf4j.LoggerFactory;
 
-import org.dcm4che2.io.DicomInputStream;
-
-
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
 
 /**
+ * Results are pulled lazily from each DIM provider, one provider at a time,
+ * so that the first C-FIND responses can be sent
+ * before the remaining providers are consumed.
+ * At the study and series levels, results are aggregated incrementally
+ * (see {@link CFindAggregator}) instead of building a full DIM tree.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  * @since 17 Fev 2009
@@ -60,23 +60,25 @@ public class SearchDicomResult implements Iterator<DicomObject> {
         PATIENT, STUDY, SERIE, IMAGE
     }
 
+    /** Maximum number of distinct study or series entries of a query */
+    private static final int MAX_ENTRIES = Integer.parseInt(System.getProperty("dicoogle.cfind.maxEntries", "100000"));
+
     private final QUERYLEVEL queryLevel;
 
+    /** The query tasks, one per DIM provider */
+    private final List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+    /** Lazy iterator over the results of all providers */
+    private final Iterator<SearchResult> results;
+    /** Study or series aggregator, null at the image level */
+    private final CFindAggregator aggregator;
+    /** Image level response builder, null at the other levels */
+    private final CFindResponseBuilder imageResponseBuilder;
 
-    /**
-    * Get IndexCore
-    */
-
-    Collection<SearchResult> list = null;
-    List<Patient> patientList = new ArrayList<>();
-    List<Study> studyList = new ArrayList<>();
-    List<Series> seriesList = new ArrayList<>();
-    Iterator it = null;
+    private volatile boolean cancelled = false;
+    private volatile boolean outOfResources = false;
 
     String currentFile;
 
-
-
     private static ConcatTags concatTags = null;
     private static boolean concatTagsCheck = true;
 
@@ -84,12 +86,23 @@ public class SearchDicomResult implements Iterator<DicomObject> {
     private static final Logger logger = LoggerFactory.getLogger(SearchDicomResult.class);
 
     public SearchDicomResult(String searchQuery, boolean isNetwork, ArrayList<String> extrafields, QUERYLEVEL level) {
+        this(searchQuery, isNetwork, extrafields, level, null);
+    }
 
-        queryLevel = level;
+    /**
+     * @param searchQuery the query string
+     * @param isNetwork whether the query comes from the DICOM network
+     * @param extrafields the fields to retrieve from the query providers
+     * @param level the query/retrieve level
+     * @param keys the C-FIND identifier, used to build the IMAGE level responses
+     * (the fields needed for each requested key are retrieved as well)
+     * and to tell whether the study or series counters are requested;
+     * can be null for a default set of keys
+     */
+    public SearchDicomResult(String searchQuery, boolean isNetwork, ArrayList<String> extrafields, QUERYLEVEL level,
+            DicomObject keys) {
 
-        /**
-         * Get the array list of resulst match searchQuery
-         */
+        queryLevel = level;
 
         logger.info("QUERY: " + searchQuery);
         logger.info("QUERYLEVEL: " + queryLevel);
@@ -109,92 +122,82 @@ public class SearchDicomResult implements Iterator<DicomObject> {
         for (String s : extrafields) {
             extraFields.put(s, s);
         }
-
-        JointQueryTask holder = new JointQueryTask() {
-
-            @Override
-            public void onReceive(Task<Iterable<SearchResult>> e) {
-                // TODO Auto-generated method stub
-
+        if (level == QUERYLEVEL.IMAGE) {
+            imageResponseBuilder = new CFindResponseBuilder(keys);
+            for (String s : imageResponseBuilder.getFieldNames()) {
+                extraFields.put(s, s);
             }
-
-            @Override
-            public void onCompletion() {
-                // TODO Auto-generated method stub
-
-            }
-        };
+        } else {
+            imageResponseBuilder = null;
+        }
 
         // The method will retrieve all DICOM active query plugins (with empty list at argument)
         List<String> dicomQueryProviders = PluginController.getInstance().filterDicomQueryProviders(new ArrayList<>());
-        holder = PluginController.getInstance().query(holder, dicomQueryProviders, searchQuery, extraFields);
-
-        try {
-            it = holder.get().iterator();
-
-            list = new ArrayList<SearchResult>();
-            while (it.hasNext()) {
-                list.add((SearchResult) it.next());
-            }
-        } catch (InterruptedException | ExecutionException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
+        // all providers are queried in parallel, but consumed one at a time
+        for (String provider : dicomQueryProviders) {
+            tasks.add(PluginController.getInstance().query(provider, searchQuery, extraFields));
         }
-
-        if (list != null)
-            it = list.iterator();
+        results = new ProviderResultIterator();
 
         if (level == QUERYLEVEL.PATIENT || level == QUERYLEVEL.STUDY) {
-            DIMGeneric dimModel = null;
-            try {
-                if (concatTags == null)
-                    dimModel = new DIMGeneric(list);
-                else
-                    dimModel = new DIMGeneric(concatTags, list);
-
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
-
-            ArrayList<Patient> listPatients = dimModel.getPatients();
-
-            for (Patient p : listPatients) {
-                studyList.addAll(p.getStudies());
-            }
-
-            it = studyList.iterator();
-
+            aggregator = new CFindAggregator("StudyInstanceUID",
+                    keys == null || keys.contains(Tag.NumberOfStudyRelatedInstances)
+                            || keys.contains(Tag.NumberOfStudyRelatedSeries) || keys.contains(Tag.ModalitiesInStudy),
+                    MAX_ENTRIES);
         } else if (level == QUERYLEVEL.SERIE) {
+            aggregator = new CFindAggregator("SeriesInstanceUID",
+                    keys == null || keys.contains(Tag.NumberOfSeriesRelatedInstances), MAX_ENTRIES);
+        } else {
+            aggregator = null;
+        }
+    }
 
-            DIMGeneric dimModel = null;
-            try {
-                if (concatTags == null)
-                    dimModel = new DIMGeneric(list);
-                else
-                    dimModel = new DIMGeneric(concatTags, list);
-            } catch (Exception ex) {}
-
-
-            ArrayList<Patient> listPatients = dimModel.getPatients();
-            for (Patient p : listPatients) {
-                studyList.addAll(p.getStudies());
-                for (Study s : p.getStudies()) {
-                    seriesList.addAll(s.getSeries());
-                }
+    /** Stop retrieving results from the query providers.
+     * Any further call to {@link #hasNext()} will return false.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        for (Task<Iterable<SearchResult>> t : tasks) {
+            if (!t.isDone()) {
+                t.cancel(true);
             }
-            it = seriesList.iterator();
-
         }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
 
+    /** @return whether the query was stopped for having more than
+     * <tt>dicoogle.cfind.maxEntries</tt> distinct studies or series
+     */
+    public boolean isOutOfResources() {
+        return outOfResources;
     }
 
     @Override
     public boolean hasNext() {
-        if (it != null) {
-            return it.hasNext();
-        } else {
-            return false;
+        if (aggregator == null) {
+            return !cancelled && results.hasNext();
+        }
+        while (!cancelled) {
+            if (aggregator.hasComplete()) {
+                return true;
+            }
+            if (results.hasNext()) {
+                if (!aggregator.add(results.next())) {
+                    logger.warn("C-FIND stopped for matching more than {} entries", MAX_ENTRIES);
+                    outOfResources = true;
+                    cancel();
+                }
+            } else {
+                // end of stream, every entry is now complete
+                aggregator.flush();
+                return aggregator.hasComplete();
+            }
         }
+        aggregator.clear();
+        return false;
     }
 
     public String getCurrentFile() {
@@ -204,195 +207,204 @@ public class SearchDicomResult implements Iterator<DicomObject> {
     @Override
     public DicomObject next() {
 
-        // TODO: this code need to be refactored
-        // C-FIND RSP should be builded based on Search Result,
-        // instead opening the file to build DicomObject.
-
-        /** 
-         * Get the fullpath of images 
-         */
-        String path = ServerSettingsManager.getSettings().getArchiveSettings().getMainDirectory();
-
-        // DebugManager.getSettings().debug("Path of DICOM: "+path);
-
-
-        if (it != null && it.hasNext()) {
-            Object next = it.next();
-            if (queryLevel == QUERYLEVEL.IMAGE) {
-
-                SearchResult sR = (SearchResult) next;
-
-                path = sR.getURI().toString();
-                currentFile = path;
-                // DebugManager.getSettings().debug("-> Next::: " + next.toString());
-                DicomInputStream din = null;
-                /*try
-                {
-                    if (path.endsWith(".gz"))
-                        din = new DicomInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(new File(path)), 256)));
-                    else
-                        din = new DicomInputStream(new File(path));
-                   
-                    
-                    URI uri = new URI(path);
-                    //System.out.println("Trying to find Plugin for: "+uri.toString());
-                    StorageInterface plug = PluginController.getSettings().getStorageForSchema(uri);
-                    
-                    if(plug != null){
-                        //System.out.println("Found Plugin For: "+uri.toString());
-                        
-                        Iterable<StorageInputStream> stream = plug.at(uri);
-                        for(StorageInputStream str : stream)
-                            
-                            try {
-                                din = new DicomInputStream(str.getInputStream());
-                            } catch (IOException ex) {
-                                LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                            }
-                    }
-                    
-                    //DebugManager.getSettings().debug("Imagem: "+path+"..."+next);
-                } catch (URISyntaxException ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
-                */
-
-                /** This code is refactored in a experimental branch
-                 * Building a BasicDicomObject based on Indexing
-                 * It will increase the performace
-                 */
-                BasicDicomObject result = new BasicDicomObject();
-
-                // Fill fields of study now
-
-
-                // System.out.println("Series : "+ serieTmp);
-                result.putString(Tag.InstitutionName, VR.CS, (String) sR.get("InstitutionName"));
-
-                result.putString(Tag.StudyInstanceUID, VR.UI, (String) sR.get("StudyInstanceUID"));
-                result.putString(Tag.SeriesInstanceUID, VR.UI, (String) sR.get("SeriesInstanceUID"));
-                result.putString(Tag.SOPInstanceUID, VR.UI, (String) sR.get("SOPInstanceUID"));
-                result.putString(Tag.SeriesDescription, VR.LO, (String) sR.get("SeriesDescription"));
-                result.putString(Tag.SeriesDate, VR.TM, (String) sR.get("SeriesDate"));
-                result.putString(Tag.SeriesTime, VR.TM, (String) sR.get("SeriesTime"));
-                result.putString(Tag.QueryRetrieveLevel, VR.LO, "IMAGE");
-
-                result.putString(Tag.Modality, VR.CS, (String) sR.get("Modality"));
-
-                String seriesNumber = String.valueOf(sR.get("SeriesNumber"));
-                if (seriesNumber.endsWith(".0")) {
-                    seriesNumber = seriesNumber.substring(0, seriesNumber.length() - 2);
-                }
-                result.putString(Tag.SeriesNumber, VR.IS, seriesNumber);
-
-
-                return result;
+        if (!hasNext()) {
+            return null;
+        }
 
-            } else if (queryLevel == QUERYLEVEL.STUDY || queryLevel == QUERYLEVEL.PATIENT) {
+        if (queryLevel == QUERYLEVEL.IMAGE) {
 
-                Study studyTmp = (Study) next;
-                BasicDicomObject result = new BasicDicomObject();
-                String patientName = studyTmp.getParent().getPatientName();
+            SearchResult sR = results.next();
+            currentFile = sR.getURI().toString();
+            return imageResponseBuilder.build(sR);
 
-                try {
-                    patientName =
-                            new String(studyTmp.getParent().getPatientName().getBytes("ISO-8859-1"), "ISO-8859-1");
-                } catch (Exception ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
-                try {
-                    result.putBytes(Tag.PatientName, VR.PN, patientName.getBytes("ISO-8859-1"));
-                } catch (Exception ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
+        } else if (queryLevel == QUERYLEVEL.STUDY || queryLevel == QUERYLEVEL.PATIENT) {
 
-                // System.out.println("PatientName:"+patientName);
-                result.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
-                result.putString(Tag.PatientSex, VR.LO, studyTmp.getParent().getPatientSex());
-                result.putString(Tag.PatientID, VR.LO, studyTmp.getParent().getPatientID());
-                result.putString(Tag.PatientBirthDate, VR.DA, studyTmp.getParent().getPatientBirthDate());
-                result.putString(Tag.StudyDate, VR.DA, studyTmp.getStudyData());
-                result.putString(Tag.StudyID, VR.SH, studyTmp.getStudyID());
-                result.putString(Tag.StudyTime, VR.TM, studyTmp.getStudyTime());
-                result.putString(Tag.AccessionNumber, VR.SH, studyTmp.getAccessionNumber());
-                result.putString(Tag.StudyInstanceUID, VR.UI, studyTmp.getStudyInstanceUID());
-                result.putString(Tag.StudyDescription, VR.LO, studyTmp.getStudyDescription());
-                String modality = studyTmp.getSeries().get(0).getModality(); // Point of Failure, fix me
-                result.putString(Tag.ModalitiesInStudy, VR.CS, modality);
-                result.putString(Tag.Modality, VR.CS, modality);
-                result.putString(Tag.InstitutionName, VR.CS, studyTmp.getInstitutuionName());
-
-                int instances = 0;
-                for (Series seriesTmp : studyTmp.getSeries()) {
-                    instances += seriesTmp.getImageList().size();
-                }
+            CFindAggregator.Entry study = aggregator.pollComplete();
+            SearchResult sR = study.getTemplate();
+            BasicDicomObject result = new BasicDicomObject();
+            String patientName = field(sR, "PatientName");
 
-                result.putString(Tag.NumberOfStudyRelatedInstances, VR.IS, "" + instances);
-                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + studyTmp.getSeries().size());
+            try {
+                result.putBytes(Tag.PatientName, VR.PN, patientName.getBytes("ISO-8859-1"));
+            } catch (Exception ex) {
+                LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
+            }
 
+            result.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+            result.putString(Tag.PatientSex, VR.LO, field(sR, "PatientSex"));
+            result.putString(Tag.PatientID, VR.LO, field(sR, "PatientID"));
+            result.putString(Tag.PatientBirthDate, VR.DA, field(sR, "PatientBirthDate"));
+            result.putString(Tag.StudyDate, VR.DA, field(sR, "StudyDate"));
+            result.putString(Tag.StudyID, VR.SH, field(sR, "StudyID"));
+            result.putString(Tag.StudyTime, VR.TM, CFindAggregator.trimmed(sR.get("StudyTime")));
+            result.putString(Tag.AccessionNumber, VR.SH, field(sR, "AccessionNumber"));
+            result.putString(Tag.StudyInstanceUID, VR.UI, field(sR, "StudyInstanceUID"));
+            result.putString(Tag.StudyDescription, VR.LO, studyDescription(sR));
+            String modality = study.getModalities().isEmpty() ? "" : study.getModalities().iterator().next();
+            result.putStrings(Tag.ModalitiesInStudy, VR.CS,
+                    study.getModalities().toArray(new String[study.getModalities().size()]));
+            result.putString(Tag.Modality, VR.CS, modality);
+            result.putString(Tag.InstitutionName, VR.CS, field(sR, "InstitutionName"));
+
+            result.putString(Tag.NumberOfStudyRelatedInstances, VR.IS, "" + study.getNumberOfInstances());
+            result.putString(Tag.NumberOfStudyRelatedSeries, VR.IS, "" + study.getNumberOfSeries());
+
+            return result;
+
+        } else if (queryLevel == QUERYLEVEL.SERIE) {
+            // Series
+
+            CFindAggregator.Entry series = aggregator.pollComplete();
+            SearchResult sR = series.getTemplate();
+            BasicDicomObject result = new BasicDicomObject();
+            result.putString(Tag.InstitutionName, VR.CS, field(sR, "InstitutionName"));
+
+            result.putString(Tag.StudyInstanceUID, VR.UI, field(sR, "StudyInstanceUID"));
+            result.putString(Tag.SeriesInstanceUID, VR.UI, field(sR, "SeriesInstanceUID"));
+            result.putString(Tag.SeriesDescription, VR.LO, field(sR, "SeriesDescription"));
+            result.putString(Tag.SeriesDate, VR.TM, field(sR, "SeriesDate"));
+            result.putString(Tag.QueryRetrieveLevel, VR.LO, "SERIES");
+            String modality = field(sR, "Modality");
+            result.putString(Tag.Modality, VR.CS, modality);
+
+            if (modality.equals("MG") || modality.equals("CR")) {
+
+                result.putString(Tag.ViewPosition, null, field(sR, "ViewPosition"));
+                result.putString(Tag.ImageLaterality, null, field(sR, "ImageLaterality"));
+                result.putString(Tag.AcquisitionDeviceProcessingDescription, VR.AE,
+                        field(sR, "AcquisitionDeviceProcessingDescription"));
+                DicomElement viewCodeSequence = result.putSequence(Tag.ViewCodeSequence);
+                DicomObject viewCodeSequenceObj = new BasicDicomObject();
+                viewCodeSequenceObj.setParent(result);
+                viewCodeSequenceObj.putString(Tag.CodeValue, null, field(sR, "ViewCodeSequence_CodeValue"));
+                viewCodeSequenceObj.putString(Tag.CodingSchemeDesignator, null,
+                        field(sR, "ViewCodeSequence_CodingSchemeDesignator"));
+                viewCodeSequenceObj.putString(Tag.CodingSchemeVersion, null,
+                        field(sR, "ViewCodeSequence_CodingSchemeVersion"));
+                viewCodeSequenceObj.putString(Tag.CodeMeaning, null, field(sR, "ViewCodeSequence_CodeMeaning"));
+
+                viewCodeSequence.addDicomObject(viewCodeSequenceObj);
+                result.putNestedDicomObject(Tag.ViewCodeSequence, viewCodeSequenceObj);
+            }
+            result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + series.getNumberOfInstances());
 
-                return result;
+            result.putString(Tag.SeriesNumber, VR.IS, "" + seriesNumber(sR));
+            result.putString(Tag.ProtocolName, VR.LO, field(sR, "ProtocolName"));
+            result.putString(Tag.BodyPartThickness, VR.LO, "" + CFindAggregator.trimmed(sR.get("BodyPartThickness")));
 
-            } else if (queryLevel == QUERYLEVEL.SERIE) {
-                // Series
+            return result;
 
-                Series seriesTmp = (Series) next;
-                BasicDicomObject result = new BasicDicomObject();
-                // System.out.println("Series : "+ seriesTmp);
-                result.putString(Tag.InstitutionName, VR.CS, seriesTmp.getParent().getInstitutuionName());
+        } else {
+            logger.error("ERROR: WRONG QUERY LEVEL!");
+        }
 
-                result.putString(Tag.StudyInstanceUID, VR.UI, seriesTmp.getParent().getStudyInstanceUID());
-                result.putString(Tag.SeriesInstanceUID, VR.UI, seriesTmp.getSeriesInstanceUID());
-                result.putString(Tag.SeriesDescription, VR.LO, seriesTmp.getSeriesDescription());
-                result.putString(Tag.SeriesDate, VR.TM, seriesTmp.getSeriesDate());
-                result.putString(Tag.QueryRetrieveLevel, VR.LO, "SERIES");
-                String modality = seriesTmp.getModality(); // Point of Failure, fix me
-                result.putString(Tag.Modality, VR.CS, modality);
+        return null;
+    }
 
-                result.putString(Tag.SeriesNumber, VR.IS, "" + seriesTmp.getSeriesNumber());
+    /** Obtain the next search result without building a C-FIND response,
+     * for when only the instance's location is needed.
+     * Only supported at the IMAGE level.
+     *
+     * @return the next search result, or null if there are no more results
+     */
+    public SearchResult nextResult() {
+        if (queryLevel != QUERYLEVEL.IMAGE) {
+            throw new UnsupportedOperationException("Search results are only available at the IMAGE level");
+        }
+        if (!hasNext()) {
+            return null;
+        }
+        SearchResult sR = results.next();
+        currentFile = sR.getURI().toString();
+        return sR;
+    }
 
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported. Nobody use it.");
+    }
 
-                result.putString(Tag.Modality, VR.CS, modality);
-                if (seriesTmp.getModality().equals("MG") || seriesTmp.getModality().equals("CR")) {
+    /** Obtain a trimmed field of a search result, or an empty string if missing. */
+    private static String field(SearchResult r, String name) {
+        String value = CFindAggregator.trimmed(r.get(name));
+        return value == null ? "" : value;
+    }
 
-                    result.putString(Tag.ViewPosition, null, seriesTmp.getViewPosition());
-                    result.putString(Tag.ImageLaterality, null, seriesTmp.getImageLaterality());
-                    result.putString(Tag.AcquisitionDeviceProcessingDescription, VR.AE,
-                            seriesTmp.getAcquisitionDeviceProcessingDescription());
-                    DicomElement viewCodeSequence = result.putSequence(Tag.ViewCodeSequence);
-                    DicomObject viewCodeSequenceObj = new BasicDicomObject();
-                    viewCodeSequenceObj.setParent(result);
-                    viewCodeSequenceObj.putString(Tag.CodeValue, null, seriesTmp.getViewCodeSequence_CodeValue());
-                    viewCodeSequenceObj.putString(Tag.CodingSchemeDesignator, null,
-                            seriesTmp.getViewCodeSequence_CodingSchemeDesignator());
-                    viewCodeSequenceObj.putString(Tag.CodingSchemeVersion, null,
-                            seriesTmp.getViewCodeSequence_CodingSchemeVersion());
-                    viewCodeSequenceObj.putString(Tag.CodeMeaning, null, seriesTmp.getViewCodeSequence_CodeMeaning());
+    private static int seriesNumber(SearchResult r) {
+        String serieNumber = CFindAggregator.trimmed(r.get("SeriesNumber"));
+        try {
+            if (serieNumber != null) {
+                return (int) Float.parseFloat(serieNumber);
+            }
+        } catch (NumberFormatException ex) {
+            // nothing to do anyway
+        }
+        return 0;
+    }
 
-                    viewCodeSequence.addDicomObject(viewCodeSequenceObj);
-                    result.putNestedDicomObject(Tag.ViewCodeSequence, viewCodeSequenceObj);
+    /** Obtain the study description, applying the concatenation rules
+     * (see {@link ConcatTags}) when the description is missing.
+     */
+    private static String studyDescription(SearchResult r) {
+        String studyDescription = field(r, "StudyDescription");
+        if (concatTags == null
+                || !(studyDescription.isEmpty() || studyDescription.toLowerCase().contains("fuji"))) {
+            return studyDescription;
+        }
+        String modality = field(r, "Modality");
+        StringBuilder description = new StringBuilder();
+        for (ConcatTags.Rule rule : concatTags.getRules()) {
+            if (modality.equals(rule.getModality())) {
+                Object valueTagToReplace = r.get(rule.getTagToReplace());
+                if (valueTagToReplace != null) {
+                    description.append(valueTagToReplace.toString().trim()
+                            .replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", "")).append("; ");
                 }
-                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + seriesTmp.getImageList().size());
-
-
-                result.putString(Tag.SeriesNumber, VR.IS, "" + seriesTmp.getSeriesNumber());
-                result.putString(Tag.ProtocolName, VR.LO, "" + seriesTmp.getProtocolName());
-                result.putString(Tag.BodyPartThickness, VR.LO, "" + seriesTmp.getBodyPartThickness());
-
-
-                return result;
-
-            } else {
-                System.err.println("ERROR: WRONG QUERY LEVEL!");
             }
+        }
+        return description.toString();
+    }
 
+    /** Iterates over the results of each query task in sequence,
+     * retrieving each provider's results only when needed.
+     */
+    private final class ProviderResultIterator implements Iterator<SearchResult> {
+        private final Iterator<Task<Iterable<SearchResult>>> taskIt = tasks.iterator();
+        private Iterator<SearchResult> current = Collections.emptyIterator();
 
+        @Override
+        public boolean hasNext() {
+            while (!cancelled) {
+                try {
+                    if (current.hasNext()) {
+                        return true;
+                    }
+                } catch (RuntimeException ex) {
+                    logger.warn("Failed to retrieve further results from a query provider", ex);
+                    current = Collections.emptyIterator();
+                }
+                if (!taskIt.hasNext()) {
+                    return false;
+                }
+                Task<Iterable<SearchResult>> task = taskIt.next();
+                try {
+                    current = task.get().iterator();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                } catch (ExecutionException | CancellationException ex) {
+                    logger.warn("Query provider task {} failed", task.getName(), ex);
+                }
+            }
+            return false;
         }
-        return null;
-    }
 
-    @Override
-    public void remove() {
-        throw new UnsupportedOperationException("Not supported. Nobody use it.");
+        @Override
+        public SearchResult next() {
+            if (!hasNext()) {
+                return null;
+            }
+            return current.next();
+        }
     }
 }
@@ -0,0 +1,277 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+
+/** Writes the objects received by the storage service to the storage plugins.
+ *
+ * One of the enabled storage plugins is the primary storage: objects are written to it
+ * before the C-STORE response, and a failure there, including the object not being stored, fails the C-STORE.
+ * This is the plugin named by <tt>dicoogle.storage.primary</tt>, or the first enabled storage plugin.
+ * The other enabled storages are secondary, and receive a copy of each object
+ * asynchronously, from a queue of <tt>dicoogle.storage.replication.queueSize</tt> objects served by
+ * <tt>dicoogle.storage.replication.workers</tt> threads. A copy which fails is retried up to
+ * <tt>dicoogle.storage.replication.maxAttempts</tt> times, waiting <tt>dicoogle.storage.replication.retryDelay</tt>
+ * milliseconds before the first retry and twice as long before each of the following ones.
+ * When the queue is full, the copy is made by the calling thread, which slows down the sender
+ * instead of dropping the copy. Setting <tt>dicoogle.storage.replication.async</tt> to false
+ * makes all copies synchronous, as they used to be.
+ *
+ * If the primary storage supports it (see {@link StorageInterface#supportsStreamingStore()}),
+ * objects can be stored from a stream, without reading them into memory.
+ * Either way, the secondary copies are read back from the primary storage,
+ * so that queued copies do not hold the objects in memory.
+ * Objects written by the storage service itself can likewise be copied to the storages
+ * with {@link #replicate(URI, Consumer)}.
+ *
+ * @see DicomStorage
+ */
+class StoragePipeline {
+    private static final Logger logger = LoggerFactory.getLogger(StoragePipeline.class);
+
+    private static final String PRIMARY = System.getProperty("dicoogle.storage.primary");
+    private static final boolean ASYNC =
+            Boolean.valueOf(System.getProperty("dicoogle.storage.replication.async", "true"));
+    private static final int WORKERS =
+            Integer.parseInt(System.getProperty("dicoogle.storage.replication.workers", "2"));
+    private static final int QUEUE_SIZE =
+            Integer.parseInt(System.getProperty("dicoogle.storage.replication.queueSize", "256"));
+    private static final int MAX_ATTEMPTS =
+            Integer.parseInt(System.getProperty("dicoogle.storage.replication.maxAttempts", "3"));
+    private static final long RETRY_DELAY =
+            Long.parseLong(System.getProperty("dicoogle.storage.replication.retryDelay", "1000"));
+
+    /** A copy of an object to a secondary storage. */
+    @FunctionalInterface
+    private interface Copy {
+        URI store(StorageInterface target) throws IOException;
+    }
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ThreadPoolExecutor replicator;
+
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong replicationFailures = new AtomicLong();
+
+    StoragePipeline() {
+        int workers = Math.max(1, WORKERS);
+        replicator = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, QUEUE_SIZE)), r -> {
+                    Thread t = new Thread(r, "storage-replication-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        replicator.allowCoreThreadTimeOut(true);
+    }
+
+    /** @return whether the primary storage can store objects from a stream */
+    boolean canStream() {
+        StorageInterface primary = getPrimary(getStorages());
+        return primary != null && primary.supportsStreamingStore();
+    }
+
+    /** Store an object read into memory.
+     *
+     * @param object the object to store, including its file meta information
+     * @param onStored called with the location of every copy of the object, once stored
+     * @return the location of the object in the primary storage, or null if no storage is enabled
+     * @throws IOException if the object could not be stored in the primary storage
+     */
+    URI store(DicomObject object, Consumer<URI> onStored) throws IOException {
+        List<StorageInterface> storages = getStorages();
+        StorageInterface primary = getPrimary(storages);
+        if (primary == null) {
+            logger.warn("No storage enabled, object {} discarded", object.getString(Tag.SOPInstanceUID));
+            return null;
+        }
+        URI uri = storedIn(primary, primary.store(object));
+        onStored.accept(uri);
+        replicateFrom(primary, uri, storages, onStored);
+        return uri;
+    }
+
+    /** Store an object from a DICOM Part 10 stream. Must only be used if {@link #canStream()}.
+     *
+     * @param stream the object's contents
+     * @param onStored called with the location of every copy of the object, once stored
+     * @return the location of the object in the primary storage
+     * @throws IOException if the object could not be stored in the primary storage
+     */
+    URI store(DicomInputStream stream, Consumer<URI> onStored) throws IOException {
+        List<StorageInterface> storages = getStorages();
+        StorageInterface primary = getPrimary(storages);
+        if (primary == null || !primary.supportsStreamingStore()) {
+            throw new IOException("The primary storage does not support storing from a stream");
+        }
+        URI uri = storedIn(primary, primary.store(stream));
+        onStored.accept(uri);
+        replicateFrom(primary, uri, storages, onStored);
+        return uri;
+    }
+
+    /** Check the outcome of storing an object in the primary storage.
+     *
+     * @return the location of the object
+     * @throws IOException if the primary storage did not store the object
+     */
+    private static URI storedIn(StorageInterface primary, URI uri) throws IOException {
+        if (uri == null) {
+            throw new IOException("Object not stored in primary storage " + primary.getName());
+        }
+        return uri;
+    }
+
+    /** Copy an object stored in the primary storage to the secondary storages. */
+    private void replicateFrom(StorageInterface primary, URI uri, List<StorageInterface> storages,
+            Consumer<URI> onStored) {
+        for (StorageInterface target : storages) {
+            if (target != primary) {
+                replicate(target, t -> copyFrom(primary, uri, t), onStored);
+            }
+        }
+    }
+
+    /** Make copies of an object which was stored outside of the storage plugins,
+     * in every enabled storage which does not handle its location.
+     *
+     * @param source the location of the object
+     * @param onStored called with the location of every copy of the object, once stored
+     */
+    void replicate(URI source, Consumer<URI> onStored) {
+        StorageInterface origin = PluginController.getInstance().getStorageForSchema(source);
+        if (origin == null) {
+            logger.warn("No storage to read {} from, no copies will be made", source);
+            return;
+        }
+        for (StorageInterface target : getStorages()) {
+            if (!target.handles(source)) {
+                replicate(target, t -> copyFrom(origin, source, t), onStored);
+            }
+        }
+    }
+
+    /** Copy an object from the primary storage to another storage. */
+    private static URI copyFrom(StorageInterface primary, URI source, StorageInterface target) throws IOException {
+        StorageInputStream sis = primary.get(source);
+        if (sis == null) {
+            throw new IOException("Object " + source + " not found in storage " + primary.getName());
+        }
+        try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(sis.getInputStream()))) {
+            if (target.supportsStreamingStore()) {
+                return target.store(dis);
+            }
+            return target.store(dis.readDicomObject());
+        }
+    }
+
+    private void replicate(StorageInterface target, Copy copy, Consumer<URI> onStored) {
+        Runnable task = () -> {
+            for (int attempt = 1;; attempt++) {
+                try {
+                    URI uri = copy.store(target);
+                    replicated.incrementAndGet();
+                    if (uri != null) {
+                        onStored.accept(uri);
+                    }
+                    return;
+                } catch (IOException | RuntimeException ex) {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        replicationFailures.incrementAndGet();
+                        logger.error("Could not store copy in {} after {} attempts", target.getName(), attempt, ex);
+                        return;
+                    }
+                    logger.warn("Could not store copy in {}, retrying (attempt {} of {})", target.getName(), attempt,
+                            MAX_ATTEMPTS, ex);
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY << (attempt - 1));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    replicationFailures.incrementAndGet();
+                    logger.error("Interrupted before storing copy in {}", target.getName());
+                    return;
+                }
+            }
+        };
+        if (ASYNC && !replicator.isShutdown()) {
+            replicator.execute(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /** @return the number of copies waiting to be stored in secondary storages */
+    int getPendingReplications() {
+        return replicator.getQueue().size() + replicator.getActiveCount();
+    }
+
+    /** @return the number of copies stored in secondary storages */
+    long getReplicatedCount() {
+        return replicated.get();
+    }
+
+    /** @return the number of copies which could not be stored in secondary storages */
+    long getReplicationFailureCount() {
+        return replicationFailures.get();
+    }
+
+    /** Stop accepting copies, letting the ones already queued finish. */
+    void shutdown() {
+        replicator.shutdown();
+    }
+
+    private static List<StorageInterface> getStorages() {
+        return new ArrayList<>(PluginController.getInstance().getStoragePlugins(true));
+    }
+
+    private static StorageInterface getPrimary(List<StorageInterface> storages) {
+        if (storages.isEmpty()) {
+            return null;
+        }
+        if (PRIMARY != null) {
+            for (StorageInterface s : storages) {
+                if (PRIMARY.equals(s.getName())) {
+                    return s;
+                }
+            }
+        }
+        return storages.get(0);
+    }
+}
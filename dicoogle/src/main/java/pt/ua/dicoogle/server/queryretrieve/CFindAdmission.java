@@ -0,0 +1,359 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dcm4che2.net.Association;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Admission control of concurrent C-FIND requests.
+ *
+ * The number of queries in flight is bounded globally and per association.
+ * Requests beyond the limit of their association are refused right away.
+ * Otherwise, when no slot is available, requests wait for one in a queue per calling AE title,
+ * without blocking the caller, and slots are handed out according to the configured fairness policy:
+ * <ul>
+ * <li><tt>fifo</tt>: in order of arrival, regardless of the calling AE title;</li>
+ * <li><tt>round-robin</tt> (default): one request of each waiting AE title at a time,
+ * so that a single busy node cannot starve the others.</li>
+ * </ul>
+ * These are configured with the system properties <tt>dicoogle.cfind.maxInFlight</tt>,
+ * <tt>dicoogle.cfind.maxInFlightPerAssociation</tt>, <tt>dicoogle.cfind.admissionTimeout</tt>
+ * (in milliseconds) and <tt>dicoogle.cfind.fairness</tt>.
+ */
+class CFindAdmission {
+    private static final Logger logger = LoggerFactory.getLogger(CFindAdmission.class);
+
+    enum Fairness {
+        FIFO, ROUND_ROBIN;
+
+        static Fairness parse(String name) {
+            if ("fifo".equalsIgnoreCase(name.trim())) {
+                return FIFO;
+            }
+            return ROUND_ROBIN;
+        }
+    }
+
+    /** A slot for one C-FIND in flight, to be released once the query is over. */
+    final class Permit {
+        private final Association as;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(Association as) {
+            this.as = as;
+        }
+
+        /** Release this slot. Calling this more than once has no further effect. */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                CFindAdmission.this.release(this);
+            }
+        }
+    }
+
+    /** A request for a slot, which waits in the queue until it is granted a permit. */
+    final class Ticket {
+        private final Association as;
+        private final String callingAET;
+        private final Runnable onGranted;
+        private long seq;
+        private boolean waiting = false;
+        private Permit permit;
+        private boolean closed = false;
+
+        private Ticket(Association as, Runnable onGranted) {
+            this.as = as;
+            this.callingAET = as.getCallingAET();
+            this.onGranted = onGranted;
+        }
+
+        /** Give up this request: withdraw it if still waiting, or release its slot if granted.
+         * Calling this more than once has no further effect.
+         *
+         * @return true if the request was still waiting for a slot
+         */
+        boolean close() {
+            Permit p;
+            synchronized (lock) {
+                if (closed) {
+                    return false;
+                }
+                closed = true;
+                if (waiting) {
+                    dequeue(this);
+                    return true;
+                }
+                p = permit;
+            }
+            if (p != null) {
+                p.release();
+            }
+            return false;
+        }
+    }
+
+    private final int maxInFlight;
+    private final int maxPerAssociation;
+    private final long timeout;
+    private final Fairness fairness;
+
+    private final Object lock = new Object();
+    /** permits granted, per association */
+    private final Map<Association, Set<Permit>> inFlight = new IdentityHashMap<>();
+    private int total = 0;
+    private long nextSeq = 0;
+    /** requests waiting for a slot, per calling AE title, in order of arrival */
+    private final LinkedHashMap<String, ArrayDeque<Ticket>> waiting = new LinkedHashMap<>();
+
+    CFindAdmission() {
+        this(Integer.parseInt(System.getProperty("dicoogle.cfind.maxInFlight", "32")),
+                Integer.parseInt(System.getProperty("dicoogle.cfind.maxInFlightPerAssociation", "4")),
+                Long.parseLong(System.getProperty("dicoogle.cfind.admissionTimeout", "30000")),
+                Fairness.parse(System.getProperty("dicoogle.cfind.fairness", "round-robin")));
+    }
+
+    CFindAdmission(int maxInFlight, int maxPerAssociation, long timeout, Fairness fairness) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxPerAssociation = Math.max(1, maxPerAssociation);
+        this.timeout = timeout;
+        this.fairness = fairness;
+    }
+
+    /** Create a request for a slot for a new C-FIND, to be submitted with {@link #submit(Ticket)}.
+     *
+     * @param as the association of the request
+     * @param onGranted what to do once the slot is granted,
+     * called from the thread which submitted the request or released another slot
+     * @return the ticket
+     */
+    Ticket ticket(Association as, Runnable onGranted) {
+        return new Ticket(as, onGranted);
+    }
+
+    /** Submit a request for a slot, without waiting for it.
+     *
+     * @param ticket the request
+     * @return false if the request was refused, for its association being at the limit of queries
+     */
+    boolean submit(Ticket ticket) {
+        List<Ticket> granted;
+        synchronized (lock) {
+            if (ticket.closed || ticket.waiting || ticket.permit != null) {
+                return false;
+            }
+            reclaimClosed();
+            Set<Permit> permits = inFlight.get(ticket.as);
+            int pending = (permits == null ? 0 : permits.size()) + waitingOf(ticket.as);
+            if (pending >= maxPerAssociation) {
+                logger.warn("C-FIND from {} refused, {} queries already in progress on its association",
+                        ticket.callingAET, pending);
+                return false;
+            }
+            ticket.seq = nextSeq++;
+            ticket.waiting = true;
+            waiting.computeIfAbsent(ticket.callingAET, k -> new ArrayDeque<>()).add(ticket);
+            granted = dispatch();
+        }
+        runGranted(granted);
+        return true;
+    }
+
+    /** Withdraw a request which is still waiting for a slot, such as once it waited for too long.
+     *
+     * @param ticket the request
+     * @return true if the request was waiting, and is now withdrawn
+     */
+    boolean expire(Ticket ticket) {
+        synchronized (lock) {
+            if (!ticket.waiting) {
+                return false;
+            }
+            logger.warn("No C-FIND slot available for {} in {} ms ({} queries in flight)", ticket.callingAET, timeout,
+                    total);
+            ticket.closed = true;
+            dequeue(ticket);
+            return true;
+        }
+    }
+
+    /** @return how long a request may wait for a slot, in milliseconds */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /** Remove a ticket from the queue. Must hold the lock. */
+    private void dequeue(Ticket ticket) {
+        ticket.waiting = false;
+        ArrayDeque<Ticket> queue = waiting.get(ticket.callingAET);
+        if (queue != null) {
+            queue.remove(ticket);
+            if (queue.isEmpty()) {
+                waiting.remove(ticket.callingAET);
+            }
+        }
+    }
+
+    /** @return the number of requests of an association waiting for a slot. Must hold the lock. */
+    private int waitingOf(Association as) {
+        int n = 0;
+        for (ArrayDeque<Ticket> queue : waiting.values()) {
+            for (Ticket t : queue) {
+                if (t.as == as) {
+                    n += 1;
+                }
+            }
+        }
+        return n;
+    }
+
+    /** Start the requests which were granted a slot, outside of the lock. */
+    private static void runGranted(List<Ticket> granted) {
+        for (Ticket t : granted) {
+            try {
+                t.onGranted.run();
+            } catch (RuntimeException ex) {
+                logger.error("Failed to start C-FIND from {}", t.callingAET, ex);
+                t.close();
+            }
+        }
+    }
+
+    /** @return the number of C-FIND requests currently in flight */
+    int getInFlight() {
+        synchronized (lock) {
+            return total;
+        }
+    }
+
+    private void release(Permit permit) {
+        List<Ticket> granted;
+        synchronized (lock) {
+            Set<Permit> permits = inFlight.get(permit.as);
+            if (permits != null && permits.remove(permit)) {
+                total -= 1;
+                if (permits.isEmpty()) {
+                    inFlight.remove(permit.as);
+                }
+            }
+            granted = dispatch();
+        }
+        runGranted(granted);
+    }
+
+    /** Grant slots to waiting requests while there is capacity. Must hold the lock.
+     *
+     * @return the requests granted a slot, to be started once the lock is released
+     */
+    private List<Ticket> dispatch() {
+        reclaimClosed();
+        List<Ticket> granted = new ArrayList<>(1);
+        while (total < maxInFlight) {
+            Ticket next = pollNext();
+            if (next == null) {
+                break;
+            }
+            Permit permit = new Permit(next.as);
+            inFlight.computeIfAbsent(next.as, k -> new HashSet<>()).add(permit);
+            total += 1;
+            next.waiting = false;
+            next.permit = permit;
+            granted.add(next);
+        }
+        return granted;
+    }
+
+    /** Take the next ticket to be granted, according to the fairness policy. */
+    private Ticket pollNext() {
+        Iterator<Map.Entry<String, ArrayDeque<Ticket>>> it = waiting.entrySet().iterator();
+        Ticket best = null;
+        String bestAET = null;
+        while (it.hasNext()) {
+            Map.Entry<String, ArrayDeque<Ticket>> e = it.next();
+            for (Ticket t : e.getValue()) {
+                Set<Permit> permits = inFlight.get(t.as);
+                if (permits != null && permits.size() >= maxPerAssociation) {
+                    continue;
+                }
+                if (fairness == Fairness.ROUND_ROBIN) {
+                    // first eligible AE title in rotation order
+                    best = t;
+                    bestAET = e.getKey();
+                } else if (best == null || t.seq < best.seq) {
+                    best = t;
+                    bestAET = e.getKey();
+                }
+                break;
+            }
+            if (best != null && fairness == Fairness.ROUND_ROBIN) {
+                break;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        ArrayDeque<Ticket> queue = waiting.remove(bestAET);
+        queue.remove(best);
+        if (!queue.isEmpty()) {
+            // re-insert at the end, so that other AE titles are served next
+            waiting.put(bestAET, queue);
+        }
+        return best;
+    }
+
+    /** Reclaim the slots of associations which are no longer open,
+     * in case their queries did not end normally, and drop their waiting requests.
+     */
+    private void reclaimClosed() {
+        Iterator<Map.Entry<Association, Set<Permit>>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Association, Set<Permit>> e = it.next();
+            if (!e.getKey().isReadyForDataTransfer()) {
+                total -= e.getValue().size();
+                it.remove();
+            }
+        }
+        Iterator<ArrayDeque<Ticket>> queues = waiting.values().iterator();
+        while (queues.hasNext()) {
+            ArrayDeque<Ticket> queue = queues.next();
+            queue.removeIf(t -> {
+                if (t.as.isReadyForDataTransfer()) {
+                    return false;
+                }
+                t.waiting = false;
+                t.closed = true;
+                return true;
+            });
+            if (queue.isEmpty()) {
+                queues.remove();
+            }
+        }
+    }
+}
@@ -18,8 +18,12 @@
  */
 package pt.ua.dicoogle.server.queryretrieve;
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.TransformerConfigurationException;
 
@@ -29,9 +33,13 @@ import org.dcm4che2.data.ElementDictionary;
 import org.dcm4che2.data.SpecificCharacterSet;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.net.Association;
+import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.DicomServiceException;
 import org.dcm4che2.net.DimseRSP;
+import org.dcm4che2.net.Status;
 import org.dcm4che2.net.service.CFindService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import pt.ua.dicoogle.DicomLog.LogDICOM;
 import pt.ua.dicoogle.DicomLog.LogLine;
@@ -46,9 +54,24 @@ import pt.ua.dicoogle.server.DicomNetwork;
  */
 public class CFindServiceSCP extends CFindService {
 
+    private static final Logger logger = LoggerFactory.getLogger(CFindServiceSCP.class);
+
+    /** Status code for rejecting a request for lack of resources */
+    private static final int OUT_OF_RESOURCES = 0xA700;
+
     private ServerSettings s = ServerSettingsManager.getSettings();
-    private int rspdelay =
-            ServerSettingsManager.getSettings().getDicomServicesSettings().getQueryRetrieveSettings().getRspDelay();
+
+    /** Bounds the queries running at the same time, instead of serializing them */
+    private final CFindAdmission admission = new CFindAdmission();
+
+    /** Holds back the first responses and expires queued requests, without tying up any thread */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cfind-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Executor executor;
 
     private DicomNetwork service = null;
 
@@ -57,12 +80,99 @@ public class CFindServiceSCP extends CFindService {
 
     public CFindServiceSCP(String[] multiSop, Executor e) {
         super(multiSop, e);
+        this.executor = e;
+    }
+
+    /** Handle a C-FIND request without blocking the reader thread of the association:
+     * the query waits for admission in a queue, and its responses are written from the executor,
+     * the first one no earlier than the configured response delay.
+     */
+    @Override
+    public void cfind(Association as, int pcid, DicomObject rq, DicomObject data)
+            throws DicomServiceException, IOException {
+        long requestTime = System.nanoTime();
+        DicomObject cmdrsp = CommandUtils.mkRSP(rq, CommandUtils.SUCCESS);
+        FindRSP rsp = (FindRSP) doCFind(as, pcid, rq, data, cmdrsp);
+        if (cmdrsp.getInt(Tag.Status) != Status.Success) {
+            // rejected outright
+            as.writeDimseRSP(pcid, cmdrsp, null);
+            return;
+        }
+
+        WriteFindRsp writer = new WriteFindRsp(as, pcid, rq, rsp);
+        long firstResponseTime = requestTime
+                + TimeUnit.MILLISECONDS.toNanos(s.getDicomServicesSettings().getQueryRetrieveSettings().getRspDelay());
+        CFindAdmission.Ticket ticket = admission.ticket(as, () -> {
+            rsp.start();
+            logger.debug("C-FIND from {} admitted, {} queries in flight", as.getCallingAET(), admission.getInFlight());
+            long wait = Math.max(0, firstResponseTime - System.nanoTime());
+            scheduler.schedule(() -> executor.execute(writer), wait, TimeUnit.NANOSECONDS);
+        });
+        rsp.setOnComplete(() -> {
+            if (ticket.close()) {
+                // cancelled while waiting for admission
+                executor.execute(writer);
+            }
+        });
+        as.registerCancelRQHandler(rq, rsp);
+        if (!admission.submit(ticket)) {
+            as.unregisterCancelRQHandler(rq);
+            throw new DicomServiceException(rq, OUT_OF_RESOURCES, "Too many queries in progress");
+        }
+        scheduler.schedule(() -> {
+            if (admission.expire(ticket)) {
+                rsp.reject(OUT_OF_RESOURCES, "Too many queries in progress");
+                executor.execute(writer);
+            }
+        }, admission.getTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Writes the pending responses of a C-FIND, followed by the final one. */
+    private static class WriteFindRsp implements Runnable {
+        private final Association as;
+        private final int pcid;
+        private final DicomObject rq;
+        private final DimseRSP rsp;
+
+        WriteFindRsp(Association as, int pcid, DicomObject rq, DimseRSP rsp) {
+            this.as = as;
+            this.pcid = pcid;
+            this.rq = rq;
+            this.rsp = rsp;
+        }
+
+        @Override
+        public void run() {
+            try {
+                rsp.next();
+                as.writeDimseRSP(pcid, rsp.getCommand(), rsp.getDataset());
+                while (CommandUtils.isPending(rsp.getCommand()) && rsp.next()) {
+                    as.writeDimseRSP(pcid, rsp.getCommand(), rsp.getDataset());
+                }
+            } catch (IOException e) {
+                logger.warn("Failed to write C-FIND response to {}", as.getCallingAET(), e);
+                cancelQuietly();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelQuietly();
+            } finally {
+                as.unregisterCancelRQHandler(rq);
+            }
+        }
+
+        private void cancelQuietly() {
+            try {
+                rsp.cancel(as);
+            } catch (IOException e) {
+                // nothing else to do
+            }
+        }
     }
 
     /*** CFIND */
     @Override
-    protected synchronized DimseRSP doCFind(Association as, int pcid, DicomObject cmd, DicomObject keys,
-            DicomObject rsp) throws DicomServiceException {
+    protected DimseRSP doCFind(Association as, int pcid, DicomObject cmd, DicomObject keys, DicomObject rsp)
+            throws DicomServiceException {
 
         // DebugManager.getSettings().debug("doCFind? -- > working on it");
 
@@ -92,18 +202,9 @@ public class CFindServiceSCP extends CFindService {
         }
 
 
-        if (this.rspdelay > 0) {
-            try {
-                this.wait(this.rspdelay);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
-
         /**
          * Search information at Lucene Indexer
-         * So the FindRSP will fill the DimRSP
+         * So the FindRSP will fill the DimRSP, once the query is admitted
          */
         replay = new FindRSP(keys, rsp, as.getCallingAET());
 
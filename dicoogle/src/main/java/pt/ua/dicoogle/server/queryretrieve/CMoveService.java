@@ -29,12 +29,15 @@ import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.DimseRSP;
 import org.dcm4che2.net.SingleDimseRSP;
 import org.dcm4che2.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
 public class CMoveService extends DicomService implements CMoveSCP {
+    private static final Logger logger = LoggerFactory.getLogger(CMoveService.class);
 
 
     private final Executor executor;
@@ -65,12 +68,57 @@ public class CMoveService extends DicomService implements CMoveSCP {
         cmdrsp = rsp.getCommand();
         if (CommandUtils.isPending(cmdrsp)) {
             as.registerCancelRQHandler(rq, rsp);
-            // executor.execute(new WriteMultiDimseRsp(as, pcid, rsp));
+            executor.execute(new WriteMultiDimseRsp(as, pcid, rq, rsp));
         } else {
             as.writeDimseRSP(pcid, cmdrsp, rsp.getDataset());
         }
     }
 
+    /** @return the executor of this service */
+    protected Executor getExecutor() {
+        return executor;
+    }
+
+    /** Writes the pending responses of a C-MOVE, followed by the final one. */
+    private static class WriteMultiDimseRsp implements Runnable {
+        private final Association as;
+        private final int pcid;
+        private final DicomObject rq;
+        private final DimseRSP rsp;
+
+        WriteMultiDimseRsp(Association as, int pcid, DicomObject rq, DimseRSP rsp) {
+            this.as = as;
+            this.pcid = pcid;
+            this.rq = rq;
+            this.rsp = rsp;
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    as.writeDimseRSP(pcid, rsp.getCommand(), rsp.getDataset());
+                } while (rsp.next());
+            } catch (IOException e) {
+                logger.warn("Failed to write C-MOVE response to {}", as.getCallingAET(), e);
+                cancelQuietly();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelQuietly();
+            } finally {
+                as.unregisterCancelRQHandler(rq);
+            }
+        }
+
+        private void cancelQuietly() {
+            try {
+                rsp.cancel(as);
+            } catch (IOException e) {
+                // nothing else to do
+            }
+        }
+    }
+
     protected DimseRSP doCMove(Association as, int pcid, DicomObject cmd, DicomObject data, DicomObject rsp)
             throws DicomServiceException {
         return new SingleDimseRSP(rsp);
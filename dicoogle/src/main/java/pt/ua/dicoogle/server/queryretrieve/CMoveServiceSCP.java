@@ -18,12 +18,10 @@
  */
 package pt.ua.dicoogle.server.queryretrieve;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 
 import org.dcm4che2.data.Tag;
@@ -32,10 +30,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.transform.TransformerConfigurationException;
-import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.net.Association;
-import org.dcm4che2.net.ConfigurationException;
 import org.dcm4che2.net.DicomServiceException;
 import org.dcm4che2.net.DimseRSP;
 import org.dcm4che2.net.Status;
@@ -45,10 +41,8 @@ import pt.ua.dicoogle.DicomLog.LogDICOM;
 import pt.ua.dicoogle.DicomLog.LogLine;
 import pt.ua.dicoogle.DicomLog.LogXML;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
-import pt.ua.dicoogle.plugins.PluginController;
-import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.datastructs.MoveDestination;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
 import pt.ua.dicoogle.server.DicomNetwork;
 import pt.ua.dicoogle.server.SearchDicomResult;
@@ -126,14 +120,8 @@ public class CMoveServiceSCP extends CMoveService {
         /**
          * Get object to search
          */
-        ArrayList<String> extrafields = null;
-        extrafields = new ArrayList<String>();
-
-        extrafields.add("PatientName");
-        extrafields.add("PatientID");
-        extrafields.add("Modality");
-        extrafields.add("StudyDate");
-        extrafields.add("Thumbnail");
+        // only the location of each instance is needed
+        ArrayList<String> extrafields = new ArrayList<String>();
         extrafields.add("StudyInstanceUID");
 
         SearchDicomResult.QUERYLEVEL level = null;
@@ -154,27 +142,10 @@ public class CMoveServiceSCP extends CMoveService {
         SearchDicomResult search = new SearchDicomResult(query, true, extrafields, SearchDicomResult.QUERYLEVEL.IMAGE);
         ArrayList<URI> files = new ArrayList<URI>();
 
-        if (search != null) {
-            while (search.hasNext()) {
-                DicomObject obj = search.next();
-                DicomElement e = obj.get(Integer.parseInt("0020000D", 16));
-                String tmp = null;
-                if (e != null) {
-                    tmp = new String(e.getBytes());
-                }
-                if (SOPUID != null && tmp != null) {
-                    // files.add(new File(search.getCurrentFile()));
-                    String uriString = search.getCurrentFile();
-
-                    try {
-                        URI nURI = new URI(uriString);
-
-                        files.add(nURI);
-                    } catch (URISyntaxException ex) {
-                        LoggerFactory.getLogger(CMoveServiceSCP.class).error(ex.getMessage(), ex);
-                    }
-                }
-
+        SearchResult result;
+        while ((result = search.nextResult()) != null) {
+            if (SOPUID != null && result.get("StudyInstanceUID") != null) {
+                files.add(result.getURI());
             }
         }
 
@@ -214,42 +185,34 @@ public class CMoveServiceSCP extends CMoveService {
                 logger.warn("No originator message ID, aborting");
                 return null;
             }
+            logger.debug("Destination: {}", destination);
+            MoveProgress progress = new MoveProgress();
+            // registered before the transfer starts, so that the first pending response reports them
+            progress.addTotal(files.size());
+            ParallelDcmSend sender = new ParallelDcmSend(hostDest, portAddr, destination, CMoveID, progress);
+            CompletableFuture<Boolean> transfer = new CompletableFuture<>();
             try {
-                logger.debug("Destination: {}", destination);
-                SendReport report = callDCMSend(files, portAddr, hostDest, destination, CMoveID);
-
-                // fill in properties about sub-operations
-                rsp.putInt(Tag.NumberOfCompletedSuboperations, VR.US, report.filesSent);
-                int remaining = report.filesToSend - report.filesSent - report.filesFailed;
-                if (remaining > 0) {
-                    rsp.putInt(Tag.NumberOfRemainingSuboperations, VR.US, remaining);
-                }
-                int totalErrors = report.filesFailed + report.filesSkipped;
-                if (totalErrors > 0) {
-                    rsp.putInt(Tag.NumberOfFailedSuboperations, VR.US, totalErrors);
-                }
-                if (report.errorID == 0) {
-                    // report warning if there is at least one file failure
-                    int code = totalErrors > 0 ? 0xB000 : Status.Success;
-                    rsp.putInt(Tag.Status, VR.US, code);
-                } else {
-                    rsp.putInt(Tag.Status, VR.US, 0xC000 | Status.ProcessingFailure);
-                    rsp.putInt(Tag.ErrorID, VR.US, ERROR_ID_FILE_TRANSMISSION);
-                    rsp.putString(Tag.ErrorComment, VR.LO, "DICOM file transmission failed");
-                }
-
-            } catch (Exception ex) {
+                // the transfer runs in the background, while pending responses report its progress
+                getExecutor().execute(() -> {
+                    try {
+                        transfer.complete(sender.send(files));
+                    } catch (Throwable ex) {
+                        transfer.completeExceptionally(ex);
+                    }
+                });
+            } catch (RuntimeException ex) {
                 logger.error("Failed to send files to DICOM node {}", destination, ex);
                 rsp.putInt(Tag.Status, VR.US, 0xC000 | Status.ProcessingFailure);
                 rsp.putInt(Tag.ErrorID, VR.US, ERROR_ID_GENERAL_FAILURE);
                 rsp.putString(Tag.ErrorComment, VR.LO, ex.getMessage());
+                return new MoveRSP(data, rsp);
             }
+            return new MoveRSP(data, rsp, sender, progress, transfer);
         }
 
         return new MoveRSP(data, rsp);
     }
 
-    private static final int ERROR_ID_FILE_TRANSMISSION = 1;
     private static final int ERROR_ID_GENERAL_FAILURE = 10;
 
     /**
@@ -265,65 +228,4 @@ public class CMoveServiceSCP extends CMoveService {
     public void setService(DicomNetwork service) {
         this.service = service;
     }
-
-    private static class SendReport {
-        final int errorID;
-        final int filesSent;
-        final int filesToSend;
-        final int filesFailed;
-        final int filesSkipped;
-
-        public SendReport(int errorID, int filesSent, int filesToSend, int filesFailed, int filesSkipped) {
-            this.errorID = errorID;
-            this.filesSent = filesSent;
-            this.filesToSend = filesToSend;
-            this.filesFailed = filesFailed;
-            this.filesSkipped = filesSkipped;
-        }
-    }
-
-    private static SendReport callDCMSend(List<URI> files, int port, String hostname, String AETitle, String cmoveID)
-            throws IOException, ConfigurationException, InterruptedException {
-
-        DicoogleDcmSend dcmsnd = new DicoogleDcmSend();
-
-        dcmsnd.setRemoteHost(hostname);
-        dcmsnd.setRemotePort(port);
-
-        for (URI uri : files) {
-            StorageInterface plugin = PluginController.getInstance().getStorageForSchema(uri);
-            logger.debug("uri: {}", uri);
-
-            if (plugin != null) {
-                logger.debug("Retrieving {}", uri);
-                Iterable<StorageInputStream> it = plugin.at(uri);
-
-                for (StorageInputStream file : it) {
-                    dcmsnd.addFile(file);
-                    logger.debug("Added file to DcmSend: {}", uri);
-                }
-            }
-
-        }
-        dcmsnd.setCalledAET(AETitle);
-
-        dcmsnd.configureTransferCapability();
-
-        dcmsnd.setMoveOriginatorMessageID(cmoveID);
-        dcmsnd.start();
-        dcmsnd.open();
-        int errorID;
-        try {
-            dcmsnd.send();
-            errorID = 0;
-        } catch (IOException ex) {
-            // assume that there was a fatal error in the transmission
-            errorID = ERROR_ID_FILE_TRANSMISSION;
-        } finally {
-            dcmsnd.close();
-        }
-
-        return new SendReport(errorID, dcmsnd.getNumberOfFilesSent(), dcmsnd.getNumberOfFilesToSend(),
-                dcmsnd.getNumberOfFilesFailed(), dcmsnd.getNumberOfFilesSkipped());
-    }
 }
@@ -32,9 +32,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-import com.google.common.io.ByteStreams;
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
@@ -100,9 +101,27 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     /** TransferSyntax: DCM4CHE URI Referenced */
     private static final String DCM4CHEE_URI_REFERENCED_TS_UID = "1.2.40.0.13.1.1.2.4.94";
 
+    /** Whether to skip over input data by reading it,
+     * because some streams get stuck on skip (e.g. CipherInputStream)
+     */
     private static final boolean FILE_READ_GUARD =
             System.getProperty("dicoogle.store.fileReadGuard", "").equalsIgnoreCase("true");
 
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    /** Listener of the outcome of each C-STORE sub-operation. */
+    public interface SubOperationListener {
+        /** Called once per file, when its C-STORE response is received or it could not be sent.
+         *
+         * @param info the file
+         * @param status the C-STORE response status, or a failure status if the file could not be sent
+         */
+        void onSubOperation(FileInfo info, int status);
+    }
+
+    /** Status reported to the listener when a file could not be sent for lack of a presentation context */
+    public static final int STATUS_NOT_SENT = 0xA900;
+
     private Executor executor = new NewThreadExecutor("DCMSND");
 
     private NetworkApplicationEntity remoteAE = new NetworkApplicationEntity();
@@ -130,17 +149,24 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     private int transcoderBufferSize = 1024;
 
     /** Number of files sent successfully */
-    private int filesSent = 0;
+    private final AtomicInteger filesSent = new AtomicInteger();
 
     /** Number of files skipped upon addition due to storage problems of the DICOM file
      */
-    private int filesSkipped = 0;
+    private final AtomicInteger filesSkipped = new AtomicInteger();
 
     /** Number of files which failed to be sent due to presentation context negotation issues
      */
-    private int filesFailed = 0;
+    private final AtomicInteger filesFailed = new AtomicInteger();
+
+    /** Number of files sent with a warning status */
+    private final AtomicInteger filesWarning = new AtomicInteger();
+
+    private final AtomicLong totalSize = new AtomicLong();
 
-    private long totalSize = 0L;
+    private volatile SubOperationListener listener = null;
+
+    private volatile boolean cancelled = false;
 
     private boolean fileref = false;
 
@@ -350,19 +376,36 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     }
 
     public final int getNumberOfFilesSent() {
-        return filesSent;
+        return filesSent.get();
     }
 
     public final int getNumberOfFilesSkipped() {
-        return filesSkipped;
+        return filesSkipped.get();
     }
 
     public final int getNumberOfFilesFailed() {
-        return filesFailed;
+        return filesFailed.get();
+    }
+
+    public final int getNumberOfFilesWithWarning() {
+        return filesWarning.get();
     }
 
     public final long getTotalSizeSent() {
-        return totalSize;
+        return totalSize.get();
+    }
+
+    public final void setSubOperationListener(SubOperationListener listener) {
+        this.listener = listener;
+    }
+
+    /** Stop sending further files. Files already sent will still have their responses awaited. */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
     }
 
     public List<FileInfo> getFileInfos() {
@@ -377,7 +420,7 @@ public class DicoogleDcmSend extends StorageCommitmentService {
             inStream = info.getInputStream();
         } catch (IOException e) {
             LOGGER.error("Failed to fetch file {} - skipped.", item.getURI(), e);
-            this.filesSkipped += 1;
+            this.filesSkipped.incrementAndGet();
             return;
         }
         DicomObject dcmObj = new BasicDicomObject();
@@ -390,7 +433,7 @@ public class DicoogleDcmSend extends StorageCommitmentService {
             info.fmiEndPos = in.getEndOfFileMetaInfoPosition();
         } catch (IOException e) {
             LOGGER.warn("Failed to parse file {} - skipped.", item.getURI(), e);
-            this.filesSkipped += 1;
+            this.filesSkipped.incrementAndGet();
             return;
         } finally {
             CloseUtils.safeClose(in);
@@ -399,13 +442,13 @@ public class DicoogleDcmSend extends StorageCommitmentService {
         info.cuid = dcmObj.getString(Tag.SOPClassUID);
         if (info.cuid == null) {
             LOGGER.warn("Missing SOP Class UID in {} - skipped.", item.getURI());
-            this.filesSkipped += 1;
+            this.filesSkipped.incrementAndGet();
             return;
         }
         info.iuid = dcmObj.getString(Tag.SOPInstanceUID);
         if (info.iuid == null) {
             LOGGER.warn("Missing SOP Instance UID in {} - skipped.", item.getURI());
-            this.filesSkipped += 1;
+            this.filesSkipped.incrementAndGet();
             return;
         }
 
@@ -476,12 +519,13 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     }
 
     public void send() throws IOException {
-        for (int i = 0, n = files.size(); i < n; ++i) {
-            FileInfo info = files.get(i);
+        for (int i = 0, n = files.size(); i < n && !cancelled; ++i) {
+            final FileInfo info = files.get(i);
             TransferCapability tc = assoc.getTransferCapabilityAsSCU(info.cuid);
             if (tc == null) {
                 LOGGER.warn("{} not supported by {}, skip file {}", UIDDictionary.getDictionary().prompt(info.cuid),
                         remoteAE.getAETitle(), info.item.getURI());
+                notSent(info);
                 continue;
             }
 
@@ -493,6 +537,7 @@ public class DicoogleDcmSend extends StorageCommitmentService {
                         UIDDictionary.getDictionary().prompt(info.cuid),
                         UIDDictionary.getDictionary().prompt(fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid),
                         remoteAE.getAETitle(), info.item.getURI());
+                notSent(info);
                 continue;
             }
 
@@ -500,7 +545,7 @@ public class DicoogleDcmSend extends StorageCommitmentService {
                 DimseRSPHandler rspHandler = new DimseRSPHandler() {
                     @Override
                     public void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
-                        DicoogleDcmSend.this.onDimseRSP(cmd);
+                        DicoogleDcmSend.this.onDimseRSP(info, cmd);
                     }
                 };
 
@@ -514,7 +559,7 @@ public class DicoogleDcmSend extends StorageCommitmentService {
 
             } catch (NoPresentationContextException e) {
                 LOGGER.warn("Cannot send {}: {}", info.item.getURI(), e.getMessage());
-                filesFailed += 1;
+                notSent(info);
             } catch (IOException e) {
                 LOGGER.error("Fatal I/O error while sending {}", info.item.getURI(), e);
                 // since this exception can be thrown mid-transfer,
@@ -540,6 +585,15 @@ public class DicoogleDcmSend extends StorageCommitmentService {
         }
     }
 
+    private void notSent(FileInfo info) {
+        filesFailed.incrementAndGet();
+        info.status = STATUS_NOT_SENT;
+        SubOperationListener l = listener;
+        if (l != null) {
+            l.onSubOperation(info, STATUS_NOT_SENT);
+        }
+    }
+
     public boolean commit() {
         DicomObject actionInfo = new BasicDicomObject();
         actionInfo.putString(Tag.TransactionUID, VR.UI, UIDUtils.createUID());
@@ -648,17 +702,6 @@ public class DicoogleDcmSend extends StorageCommitmentService {
         public InputStream getInputStream() throws IOException {
             InputStream iStream = this.item.getInputStream();
 
-            if (FILE_READ_GUARD) {
-                // Put data in memory because some streams get stuck on skip (e.g. CipherInputStream)
-                // and may cause an infinite look in writeTo method.
-                // Use markSupported method may also return true (stream wrapping)
-                if (iStream.available() == 0) {
-                    byte[] byteArr = ByteStreams.toByteArray(new DicomInputStream(iStream));
-                    InputStream fisRescue = new BufferedInputStream(new ByteArrayInputStream(byteArr));
-                    return fisRescue;
-                }
-            }
-
             // if marking is supported, then it is likely already buffered
             if (iStream.markSupported()) {
                 return iStream;
@@ -725,28 +768,32 @@ public class DicoogleDcmSend extends StorageCommitmentService {
                 info.item.getURI(), info.cuid, info.tsuid, cmd);
     }
 
-    private void onDimseRSP(DicomObject cmd) {
+    private void onDimseRSP(FileInfo info, DicomObject cmd) {
         int status = cmd.getInt(Tag.Status);
-        int msgId = cmd.getInt(Tag.MessageIDBeingRespondedTo);
-        FileInfo info = files.get(msgId - 1);
         info.status = status;
         switch (status) {
             case 0:
                 info.transferred = true;
-                totalSize += info.length;
-                ++filesSent;
+                totalSize.addAndGet(info.length);
+                filesSent.incrementAndGet();
                 break;
             case 0xB000:
             case 0xB006:
             case 0xB007:
                 info.transferred = true;
-                totalSize += info.length;
-                ++filesSent;
+                totalSize.addAndGet(info.length);
+                filesSent.incrementAndGet();
+                filesWarning.incrementAndGet();
                 promptWarnRSP("Received RSP with Status ", status, info, cmd);
                 break;
             default:
+                filesFailed.incrementAndGet();
                 promptErrRSP("Received RSP with Status ", status, info, cmd);
         }
+        SubOperationListener l = listener;
+        if (l != null) {
+            l.onSubOperation(info, status);
+        }
     }
 
     @Override
@@ -762,14 +809,17 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     }
 
     private static void skipExactly(InputStream inputStream, long skip) throws IOException {
+        byte[] buf = null;
         while (skip > 0) {
-            long skipped = inputStream.skip(skip);
+            long skipped = FILE_READ_GUARD ? 0 : inputStream.skip(skip);
             if (skipped > 0) {
                 skip -= skipped;
             } else {
                 // force a read so that we can continue skipping
-                byte[] buf = new byte[(int) (0x7FFF_FFFF & skip)];
-                int bytesRead = inputStream.read(buf);
+                if (buf == null) {
+                    buf = new byte[(int) Math.min(SKIP_BUFFER_SIZE, skip)];
+                }
+                int bytesRead = inputStream.read(buf, 0, (int) Math.min(buf.length, skip));
                 if (bytesRead == -1) {
                     // end of stream
                     return;
@@ -47,6 +47,9 @@ import pt.ua.dicoogle.server.SearchDicomResult;
  */
 public class FindRSP implements DimseRSP {
 
+    /** Status code for a query which could not be completed for lack of resources */
+    private static final int OUT_OF_RESOURCES = 0xA700;
+
     private DicomObject rsp;
     private DicomObject keys;
 
@@ -57,10 +60,20 @@ public class FindRSP implements DimseRSP {
      */
     private DicomObject mwl = null;
 
-    SearchDicomResult search = null;
+    volatile SearchDicomResult search = null;
+
+    /** Whether the SCU has requested the query to be cancelled */
+    private volatile boolean cancelled = false;
 
     private String callingAET;
 
+    private final String query;
+    private final ArrayList<String> extrafields;
+    /** The query level, or null if the request was rejected */
+    private volatile SearchDicomResult.QUERYLEVEL level;
+    /** Called once the query is over */
+    private volatile Runnable onComplete = null;
+
     public FindRSP(DicomObject keys, DicomObject rsp, String callingAET) {
         this.rsp = rsp;
         this.keys = keys;
@@ -116,9 +129,9 @@ public class FindRSP implements DimseRSP {
 
         String query = getQueryString(keys, rsp);
         // System.out.println("OLD Query: "+query);
-        query = applyQueryFilter(query);
+        this.query = applyQueryFilter(query);
+        this.extrafields = extrafields;
 
-        final SearchDicomResult.QUERYLEVEL level;
         String levelStr = keys.getString(Tag.QueryRetrieveLevel, VR.CS, "");
 
         if (levelStr.contains("PATIENT")) {
@@ -134,9 +147,9 @@ public class FindRSP implements DimseRSP {
             this.rsp.putInt(Tag.Status, VR.US, 0xA900);
             this.rsp.putInt(Tag.OffendingElement, VR.AT, Tag.QueryRetrieveLevel);
             this.rsp.putString(Tag.ErrorComment, VR.LO, "Query/Retrieve Level invalid or missing");
+            level = null;
             return;
         }
-        search = new SearchDicomResult(query, true, extrafields, level);
 
         // always return Specific Character Set
         if (!keys.contains(Tag.SpecificCharacterSet)) {
@@ -149,6 +162,30 @@ public class FindRSP implements DimseRSP {
 
 
 
+    /** Start the query, once it has been admitted. */
+    void start() {
+        SearchDicomResult.QUERYLEVEL level = this.level;
+        if (level == null || search != null || cancelled) {
+            return;
+        }
+        SearchDicomResult search = new SearchDicomResult(query, true, extrafields, level, keys);
+        this.search = search;
+        if (cancelled) {
+            search.cancel();
+        }
+    }
+
+    /** Reject the request without starting the query.
+     *
+     * @param status the status of the single response
+     * @param comment the error comment
+     */
+    void reject(int status, String comment) {
+        this.level = null;
+        this.rsp.putInt(Tag.Status, VR.US, status);
+        this.rsp.putString(Tag.ErrorComment, VR.LO, comment);
+    }
+
     private String getQueryString(DicomObject keys, DicomObject rsp) {
         String result = "";
         try {
@@ -182,33 +219,61 @@ public class FindRSP implements DimseRSP {
     @Override
     public boolean next() throws IOException, InterruptedException {
         if (search != null) {
-            if (search.hasNext()) {
+            if (!cancelled && search.hasNext()) {
                 // DebugManager.getSettings().debug("We have next, so get it");
                 mwl = search.next();
                 // if (mwl.matches(this.keys, true))
                 // {
-
-                // always return Specific Character Set
-                if (!this.mwl.contains(Tag.SpecificCharacterSet))
-                    this.mwl.putNull(Tag.SpecificCharacterSet, VR.CS);
-                this.rsp.putInt(Tag.Status, VR.US, mwl.containsAll(keys) ? Status.Pending : Status.PendingWarning);
-                return true;
+                if (mwl != null) {
+                    // always return Specific Character Set
+                    if (!this.mwl.contains(Tag.SpecificCharacterSet))
+                        this.mwl.putNull(Tag.SpecificCharacterSet, VR.CS);
+                    this.rsp.putInt(Tag.Status, VR.US,
+                            mwl.containsAll(keys) ? Status.Pending : Status.PendingWarning);
+                    return true;
+                }
                 // }
             }
 
-            /** Sucess */
-            this.rsp.putInt(Tag.Status, VR.US, Status.Success);
+            /** Sucess, cancelled by the SCU, or too many matches to aggregate */
+            if (cancelled) {
+                this.rsp.putInt(Tag.Status, VR.US, Status.Cancel);
+            } else if (search.isOutOfResources()) {
+                this.rsp.putInt(Tag.Status, VR.US, OUT_OF_RESOURCES);
+                this.rsp.putString(Tag.ErrorComment, VR.LO, "Too many matches, please narrow down the query");
+            } else {
+                this.rsp.putInt(Tag.Status, VR.US, Status.Success);
+            }
             /** Clean pointers */
             this.mwl = null;
             this.search = null;
+            complete();
             return true;
 
-        } else {
+        } else if (level != null) {
+            // cancelled before the query was started
             this.rsp.putInt(Tag.Status, VR.US, Status.Cancel);
         }
+        complete();
         return false;
     }
 
+    /** Define an action to be run once, when the query is over or cancelled.
+     *
+     * @param onComplete the action
+     */
+    void setOnComplete(Runnable onComplete) {
+        this.onComplete = onComplete;
+    }
+
+    private void complete() {
+        Runnable r = this.onComplete;
+        this.onComplete = null;
+        if (r != null) {
+            r.run();
+        }
+    }
+
     /**
      * 
      * @return
@@ -229,16 +294,18 @@ public class FindRSP implements DimseRSP {
         return this.mwl != null ? this.mwl.subSet(this.keys) : null;
     }
 
+    /** Handle a C-CANCEL request from the SCU.
+     * Retrieval of further results from the query providers is stopped,
+     * and the next response will have the Cancel status.
+     */
     @Override
     public void cancel(Association arg0) throws IOException {
-
-        search = null;
-        try {
-            arg0.release(true);
-
-        } catch (InterruptedException ex) {
-            LoggerFactory.getLogger(FindRSP.class).error(ex.getMessage(), ex);
+        cancelled = true;
+        SearchDicomResult search = this.search;
+        if (search != null) {
+            search.cancel();
         }
+        complete();
     }
 
     @Override
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+
+/** Thread-safe counters of the C-STORE sub-operations of a C-MOVE.
+ */
+public class MoveProgress {
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger warning = new AtomicInteger();
+
+    /** Register more sub-operations to be performed.
+     * @param n the number of sub-operations
+     */
+    public void addTotal(int n) {
+        total.addAndGet(n);
+    }
+
+    /** Register the outcome of a sub-operation.
+     * @param status the C-STORE response status
+     */
+    public void onSubOperation(int status) {
+        if (status == 0) {
+            completed.incrementAndGet();
+        } else if ((status & 0xF000) == 0xB000) {
+            warning.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+
+    /** Register sub-operations which failed without being attempted.
+     * @param n the number of sub-operations
+     */
+    public void addFailed(int n) {
+        failed.addAndGet(n);
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public int getWarning() {
+        return warning.get();
+    }
+
+    public int getRemaining() {
+        return Math.max(0, total.get() - completed.get() - failed.get() - warning.get());
+    }
+
+    /** Fill in the sub-operation attributes of a C-MOVE response.
+     *
+     * @param rsp the C-MOVE response command
+     * @param withRemaining whether to include the number of remaining sub-operations
+     */
+    public void fillResponse(DicomObject rsp, boolean withRemaining) {
+        if (withRemaining) {
+            rsp.putInt(Tag.NumberOfRemainingSuboperations, VR.US, getRemaining());
+        } else {
+            rsp.remove(Tag.NumberOfRemainingSuboperations);
+        }
+        rsp.putInt(Tag.NumberOfCompletedSuboperations, VR.US, getCompleted());
+        rsp.putInt(Tag.NumberOfFailedSuboperations, VR.US, getFailed());
+        rsp.putInt(Tag.NumberOfWarningSuboperations, VR.US, getWarning());
+    }
+
+    @Override
+    public String toString() {
+        return "MoveProgress{total=" + total + ", completed=" + completed + ", failed=" + failed + ", warning="
+                + warning + '}';
+    }
+}
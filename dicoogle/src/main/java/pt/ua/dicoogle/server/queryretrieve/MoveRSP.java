@@ -23,6 +23,10 @@
 package pt.ua.dicoogle.server.queryretrieve;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
@@ -30,34 +34,80 @@ import org.dcm4che2.data.VR;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.DimseRSP;
 import org.dcm4che2.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import pt.ua.dicoogle.server.SearchDicomResult;
 
 /** Custom C-MOVE response for {@linkplain CMoveServiceSCP}
+ *
+ * When created for a running transfer, this response emits a Pending response
+ * with the current sub-operation counts every <tt>dicoogle.move.pendingInterval</tt> milliseconds
+ * (1000 by default) until the transfer is over, followed by the final response.
+ * A C-CANCEL request stops the transfer, which ends with a Cancel response.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
 public class MoveRSP implements DimseRSP {
+    private static final Logger logger = LoggerFactory.getLogger(MoveRSP.class);
+
+    private static final long PENDING_INTERVAL =
+            Long.parseLong(System.getProperty("dicoogle.move.pendingInterval", "1000"));
+
+    /** Error ID of a failed transmission to the move destination */
+    static final int ERROR_ID_FILE_TRANSMISSION = 1;
+
     DicomObject rsp = null;
     DicomObject keys = null;
 
     DicomObject current = null;
     SearchDicomResult search = null;
 
+    /** The transfer in progress, null if this is a single response */
+    private final ParallelDcmSend sender;
+    private final MoveProgress progress;
+    /** Completes with whether the transfer went through */
+    private final CompletableFuture<Boolean> transfer;
+    private boolean firstResponse = true;
+    private boolean finished = false;
+
 
     public MoveRSP(DicomObject keys, DicomObject rsp) {
         /* Save args */
         this.rsp = rsp;
         this.keys = keys;
         this.current = rsp;
+        this.sender = null;
+        this.progress = null;
+        this.transfer = null;
 
         if (!this.rsp.contains(Tag.Status)) {
             this.rsp.putInt(Tag.Status, VR.US, Status.Success);
         }
     }
 
+    /** Create a streaming response for a transfer in progress.
+     *
+     * @param keys the C-MOVE identifier
+     * @param rsp the response command
+     * @param sender the sender performing the transfer, to be cancelled on request
+     * @param progress the sub-operation counters of the transfer
+     * @param transfer completes with whether the transfer went through
+     */
+    public MoveRSP(DicomObject keys, DicomObject rsp, ParallelDcmSend sender, MoveProgress progress,
+            CompletableFuture<Boolean> transfer) {
+        this.rsp = rsp;
+        this.keys = keys;
+        this.sender = sender;
+        this.progress = progress;
+        this.transfer = transfer;
+    }
+
     @Override
     public boolean next() throws IOException, InterruptedException {
+        if (this.transfer != null) {
+            return nextProgress();
+        }
         if (this.current == null) {
             return false;
         }
@@ -67,6 +117,48 @@ public class MoveRSP implements DimseRSP {
 
     }
 
+    private boolean nextProgress() throws InterruptedException {
+        if (finished) {
+            return false;
+        }
+        Boolean transmitted = null;
+        try {
+            // the first response is sent right away
+            transmitted = firstResponse && !transfer.isDone() ? null
+                    : transfer.get(PENDING_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            // still running
+        } catch (ExecutionException ex) {
+            logger.error("C-MOVE transfer failed", ex.getCause());
+            transmitted = false;
+        }
+        firstResponse = false;
+
+        if (transmitted == null) {
+            rsp.putInt(Tag.Status, VR.US, Status.Pending);
+            progress.fillResponse(rsp, true);
+            return true;
+        }
+
+        finished = true;
+        if (sender.isCancelled()) {
+            rsp.putInt(Tag.Status, VR.US, Status.Cancel);
+            progress.fillResponse(rsp, true);
+        } else if (transmitted) {
+            progress.fillResponse(rsp, false);
+            // report warning if there is at least one file failure or warning
+            int code = progress.getFailed() + progress.getWarning() > 0 ? 0xB000 : Status.Success;
+            rsp.putInt(Tag.Status, VR.US, code);
+        } else {
+            progress.fillResponse(rsp, progress.getRemaining() > 0);
+            rsp.putInt(Tag.Status, VR.US, 0xC000 | Status.ProcessingFailure);
+            rsp.putInt(Tag.ErrorID, VR.US, ERROR_ID_FILE_TRANSMISSION);
+            rsp.putString(Tag.ErrorComment, VR.LO, "DICOM file transmission failed");
+        }
+        logger.debug("C-MOVE finished: {}", progress);
+        return true;
+    }
+
     @Override
     public DicomObject getCommand() {
         return this.rsp;
@@ -77,9 +169,15 @@ public class MoveRSP implements DimseRSP {
         return this.current != null ? this.current.subSet(this.keys) : null;
     }
 
+    /** Handle a C-CANCEL request from the SCU,
+     * by stopping the transfer of further files.
+     */
     @Override
     public void cancel(Association arg0) throws IOException {
-        // TODO
+        if (this.sender != null) {
+            logger.info("C-MOVE cancelled by {}", arg0.getCallingAET());
+            this.sender.cancel();
+        }
     }
 
 }
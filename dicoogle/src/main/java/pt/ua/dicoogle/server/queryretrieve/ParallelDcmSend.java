@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che2.net.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+
+/** Sends the files of a C-MOVE over several associations to the same destination.
+ *
+ * The file list is partitioned in contiguous chunks, one per association,
+ * so that each association negotiates only the SOP classes of its own files.
+ * Each association keeps several C-STORE requests outstanding
+ * (if the destination accepts asynchronous operations),
+ * and the outcome of every sub-operation is recorded in a {@link MoveProgress} as soon as it is known.
+ *
+ * The number of associations and of outstanding operations per association are configured with the
+ * system properties <tt>dicoogle.move.associations</tt> and <tt>dicoogle.move.maxOpsInvoked</tt>.
+ */
+public class ParallelDcmSend {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelDcmSend.class);
+
+    private static final int ASSOCIATIONS =
+            Integer.parseInt(System.getProperty("dicoogle.move.associations", "2"));
+    private static final int MAX_OPS_INVOKED =
+            Integer.parseInt(System.getProperty("dicoogle.move.maxOpsInvoked", "8"));
+    /** Smaller moves are not worth an additional association */
+    private static final int MIN_FILES_PER_ASSOCIATION =
+            Integer.parseInt(System.getProperty("dicoogle.move.minFilesPerAssociation", "16"));
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final String hostname;
+    private final int port;
+    private final String calledAET;
+    private final String moveOriginatorMessageID;
+    private final MoveProgress progress;
+
+    private final List<DicoogleDcmSend> senders = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param hostname the destination's host name
+     * @param port the destination's port
+     * @param calledAET the destination's AE title
+     * @param moveOriginatorMessageID the message ID of the C-MOVE request
+     * @param progress the progress counters to update
+     */
+    public ParallelDcmSend(String hostname, int port, String calledAET, String moveOriginatorMessageID,
+            MoveProgress progress) {
+        this.hostname = hostname;
+        this.port = port;
+        this.calledAET = calledAET;
+        this.moveOriginatorMessageID = moveOriginatorMessageID;
+        this.progress = progress;
+    }
+
+    /** Send the given files, blocking until all of them were sent or the transfer was cancelled.
+     * The caller registers the files as sub-operations in the progress counters
+     * before starting the transfer.
+     *
+     * @param files the locations of the files to send
+     * @return true if the transfer went through, false if a fatal transmission error occurred
+     * in any of the associations
+     * @throws InterruptedException if interrupted while waiting for the transfer
+     */
+    public boolean send(List<URI> files) throws InterruptedException {
+        if (files.isEmpty()) {
+            return true;
+        }
+
+        int n = Math.max(1, Math.min(ASSOCIATIONS,
+                (files.size() + MIN_FILES_PER_ASSOCIATION - 1) / MIN_FILES_PER_ASSOCIATION));
+        int chunk = (files.size() + n - 1) / n;
+        List<List<URI>> partitions = new ArrayList<>(n);
+        for (int i = 0; i < files.size(); i += chunk) {
+            partitions.add(files.subList(i, Math.min(files.size(), i + chunk)));
+        }
+        logger.debug("Sending {} files to {} over {} associations", files.size(), calledAET, partitions.size());
+
+        if (partitions.size() == 1) {
+            return sendPartition(partitions.get(0));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(partitions.size(), r -> {
+            Thread t = new Thread(r, "DCMSND-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Boolean>> results = new ArrayList<>(partitions.size());
+            for (List<URI> partition : partitions) {
+                results.add(pool.submit((Callable<Boolean>) () -> sendPartition(partition)));
+            }
+            boolean ok = true;
+            for (Future<Boolean> f : results) {
+                try {
+                    ok &= f.get();
+                } catch (ExecutionException ex) {
+                    logger.error("Failed to send files to {}", calledAET, ex.getCause());
+                    ok = false;
+                }
+            }
+            return ok;
+        } catch (InterruptedException ex) {
+            cancel();
+            throw ex;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Stop sending further files in all associations. */
+    public void cancel() {
+        cancelled = true;
+        for (DicoogleDcmSend dcmsnd : senders) {
+            dcmsnd.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private boolean sendPartition(List<URI> files) throws InterruptedException {
+        DicoogleDcmSend dcmsnd = new DicoogleDcmSend();
+        senders.add(dcmsnd);
+        if (cancelled) {
+            dcmsnd.cancel();
+        }
+        dcmsnd.setRemoteHost(hostname);
+        dcmsnd.setRemotePort(port);
+        dcmsnd.setCalledAET(calledAET);
+        dcmsnd.setMaxOpsInvoked(MAX_OPS_INVOKED);
+        dcmsnd.setMoveOriginatorMessageID(moveOriginatorMessageID);
+
+        AtomicInteger outcomes = new AtomicInteger();
+        dcmsnd.setSubOperationListener((info, status) -> {
+            outcomes.incrementAndGet();
+            progress.onSubOperation(status);
+        });
+
+        for (URI uri : files) {
+            if (cancelled) {
+                return true;
+            }
+            StorageInterface plugin = PluginController.getInstance().getStorageForSchema(uri);
+            if (plugin == null) {
+                logger.warn("No storage for {}, file not sent", uri);
+                progress.addFailed(1);
+                continue;
+            }
+            logger.debug("Retrieving {}", uri);
+            int items = 0;
+            for (StorageInputStream file : plugin.at(uri)) {
+                int skipped = dcmsnd.getNumberOfFilesSkipped();
+                dcmsnd.addFile(file);
+                if (dcmsnd.getNumberOfFilesSkipped() > skipped) {
+                    progress.addFailed(1);
+                }
+                items += 1;
+            }
+            // one sub-operation was accounted for each location
+            if (items == 0) {
+                progress.addFailed(1);
+            } else if (items > 1) {
+                progress.addTotal(items - 1);
+            }
+        }
+        int toSend = dcmsnd.getNumberOfFilesToSend();
+        if (toSend == 0) {
+            return true;
+        }
+
+        dcmsnd.configureTransferCapability();
+        boolean opened = false;
+        try {
+            dcmsnd.start();
+            dcmsnd.open();
+            opened = true;
+            dcmsnd.send();
+            return true;
+        } catch (IOException | ConfigurationException ex) {
+            logger.error("Failed to send files to DICOM node {}", calledAET, ex);
+            // the sub-operations without a response are lost
+            progress.addFailed(Math.max(0, toSend - outcomes.get()));
+            return false;
+        } finally {
+            if (opened) {
+                dcmsnd.close();
+            }
+        }
+    }
+}
@@ -41,6 +41,8 @@ import pt.ua.dicoogle.server.web.servlets.management.ForceIndexing;
 import pt.ua.dicoogle.server.web.servlets.management.IndexerSettingsServlet;
 import pt.ua.dicoogle.server.web.servlets.management.LoggerServlet;
 import pt.ua.dicoogle.server.web.servlets.management.RemoveServlet;
+import pt.ua.dicoogle.server.web.servlets.management.IndexQueueServlet;
+import pt.ua.dicoogle.server.web.servlets.management.QueryCacheServlet;
 import pt.ua.dicoogle.server.web.servlets.management.RunningTasksServlet;
 import pt.ua.dicoogle.server.web.servlets.management.ServerStorageServlet;
 import pt.ua.dicoogle.server.web.servlets.management.ServicesServlet;
@@ -79,15 +81,18 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.hash.Hashing;
 
+import pt.ua.dicoogle.server.IndexQueueWorker;
 import pt.ua.dicoogle.server.LegacyRestletApplication;
 import pt.ua.dicoogle.server.web.servlets.accounts.LogoutServlet;
 import pt.ua.dicoogle.server.web.servlets.search.DumpServlet;
 import pt.ua.dicoogle.server.web.servlets.management.UnindexServlet;
 import pt.ua.dicoogle.server.web.servlets.webui.WebUIModuleServlet;
 import pt.ua.dicoogle.server.web.servlets.webui.WebUIServlet;
-import pt.ua.dicoogle.server.web.utils.LocalImageCache;
 import pt.ua.dicoogle.server.PluginRestletApplication;
 import pt.ua.dicoogle.server.web.utils.SimpleImageRetriever;
+import pt.ua.dicoogle.server.web.utils.cache.FrameReaderCache;
+import pt.ua.dicoogle.server.web.utils.cache.RenderCache;
+import pt.ua.dicoogle.server.web.utils.cache.ThumbnailPrerenderer;
 
 /**
  * @author António Novo <antonio.novo@ua.pt>
@@ -108,7 +113,9 @@ public class DicoogleWeb {
      * Sets the context path used to serve the contents.
      */
     public static final String CONTEXTPATH = "/";
-    private LocalImageCache cache = null;
+    private FrameReaderCache frames = null;
+    private RenderCache cache = null;
+    private ThumbnailPrerenderer prerenderer = null;
     private Server server = null;
 
     private final ContextHandlerCollection contextHandlers;
@@ -132,9 +139,14 @@ public class DicoogleWeb {
         final String warUrlString = warUrl.toExternalForm();
 
         // setup the DICOM to PNG image servlet, with a local cache
-        cache = new LocalImageCache("dic2png", 300, 900, new SimpleImageRetriever()); // pooling rate of 12/hr and max un-used cache age of 15 minutes
-        final ServletContextHandler dic2png = createServletHandler(new ImageServlet(cache), "/dic2png");
-        cache.start(); // start the caching system
+        // reading the frames of multi-frame objects with readers kept open for a while
+        frames = FrameReaderCache.create();
+        SimpleImageRetriever retriever = new SimpleImageRetriever(frames);
+        cache = RenderCache.create(retriever);
+        // and have the thumbnails of newly stored objects rendered into it
+        prerenderer = ThumbnailPrerenderer.create(cache, retriever);
+        IndexQueueWorker.getInstance().addIndexListener(prerenderer);
+        final ServletContextHandler dic2png = createServletHandler(new ImageServlet(cache, frames), "/dic2png");
 
         // setup the ROI extractor
         final ServletContextHandler roiExtractor = createServletHandler(new ROIServlet(), "/roi");
@@ -185,6 +197,7 @@ public class DicoogleWeb {
                 createServletHandler(new LogoutServlet(), "/logout"),
                 createServletHandler(new UserServlet(), "/user/*"),
                 createServletHandler(new SearchServlet(), "/search"),
+                createServletHandler(new SearchCountServlet(), "/search/count"),
                 createServletHandler(new SearchServlet(SearchType.PATIENT), "/searchDIM"),
                 createServletHandler(new DumpServlet(), "/dump"),
                 createServletHandler(new IndexerSettingsServlet(IndexerSettingsServlet.SettingsType.path),
@@ -218,6 +231,8 @@ public class DicoogleWeb {
                 createServletHandler(new WebUIServlet(), "/webui"), createWebUIModuleServletHandler(),
                 createServletHandler(new LoggerServlet(), "/logger"),
                 createServletHandler(new RunningTasksServlet(), "/index/task"),
+                createServletHandler(new IndexQueueServlet(), "/index/queue"),
+                createServletHandler(new QueryCacheServlet(), "/search/cache"),
                 createServletHandler(new ExportServlet(ExportType.EXPORT_CVS), "/export/cvs"),
                 createServletHandler(new ExportServlet(ExportType.LIST), "/export/list"),
                 createServletHandler(new ServerStorageServlet(), "/management/settings/storage/dicom"),
@@ -377,11 +392,20 @@ public class DicoogleWeb {
             server = null;
         } finally {
 
-            // and remove the local cache, if any
+            // and close the render caches, if any
+            if (prerenderer != null) {
+                IndexQueueWorker.getInstance().removeIndexListener(prerenderer);
+                prerenderer.close();
+                prerenderer = null;
+            }
             if (cache != null) {
-                cache.terminate();
+                cache.close();
                 cache = null;
             }
+            if (frames != null) {
+                frames.close();
+                frames = null;
+            }
         }
 
         this.pluginHandler = null;
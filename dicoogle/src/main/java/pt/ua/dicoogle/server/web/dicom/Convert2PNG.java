@@ -191,19 +191,26 @@ public class Convert2PNG {
      * @throws IOException if the I/O operations on the images fail
      */
     public static ByteArrayOutputStream DICOM2PNGStream(InputStream iStream, int frameIndex) throws IOException {
-        // setup the PNG writer
-        ImageWriter writer = createPNGImageWriter();
-
-        ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it (height, weight, alpha)
-        writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
-
-        BufferedImage image = ImageLoader.loadImage(iStream);
+        BufferedImage image = ImageLoader.loadImage(iStream, frameIndex, 0, 0);
+        return PNGStream(image);
+    }
 
+    /**
+     * Encodes an image, such as a frame already read from a DICOM file, as a PNG memory stream.
+     *
+     * @param image the image to encode
+     * @return the image encoded in a PNG memory stream.
+     * @throws IOException if the I/O operations on the image fail
+     */
+    public static ByteArrayOutputStream PNGStream(BufferedImage image) throws IOException {
         // mount the resulting memory stream
         ByteArrayOutputStream result = new ByteArrayOutputStream();
 
-        // write the specified frame to the resulting stream
+        // write the image to the resulting stream
         try (ImageOutputStream outStream = ImageIO.createImageOutputStream(result)) {
+            ImageWriter writer = createPNGImageWriter();
+            ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it
+            writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
             writer.setOutput(outStream);
             writer.write(image);
         }
@@ -237,24 +244,12 @@ public class Convert2PNG {
             throw new IllegalArgumentException("bad height");
         }
 
-        // setup the PNG writer
-        BufferedImage image = ImageLoader.loadImage(inStream);
+        // decode only as many pixels as needed for scaling down to the given dimensions
+        BufferedImage image = ImageLoader.loadImage(inStream, frameIndex, width, height);
 
         image = scaleImage(image, width, height);
 
-        // mount the resulting memory stream
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-
-        // write the specified frame to the resulting stream
-        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(result)) {
-            ImageWriter writer = createPNGImageWriter();
-            ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it
-            writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
-            writer.setOutput(outStream);
-            writer.write(image);
-        }
-
-        return result;
+        return PNGStream(image);
     }
 
     /**
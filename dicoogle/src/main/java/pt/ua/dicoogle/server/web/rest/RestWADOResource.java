@@ -18,11 +18,14 @@
  */
 package pt.ua.dicoogle.server.web.rest;
 
+import org.restlet.data.CacheDirective;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.representation.OutputRepresentation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
 import pt.ua.dicoogle.server.web.rest.elements.FileDownloadUtils;
+import pt.ua.dicoogle.server.web.utils.HttpCaching;
 
 /**
  *
@@ -59,6 +62,27 @@ public class RestWADOResource extends ServerResource {
             setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
         }
 
-        return FileDownloadUtils.gerFileRepresentation(objectUID);
+        if (!getStatus().isSuccess()) {
+            return FileDownloadUtils.gerFileRepresentation(objectUID);
+        }
+
+        // the object never changes, so the client may use the one it holds
+        String tag = HttpCaching.tag("wado-object", objectUID, contentType);
+        getResponse().getCacheDirectives().add(CacheDirective.publicInfo());
+        getResponse().getCacheDirectives().add(CacheDirective.maxAge((int) HttpCaching.getMaxAge()));
+        for (Tag t : getRequest().getConditions().getNoneMatch()) {
+            if (tag.equals(t.getName())) {
+                setStatus(Status.REDIRECTION_NOT_MODIFIED);
+                return null;
+            }
+        }
+
+        OutputRepresentation representation = FileDownloadUtils.gerFileRepresentation(objectUID);
+        if (representation != null) {
+            representation.setTag(new Tag(tag, false));
+        } else {
+            getResponse().getCacheDirectives().clear();
+        }
+        return representation;
     }
 }
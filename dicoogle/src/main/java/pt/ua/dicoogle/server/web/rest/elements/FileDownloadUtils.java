@@ -27,20 +27,15 @@ package pt.ua.dicoogle.server.web.rest.elements;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
-import java.util.HashMap;
-import java.util.concurrent.ExecutionException;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.restlet.data.Disposition;
 import org.restlet.data.MediaType;
 import org.restlet.representation.OutputRepresentation;
+import pt.ua.dicoogle.core.query.InstanceURIResolver;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
-import pt.ua.dicoogle.sdk.task.Task;
-import pt.ua.dicoogle.server.web.rest.RestDimResource;
 import pt.ua.dicoogle.server.web.rest.RestFileResource;
 
 /**
@@ -50,30 +45,10 @@ import pt.ua.dicoogle.server.web.rest.RestFileResource;
 public class FileDownloadUtils {
 
     public static OutputRepresentation gerFileRepresentation(String SOPInstanceUID) {
-        String query = "SOPInstanceUID:" + SOPInstanceUID;
-
-        HashMap<String, String> extraFields = new HashMap<>();
-        extraFields.put("SOPInstanceUID", "SOPInstanceUID");
-
         PluginController pc = PluginController.getInstance();
-        JointQueryTask task = new MyHolder();
-        pc.queryAll(task, query, extraFields);
-        Iterable<SearchResult> queryResults = null;
-        try {
-            queryResults = task.get();
-        } catch (InterruptedException | ExecutionException ex) {
-            LoggerFactory.getLogger(RestFileResource.class).error(ex.getMessage(), ex);
+        URI fileURI = InstanceURIResolver.getInstance().resolve(SOPInstanceUID, pc.getQueryProvidersName(true));
+        if (fileURI == null)
             return null;
-        }
-
-        if (!queryResults.iterator().hasNext())
-            return null;
-
-        URI fileURI = null;
-        for (SearchResult r : queryResults) {
-            LoggerFactory.getLogger(RestDimResource.class).error(r.getURI().toString());
-            fileURI = r.getURI();
-        }
 
         Iterable<StorageInputStream> str = pc.resolveURI(fileURI);
         if (!str.iterator().hasNext())
@@ -97,15 +72,6 @@ public class FileDownloadUtils {
         return null;
     }
 
-    private static class MyHolder extends JointQueryTask {
-
-        @Override
-        public void onCompletion() {}
-
-        @Override
-        public void onReceive(Task<Iterable<SearchResult>> e) {}
-    }
-
     private static class MyOutput extends OutputRepresentation {
 
         private final StorageInputStream stream;
@@ -30,10 +30,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.UUID;
 
 import javax.servlet.ServletOutputStream;
 
@@ -41,23 +41,31 @@ import net.sf.json.JSONObject;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.query.InstanceURIResolver;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
-import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.sdk.utils.QueryParseException;
 import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
 import pt.ua.dicoogle.server.web.dicom.Information;
-import pt.ua.dicoogle.server.web.utils.LocalImageCache;
+import pt.ua.dicoogle.server.web.utils.HttpCaching;
+import pt.ua.dicoogle.server.web.utils.ImageRetriever;
 import pt.ua.dicoogle.server.web.utils.ResponseUtil;
+import pt.ua.dicoogle.server.web.utils.cache.FrameReaderCache;
 
 /**
  * Handles the requests for DICOM frames, returning them as PNG images.
  * Also maintains a cache of the images already served to speed-up the next requests (minimizing server load by doing way less conversions).
  *
+ * A range of frames (<tt>frames=first-last</tt>, or <tt>frames=first-</tt> up to the last frame) is returned
+ * as a <tt>multipart/related</tt> response with one PNG image per part, in frame order, each one sent as soon as
+ * it is rendered. At most <tt>dicoogle.frames.maxRange</tt> frames are returned per request.
+ *
+ * Images are tagged by instance, frames and size, and may be cached for long, as they never change.
+ * Requests for images which the client already holds are answered with 304 Not Modified
+ * without looking up the instance.
+ *
  * @author Antonio
  * @author Eduardo Pinho <eduardopinho@ua.pt>
  */
@@ -67,15 +75,29 @@ public class ImageServlet extends HttpServlet {
 
     public static final int BUFFER_SIZE = 1500; // byte size for read-write ring bufer, optimized for regular TCP connection windows
 
-    private final LocalImageCache cache;
+    private static final int MAX_FRAME_RANGE = Integer.parseInt(System.getProperty("dicoogle.frames.maxRange", "1000"));
+
+    private final ImageRetriever cache;
+    private final FrameReaderCache frames;
 
     /**
      * Creates an image servlet.
      *
-     * @param cache the local image caching system, can be null and if so no caching mechanism will be used.
+     * @param cache the image caching system, can be null and if so no caching mechanism will be used.
      */
-    public ImageServlet(LocalImageCache cache) {
+    public ImageServlet(ImageRetriever cache) {
+        this(cache, null);
+    }
+
+    /**
+     * Creates an image servlet.
+     *
+     * @param cache the image caching system, can be null and if so no caching mechanism will be used.
+     * @param frames the cache of open image readers, used for counting frames, can be null
+     */
+    public ImageServlet(ImageRetriever cache, FrameReaderCache frames) {
         this.cache = cache;
+        this.frames = frames;
     }
 
     @Override
@@ -107,6 +129,13 @@ public class ImageServlet extends HttpServlet {
         } else {
             frame = Integer.parseInt(sFrame);
         }
+        String frameRange = request.getParameter("frames");
+
+        // the renderings of an instance never change, so the client may use the one it holds
+        String tag = renderTag(sopInstanceUID, uri, frame, frameRange, thumbnail);
+        if (HttpCaching.notModified(request, response, tag, HttpCaching.IMMUTABLE)) {
+            return;
+        }
 
         StorageInputStream imgFile;
         if (sopInstanceUID != null) {
@@ -141,12 +170,18 @@ public class ImageServlet extends HttpServlet {
             }
         }
 
+        if (frameRange != null) {
+            writeFrames(response, imgFile, frameRange, thumbnail, tag);
+            return;
+        }
+
         // if there is a cache available then use it
-        if (cache != null && cache.isRunning()) {
+        if (cache != null) {
 
             try {
                 InputStream istream = cache.get(imgFile.getURI(), frame, thumbnail);
                 response.setContentType("image/png");
+                HttpCaching.setValidators(response, tag, HttpCaching.IMMUTABLE);
                 try (ServletOutputStream out = response.getOutputStream()) {
                     IOUtils.copy(istream, out);
                 }
@@ -164,6 +199,7 @@ public class ImageServlet extends HttpServlet {
                 ByteArrayOutputStream pngStream = getPNGStream(imgFile, frame, thumbnail);
                 response.setContentType("image/png"); // set the appropriate type for the PNG image
                 response.setContentLength(pngStream.size()); // set the image size
+                HttpCaching.setValidators(response, tag, HttpCaching.IMMUTABLE);
                 try (ServletOutputStream out = response.getOutputStream()) {
                     pngStream.writeTo(out);
                     pngStream.flush();
@@ -175,6 +211,93 @@ public class ImageServlet extends HttpServlet {
         }
     }
 
+    /** Write a range of frames as a multipart response. */
+    private void writeFrames(HttpServletResponse response, StorageInputStream imgFile, String range, boolean thumbnail,
+            String tag) throws IOException {
+        int first;
+        int last;
+        try {
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                first = last = Integer.parseInt(range.trim());
+            } else {
+                first = Integer.parseInt(range.substring(0, dash).trim());
+                String end = range.substring(dash + 1).trim();
+                last = end.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(end);
+            }
+        } catch (NumberFormatException ex) {
+            ResponseUtil.sendError(response, 400, "Bad frame range");
+            return;
+        }
+
+        int frameCount;
+        try {
+            frameCount = frames != null ? frames.getFrameCount(imgFile.getURI(), imgFile::getInputStream)
+                    : Convert2PNG.getNumberOfFrames(imgFile);
+        } catch (IOException ex) {
+            logger.warn("Could not read the number of frames", ex);
+            frameCount = -1;
+        }
+        if (frameCount < 0) {
+            ResponseUtil.sendError(response, 500, "Failed to read the image");
+            return;
+        }
+        last = Math.min(last, frameCount - 1);
+        if (first < 0 || first > last) {
+            ResponseUtil.sendError(response, 400, "Frame range out of bounds, the image has " + frameCount + " frames");
+            return;
+        }
+        if (last - first >= MAX_FRAME_RANGE) {
+            ResponseUtil.sendError(response, 400, "Too many frames, at most " + MAX_FRAME_RANGE + " per request");
+            return;
+        }
+
+        String boundary = "frames-" + UUID.randomUUID();
+        response.setContentType("multipart/related; type=\"image/png\"; boundary=" + boundary);
+        HttpCaching.setValidators(response, tag, HttpCaching.IMMUTABLE);
+        try (ServletOutputStream out = response.getOutputStream()) {
+            for (int frame = first; frame <= last; frame++) {
+                byte[] png;
+                try {
+                    png = renderFrame(imgFile, frame, thumbnail);
+                } catch (IOException | RuntimeException ex) {
+                    // the parts already sent cannot be taken back, so stop at the failing frame
+                    logger.warn("Could not convert frame {} of {}", frame, imgFile.getURI(), ex);
+                    if (!response.isCommitted()) {
+                        response.reset();
+                        ResponseUtil.sendError(response, 500, "Failed to convert the image");
+                    }
+                    return;
+                }
+                String headers =
+                        "--" + boundary + "\r\nContent-Type: image/png\r\nContent-Length: " + png.length + "\r\n\r\n";
+                out.write(headers.getBytes(StandardCharsets.US_ASCII));
+                out.write(png);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                // let each frame out as soon as it is ready
+                out.flush();
+            }
+            out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /** The entity tag of an image, which tells apart each instance, frame and size. */
+    private static String renderTag(String sopInstanceUID, String uri, int frame, String frameRange,
+            boolean thumbnail) {
+        int size = thumbnail ? ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize() : 0;
+        return HttpCaching.tag("dic2png", sopInstanceUID != null ? "sop:" + sopInstanceUID : "uri:" + uri, frame,
+                frameRange, size);
+    }
+
+    private byte[] renderFrame(StorageInputStream imgFile, int frame, boolean thumbnail) throws IOException {
+        if (cache != null) {
+            try (InputStream istream = cache.get(imgFile.getURI(), frame, thumbnail)) {
+                return IOUtils.toByteArray(istream);
+            }
+        }
+        return getPNGStream(imgFile, frame, thumbnail).toByteArray();
+    }
+
     private ByteArrayOutputStream getPNGStream(StorageInputStream imgFile, int frame, boolean thumbnail)
             throws IOException {
         ByteArrayOutputStream pngStream;
@@ -220,47 +343,20 @@ public class ImageServlet extends HttpServlet {
 
     private static StorageInputStream getFileFromSOPInstanceUID(String sopInstanceUID, List<String> providers)
             throws IOException {
-        JointQueryTask qt = new JointQueryTask() {
-            @Override
-            public void onCompletion() {}
-
-            @Override
-            public void onReceive(Task<Iterable<SearchResult>> e) {}
-        };
-        try {
-            PluginController pc = PluginController.getInstance();
-            if (providers == null) {
-                // use only DIM sources
-                providers = ServerSettingsManager.getSettings().getArchiveSettings().getDIMProviders();
-                if (providers == null) {
-                    // fallback to all query providers
-                    providers = pc.getQueryProvidersName(true);
-                } else {
-                    // exclude unknown query providers
-                    providers.removeIf(pName -> pc.getQueryProviderByName(pName, true) == null);
-                    if (providers.isEmpty()) {
-                        // fallback to all query providers
-                        providers = pc.getQueryProvidersName(true);
-                    }
-                }
-            }
-            Iterator<SearchResult> it =
-                    pc.query(qt, providers, "SOPInstanceUID:\"" + sopInstanceUID + '"').get().iterator();
-            if (!it.hasNext()) {
-                throw new IOException("No such image of SOPInstanceUID " + sopInstanceUID);
-            }
-            SearchResult res = it.next();
-            StorageInterface storage = pc.getStorageForSchema(res.getURI());
-            if (storage == null) {
-                throw new IOException("Unsupported file scheme");
-            }
-            StorageInputStream item = storage.get(res.getURI());
-            if (item == null) {
-                throw new IOException("No storage item found");
-            }
-            return item;
-        } catch (InterruptedException | ExecutionException ex) {
-            throw new IOException(ex);
+        PluginController pc = PluginController.getInstance();
+        // null providers stand for the DIM sources
+        URI uri = InstanceURIResolver.getInstance().resolve(sopInstanceUID, providers);
+        if (uri == null) {
+            throw new IOException("No such image of SOPInstanceUID " + sopInstanceUID);
+        }
+        StorageInterface storage = pc.getStorageForSchema(uri);
+        if (storage == null) {
+            throw new IOException("Unsupported file scheme");
+        }
+        StorageInputStream item = storage.get(uri);
+        if (item == null) {
+            throw new IOException("No storage item found");
         }
+        return item;
     }
 }
@@ -29,6 +29,7 @@ import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.sdk.datastructs.dim.BulkAnnotation;
 import pt.ua.dicoogle.sdk.datastructs.dim.Point2D;
 import pt.ua.dicoogle.server.web.dicom.ROIExtractor;
+import pt.ua.dicoogle.server.web.utils.HttpCaching;
 import pt.ua.dicoogle.server.web.utils.cache.WSICache;
 
 import javax.imageio.ImageIO;
@@ -96,12 +97,19 @@ public class ROIServlet extends HttpServlet {
             return;
         }
 
+        // the regions of an instance never change, so the client may use the one it holds
+        String tag = HttpCaching.tag("roi", sopInstanceUID, x, y, width, height);
+        if (HttpCaching.notModified(request, response, tag, HttpCaching.IMMUTABLE)) {
+            return;
+        }
+
         DicomMetaData metaData = getDicomMetadata(sopInstanceUID);
 
         BufferedImage bi = roiExtractor.extractROI(metaData, annotationType, annotation);
 
         if (bi != null) {
             response.setContentType("image/jpeg");
+            HttpCaching.setValidators(response, tag, HttpCaching.IMMUTABLE);
             OutputStream out = response.getOutputStream();
             ImageIO.write(bi, "jpg", out);
             out.close();
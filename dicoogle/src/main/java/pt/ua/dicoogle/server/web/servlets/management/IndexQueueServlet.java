@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.servlets.management;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.server.IndexQueueWorker;
+
+/** Exposes the metrics of the index queue of the storage service.
+ */
+public class IndexQueueServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        IndexQueueWorker worker = IndexQueueWorker.getInstance();
+
+        JSONObject object = new JSONObject();
+        object.put("depth", worker.getQueueDepth());
+        object.put("lag", worker.getLag());
+        object.put("averageTimeInQueue", worker.getAverageTimeInQueue());
+        object.put("maxTimeInQueue", worker.getMaxTimeInQueue());
+        object.put("enqueued", worker.getEnqueuedCount());
+        object.put("dequeued", worker.getDequeuedCount());
+        object.put("saturated", worker.isSaturated());
+        object.put("highWatermark", worker.getHighWatermark());
+        object.put("lowWatermark", worker.getLowWatermark());
+
+        resp.setContentType("application/json");
+        resp.getWriter().write(object.toString());
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.servlets.management;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.core.query.QueryResultCache;
+import pt.ua.dicoogle.plugins.PluginController;
+
+/** Exposes the metrics of the query result cache, and allows clearing it.
+ */
+public class QueryCacheServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        QueryResultCache cache = PluginController.getInstance().getQueryCache();
+
+        JSONObject object = new JSONObject();
+        object.put("enabled", cache != null);
+        if (cache != null) {
+            object.put("size", cache.getSize());
+            object.put("weight", cache.getWeight());
+            object.put("hits", cache.getHitCount());
+            object.put("misses", cache.getMissCount());
+            object.put("hitRatio", cache.getHitRatio());
+            object.put("evictions", cache.getEvictionCount());
+            object.put("invalidations", cache.getInvalidationCount());
+            object.put("uncacheable", cache.getUncacheableCount());
+        }
+
+        resp.setContentType("application/json");
+        resp.getWriter().write(object.toString());
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        QueryResultCache cache = PluginController.getInstance().getQueryCache();
+        if (cache != null) {
+            cache.clear();
+        }
+        resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+}
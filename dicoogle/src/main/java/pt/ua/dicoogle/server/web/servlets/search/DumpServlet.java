@@ -23,10 +23,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import org.slf4j.LoggerFactory;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -42,6 +42,7 @@ import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.sdk.utils.TagValue;
 import pt.ua.dicoogle.sdk.utils.TagsStruct;
+import pt.ua.dicoogle.server.web.utils.HttpCaching;
 
 /**
  * Dump of DICOM metadata
@@ -56,6 +57,7 @@ public class DumpServlet extends HttpServlet {
         String uid = req.getParameter("uid");
         if (StringUtils.isEmpty(uid)) {
             resp.sendError(400, "No uid supplied");
+            return;
         }
 
         String[] providerArr = req.getParameterValues("provider");
@@ -64,6 +66,13 @@ public class DumpServlet extends HttpServlet {
 
         if (providers.size() == 0) {
             resp.sendError(400, "No valid DIM providers supplied.");
+            return;
+        }
+
+        // the metadata only changes with the index, so the client may use what it holds until then
+        String tag = HttpCaching.indexTag("dump", uid, providers);
+        if (HttpCaching.notModified(req, resp, tag, HttpCaching.REVALIDATE)) {
+            return;
         }
 
         String query = "SOPInstanceUID:" + uid;
@@ -86,27 +95,28 @@ public class DumpServlet extends HttpServlet {
         };
 
         long tick = System.currentTimeMillis();
-        Iterable<SearchResult> results;
-        try {
-            results = PluginController.getInstance().query(queryTaskHolder, providers, query, extraFields).get();
-        } catch (InterruptedException | ExecutionException ex) {
+        String json;
+        // the SOP instance UID is unique, stop at the first provider which has it
+        try (JointQueryTask.ResultStream results =
+                PluginController.getInstance().query(queryTaskHolder, providers, query, extraFields).stream(1)) {
+            json = processJSON(results, tick);
+        } catch (RuntimeException ex) {
             logger.warn("Failed to generate results", ex);
             resp.sendError(500, "Could not generate results!");
             return;
         }
 
-        long time = System.currentTimeMillis() - tick;
-        String json = processJSON(results, time);
-
         resp.setContentType("application/json");
+        HttpCaching.setValidators(resp, tag, HttpCaching.REVALIDATE);
         resp.getWriter().append(json);
     }
 
-    private static String processJSON(Iterable<SearchResult> results, long elapsedTime) {
+    private static String processJSON(Iterator<SearchResult> results, long startTime) {
         JSONObject resp = new JSONObject();
         JSONObject rj = new JSONObject();
         JSONObject fields = new JSONObject();
-        for (SearchResult r : results) {
+        while (results.hasNext()) {
+            SearchResult r = results.next();
             rj.put("uri", r.getURI().toString());
             for (Map.Entry<String, Object> e : r.getExtraData().entrySet()) {
                 fields.put(e.getKey(), e.getValue());
@@ -114,7 +124,7 @@ public class DumpServlet extends HttpServlet {
         }
         rj.put("fields", fields);
         resp.put("results", rj);
-        resp.put("elapsedTime", elapsedTime);
+        resp.put("elapsedTime", System.currentTimeMillis() - startTime);
         return resp.toString();
     }
 
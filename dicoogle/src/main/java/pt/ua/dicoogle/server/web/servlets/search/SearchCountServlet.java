@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.servlets.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.core.QueryExpressionBuilder;
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimCounts;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.sdk.utils.QueryParseException;
+
+/**
+ * Count the patients, studies, series and instances matching a query, without retrieving the results.
+ *
+ * The counts of each provider are added up, so entities found by more than one provider are counted more than once.
+ */
+public class SearchCountServlet extends HttpServlet {
+    private static final Logger logger = LoggerFactory.getLogger(SearchCountServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        /*
+         Example: http://localhost:8080/search/count?query=Modality:MR&provider=lucene
+         */
+        response.setContentType("application/json");
+
+        String query = request.getParameter("query");
+        String[] providers = request.getParameterValues("provider");
+        String pExpand = request.getParameter("expand");
+        boolean expand = pExpand != null && (pExpand.isEmpty() || Boolean.parseBoolean(pExpand));
+
+        if (StringUtils.isEmpty(query)) {
+            sendError(response, 400, "No query supplied!");
+            return;
+        }
+        if (expand) {
+            query = new QueryExpressionBuilder(query).getQueryString();
+        }
+
+        PluginController pc = PluginController.getInstance();
+        List<String> providerList = providers != null ? Arrays.asList(providers) : new ArrayList<>();
+        if (providers != null) {
+            List<String> activeProviders = pc.getQueryProvidersName(true);
+            for (String p : providers) {
+                if (!activeProviders.contains(p)) {
+                    sendError(response, 400, p + " is not a valid query provider");
+                    return;
+                }
+            }
+        }
+        providerList = pc.filterDicomQueryProviders(providerList);
+        if (providerList.isEmpty()) {
+            sendError(response, 400, "No valid DIM providers supplied.");
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        DimCounts counts = DimCounts.EMPTY;
+        try {
+            for (Task<DimCounts> t : pc.countQuery(providerList, query)) {
+                try {
+                    counts = counts.plus(t.get());
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof QueryParseException) {
+                        sendError(response, 400, ex.getCause().getMessage());
+                        return;
+                    }
+                    logger.warn("Query provider {} could not count the results", t.getName(), ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            sendError(response, 500, "Could not count results");
+            return;
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("patients", counts.getPatients());
+        obj.put("studies", counts.getStudies());
+        obj.put("series", counts.getSeries());
+        obj.put("instances", counts.getInstances());
+        obj.put("elapsedTime", System.currentTimeMillis() - startTime);
+        response.getWriter().write(obj.toString());
+    }
+
+    private static void sendError(HttpServletResponse resp, int code, String message) throws IOException {
+        resp.setStatus(code);
+        JSONObject obj = new JSONObject();
+        obj.put("error", message);
+        resp.getWriter().append(obj.toString());
+    }
+}
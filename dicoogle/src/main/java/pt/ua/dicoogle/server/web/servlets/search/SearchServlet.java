@@ -25,10 +25,9 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
-import java.util.concurrent.ExecutionException;
 
-import com.google.common.collect.ImmutableList;
 import net.sf.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONWriter;
@@ -40,12 +39,17 @@ import net.sf.json.JSONObject;
 import org.apache.commons.lang3.StringUtils;
 
 import pt.ua.dicoogle.core.QueryExpressionBuilder;
-import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
+import pt.ua.dicoogle.core.query.PagedQuery;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimBuilder;
+import pt.ua.dicoogle.sdk.datastructs.dim.Patient;
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.QueryHints;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.sdk.utils.QueryParseException;
+import pt.ua.dicoogle.server.web.utils.DimJsonWriter;
+import pt.ua.dicoogle.server.web.utils.ResponseUtil;
 
 /**
  * Search the DICOM metadata, perform queries on images. Returns the data in JSON.
@@ -62,6 +66,10 @@ public class SearchServlet extends HttpServlet {
             "SeriesInstanceUID", "PatientID", "PatientName", "PatientSex", "Modality", "StudyDate", "StudyID",
             "StudyDescription", "SeriesNumber", "SeriesDescription", "InstitutionName", "InstanceNumber");
 
+    /** the deadline of a search in milliseconds, unless given in the request, 0 for none */
+    private static final int DEFAULT_TIMEOUT =
+            Integer.parseInt(System.getProperty("dicoogle.query.requestTimeout", "0"));
+
     public enum SearchType {
         ALL, PATIENT;
     }
@@ -142,6 +150,42 @@ public class SearchServlet extends HttpServlet {
         } else {
             depth = 4;
         }
+        final int timeout;
+        try {
+            timeout = getReqParameter(request, "timeout", DEFAULT_TIMEOUT);
+            if (timeout < 0)
+                throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            sendError(response, 400, "Invalid parameter timeout: must be a non-negative integer");
+            return;
+        }
+        String cursor = request.getParameter("cursor");
+        String[] sortParams = request.getParameterValues("sort");
+        if ((cursor != null || sortParams != null) && this.searchType != SearchType.ALL) {
+            sendError(response, 400, "Parameters cursor and sort are only applicable to /search endpoint");
+            return;
+        }
+        if (cursor != null && request.getParameter("offset") != null) {
+            sendError(response, 400, "Parameters cursor and offset cannot be used together");
+            return;
+        }
+        List<QueryHints.SortField> sort = new ArrayList<>();
+        if (sortParams != null) {
+            for (String param : sortParams) {
+                for (String f : param.split(",")) {
+                    f = f.trim();
+                    boolean descending = f.startsWith("-");
+                    if (descending || f.startsWith("+")) {
+                        f = f.substring(1);
+                    }
+                    if (f.isEmpty()) {
+                        sendError(response, 400, "Invalid parameter sort: must be a list of field names");
+                        return;
+                    }
+                    sort.add(new QueryHints.SortField(f, descending));
+                }
+            }
+        }
 
         // retrieve desired fields
         final Set<String> actualFields;
@@ -208,6 +252,31 @@ public class SearchServlet extends HttpServlet {
             }
         }
 
+        if (this.searchType == SearchType.ALL && (cursor != null || !sort.isEmpty()
+                || providerList.stream().anyMatch(PluginController.getInstance()::isPageable))) {
+            // let the providers which can do it produce only the page requested
+            long startTime = System.currentTimeMillis();
+            try {
+                PagedQuery.Page page = new PagedQuery(providerList, query, sort, extraFields).execute(cursor, offset,
+                        psize == Integer.MAX_VALUE ? -1 : psize);
+                this.writeResponse(response, page.getResults().iterator(), startTime, 0, Integer.MAX_VALUE,
+                        page.getTotalCount(), page.getNextCursor(), null);
+            } catch (IllegalArgumentException ex) {
+                sendError(response, 400, "Invalid parameter cursor: " + ex.getMessage());
+            } catch (QueryParseException ex) {
+                sendError(response, 400, ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                sendError(response, 500, "Could not generate results");
+            } catch (RuntimeException ex) {
+                logger.error("Failed to retrieve results", ex);
+                sendError(response, 500, "Could not generate results");
+            } catch (JSONException e) {
+                logger.error("Failed to serialize results", e);
+            }
+            return;
+        }
+
         JointQueryTask queryTaskHolder = new JointQueryTask() {
 
             @Override
@@ -217,30 +286,40 @@ public class SearchServlet extends HttpServlet {
             public void onReceive(Task<Iterable<SearchResult>> e) {}
         };
 
-        try {
-            long elapsedTime = System.currentTimeMillis();
-            Iterable<SearchResult> results =
-                    PluginController.getInstance().query(queryTaskHolder, providerList, query, extraFields).get();
+        long elapsedTime = System.currentTimeMillis();
+        // results are written as the providers deliver them, leaving out those which do not finish in time
+        PluginController.getInstance().query(queryTaskHolder, providerList, query, extraFields);
+        try (JointQueryTask.ResultStream results =
+                timeout > 0 ? queryTaskHolder.stream(-1, timeout, TimeUnit.MILLISECONDS) : queryTaskHolder.stream()) {
 
             if (this.searchType == SearchType.PATIENT) {
                 try {
-                    DIMGeneric dimModel = new DIMGeneric(ImmutableList.copyOf(results));
-                    JSONObject obj = dimModel.getJSONObject(depth, offset, psize);
+                    // aggregate the results as they arrive, without gathering them first
+                    DimBuilder builder = new DimBuilder();
+                    while (results.hasNext()) {
+                        builder.add(results.next());
+                    }
+                    List<Patient> patients = builder.finish();
                     elapsedTime = System.currentTimeMillis() - elapsedTime;
-                    obj.put("elapsedTime", elapsedTime);
-                    response.getWriter().write(obj.toString());
+                    // write the tree as it is walked, rather than building the whole document first
+                    response.setCharacterEncoding("UTF-8");
+                    DimJsonWriter writer = new DimJsonWriter(ResponseUtil.openOutputStream(request, response));
+                    try {
+                        writer.write(patients, depth, offset, psize, elapsedTime);
+                    } finally {
+                        writer.close();
+                    }
                 } catch (Exception e) {
                     logger.warn("Failed to get DIM", e);
                 }
             } else {
-                elapsedTime = System.currentTimeMillis() - elapsedTime;
-                this.writeResponse(response, results, elapsedTime, offset, psize);
+                this.writeResponse(response, results, elapsedTime, offset, psize, -1, null, queryTaskHolder);
             }
 
         } catch (QueryParseException ex) {
             sendError(response, 400, ex.getMessage());
             return;
-        } catch (InterruptedException | ExecutionException | RuntimeException ex) {
+        } catch (RuntimeException ex) {
             logger.error("Failed to retrieve results", ex);
             sendError(response, 500, "Could not generate results");
             return;
@@ -250,27 +329,44 @@ public class SearchServlet extends HttpServlet {
         }
     }
 
-    private void writeResponse(HttpServletResponse resp, Iterable<SearchResult> results, long elapsedTime, int offset,
-            int psize) throws IOException, JSONException {
+    /**
+     * @param totalCount the total number of results, or -1 to count the results given
+     * @param nextCursor the cursor to the next page, or null if there is none
+     * @param providers the task of the providers, to report their status once the results are written, or null
+     */
+    private void writeResponse(HttpServletResponse resp, Iterator<SearchResult> results, long startTime, int offset,
+            int psize, long totalCount, String nextCursor, JointQueryTask providers) throws IOException, JSONException {
         JSONWriter writer = new JSONWriter(resp.getWriter());
         writer.object(); // begin output
         // results
         writer.key("results").array(); // begin results
         int count = 0;
-        for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); ++count) {
-            SearchResult res = it.next();
+        for (; results.hasNext(); ++count) {
+            SearchResult res = results.next();
             if (count < offset || count >= offset + psize)
                 continue;
             writer.object() // begin result
                     .key("uri").value(res.getURI().toString()).key("fields").object();
-            for (Map.Entry<String, Object> e : res.getExtraData().entrySet()) {
-                writer.key(e.getKey()).value(String.valueOf(e.getValue()).trim());
+            for (String field : res.getFieldNames()) {
+                writer.key(field).value(String.valueOf(res.get(field)).trim());
             }
             writer.endObject().endObject(); // end result
         }
         // other fields
         writer.endArray() // end results
-                .key("elapsedTime").value(elapsedTime).key("numResults").value(count);
+                .key("elapsedTime").value(System.currentTimeMillis() - startTime).key("numResults")
+                .value(totalCount >= 0 ? totalCount : count);
+        if (nextCursor != null) {
+            writer.key("nextCursor").value(nextCursor);
+        }
+        if (providers != null) {
+            // providers which timed out or failed are left out of the results
+            writer.key("providers").object();
+            for (Map.Entry<String, JointQueryTask.ProviderStatus> e : providers.getProviderStatus().entrySet()) {
+                writer.key(e.getKey()).value(e.getValue().name().toLowerCase());
+            }
+            writer.endObject();
+        }
         writer.endObject(); // end output
     }
 
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
+import pt.ua.dicoogle.sdk.datastructs.dim.Patient;
+import pt.ua.dicoogle.sdk.datastructs.dim.Series;
+import pt.ua.dicoogle.sdk.datastructs.dim.Study;
+
+/**
+ * Writes a DIM tree as JSON straight to an output stream, node by node,
+ * without building the whole document in memory first.
+ *
+ * The document has the same content as {@link DIMGeneric#getJSONObject(int, int, int)},
+ * with the elapsed time appended.
+ */
+public class DimJsonWriter {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final JsonGenerator gen;
+
+    /**
+     * @param out the stream to write to, which is closed along with the writer
+     * @throws IOException if the generator could not be created
+     */
+    public DimJsonWriter(OutputStream out) throws IOException {
+        this.gen = FACTORY.createGenerator(out, JsonEncoding.UTF8);
+    }
+
+    /** Write the DIM tree of the given patients.
+     *
+     * @param patients all patients of the tree
+     * @param depth the depth of the tree from 0 (patient count only) to 4 (images)
+     * @param offset the number of patient records to skip
+     * @param psize the number of patient records to write, 0 or less means all
+     * @param elapsedTime the time taken by the search, in milliseconds
+     * @throws IOException if the output could not be written
+     */
+    public void write(List<Patient> patients, int depth, int offset, int psize, long elapsedTime) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("numResults", patients.size());
+        if (depth > 0) {
+            if (psize <= 0) {
+                psize = patients.size();
+            }
+            gen.writeArrayFieldStart("results");
+            int end = (int) Math.min(patients.size(), (long) offset + psize);
+            for (int i = Math.max(offset, 0); i < end; i++) {
+                writePatient(patients.get(i), depth);
+                if (i == offset) {
+                    // let the first record out right away
+                    gen.flush();
+                }
+            }
+            gen.writeEndArray();
+        }
+        gen.writeNumberField("elapsedTime", elapsedTime);
+        gen.writeEndObject();
+    }
+
+    private void writePatient(Patient p, int depth) throws IOException {
+        gen.writeStartObject();
+        writeField("id", p.getPatientID());
+        writeField("name", p.getPatientName());
+        writeField("gender", p.getPatientSex());
+        gen.writeNumberField("nStudies", p.getStudies().size());
+        writeField("birthdate", p.getPatientBirthDate());
+        if (depth >= 2) {
+            gen.writeArrayFieldStart("studies");
+            for (Study s : p.getStudies()) {
+                writeStudy(s, depth);
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    private void writeStudy(Study s, int depth) throws IOException {
+        gen.writeStartObject();
+        writeField("studyInstanceUID", s.getStudyInstanceUID());
+        writeField("studyDate", s.getStudyData());
+        writeField("studyDescription", s.getStudyDescription());
+        writeField("institutionName", s.getInstitutuionName());
+
+        Set<String> modalities = new HashSet<>();
+        for (Series series : s.getSeries()) {
+            modalities.add(series.getModality());
+        }
+        gen.writeStringField("modalities", StringUtils.join(modalities, ","));
+
+        if (depth >= 3) {
+            gen.writeArrayFieldStart("series");
+            for (Series series : s.getSeries()) {
+                writeSeries(series, depth);
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    private void writeSeries(Series series, int depth) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("serieNumber", series.getSeriesNumber());
+        writeField("serieInstanceUID", series.getSeriesInstanceUID());
+        writeField("serieDescription", series.getSeriesDescription());
+        writeField("serieModality", series.getModality());
+        if (depth >= 4) {
+            gen.writeArrayFieldStart("images");
+            List<String> uids = series.getSOPInstanceUIDList();
+            List<URI> uris = series.getImageList();
+            List<String> numbers = series.getInstanceNumberList();
+            for (int i = 0; i < uids.size(); i++) {
+                gen.writeStartObject();
+                writeField("sopInstanceUID", uids.get(i));
+                String rawPath = uris.get(i).getRawPath();
+                writeField("rawPath", rawPath);
+                gen.writeStringField("uri", uris.get(i).toString());
+                if (rawPath != null) {
+                    gen.writeStringField("filename", rawPath.substring(rawPath.lastIndexOf('/') + 1));
+                }
+                Long number = instanceNumber(numbers.get(i));
+                if (number != null) {
+                    gen.writeNumberField("number", number);
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    private static Long instanceNumber(String instanceNum) {
+        if (instanceNum == null) {
+            return null;
+        }
+        if (instanceNum.endsWith(".0")) {
+            instanceNum = instanceNum.substring(0, instanceNum.length() - 2);
+        }
+        try {
+            return Long.parseLong(instanceNum);
+        } catch (NumberFormatException e) {
+            // not a number, do not include
+            return null;
+        }
+    }
+
+    /** Write a string field, leaving it out if null. */
+    private void writeField(String name, String value) throws IOException {
+        if (value != null) {
+            gen.writeStringField(name, value);
+        }
+    }
+
+    /** Flush and close the writer and its stream. */
+    public void close() throws IOException {
+        gen.close();
+    }
+}
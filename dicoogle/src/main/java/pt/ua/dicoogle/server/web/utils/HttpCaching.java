@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import pt.ua.dicoogle.core.query.QueryResultCache;
+import pt.ua.dicoogle.plugins.PluginController;
+
+/**
+ * HTTP caching of responses: entity tags, conditional requests and cache directives.
+ *
+ * Entity tags are derived from what identifies the content, such as the SOP Instance UID and the
+ * render parameters, rather than from the content itself, so that a conditional request is answered
+ * before any query or decoding takes place. Renderings of an instance never change, and may be kept
+ * by clients and shared caches for <tt>dicoogle.http.maxAge</tt> seconds. Content taken from the index,
+ * such as metadata, is tagged with the index generation as well, and is revalidated on every use.
+ */
+public final class HttpCaching {
+
+    private static final long MAX_AGE = Long.parseLong(System.getProperty("dicoogle.http.maxAge", "31536000"));
+
+    /** the cache directives of content which never changes, such as the renderings of an instance */
+    public static final String IMMUTABLE = "public, max-age=" + MAX_AGE + ", immutable";
+    /** the cache directives of content which may change, to be revalidated on every use */
+    public static final String REVALIDATE = "private, no-cache";
+
+    /** tells apart the tags of each run of the server, since index generations start over */
+    private static final String RUN = UUID.randomUUID().toString();
+
+    private HttpCaching() {}
+
+    /** @return how long immutable content may be cached, in seconds */
+    public static long getMaxAge() {
+        return MAX_AGE;
+    }
+
+    /** Obtain a strong entity tag which identifies the content by the given parts.
+     *
+     * @param parts what identifies the content, such as the endpoint, the instance and the render parameters
+     * @return the opaque tag, without quotes
+     */
+    public static String tag(Object... parts) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Object part : parts) {
+            String s = String.valueOf(part);
+            hasher.putInt(s.length()).putString(s, StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString().substring(0, 40);
+    }
+
+    /** Obtain a strong entity tag of content taken from the index,
+     * which changes whenever anything is indexed or removed.
+     *
+     * @param parts what identifies the content
+     * @return the opaque tag, without quotes, or null if changes to the index are not tracked
+     */
+    public static String indexTag(Object... parts) {
+        QueryResultCache cache = PluginController.getInstance().getQueryCache();
+        if (cache == null) {
+            return null;
+        }
+        Object[] all = Arrays.copyOf(parts, parts.length + 2);
+        all[parts.length] = RUN;
+        all[parts.length + 1] = cache.generation();
+        return tag(all);
+    }
+
+    /** Answer a conditional request with 304 Not Modified if the client already holds the content.
+     *
+     * @param req the request
+     * @param resp the response
+     * @param tag the entity tag of the content, may be null
+     * @param cacheControl the cache directives of the content
+     * @return true if the response was answered, and nothing else should be done
+     */
+    public static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String tag,
+            String cacheControl) {
+        if (!matches(req.getHeader("If-None-Match"), tag)) {
+            return false;
+        }
+        setValidators(resp, tag, cacheControl);
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
+    }
+
+    /** Set the entity tag and cache directives of a successful response, before writing its body.
+     *
+     * @param resp the response
+     * @param tag the entity tag of the content, may be null
+     * @param cacheControl the cache directives of the content
+     */
+    public static void setValidators(HttpServletResponse resp, String tag, String cacheControl) {
+        if (tag == null) {
+            return;
+        }
+        resp.setHeader("ETag", '"' + tag + '"');
+        resp.setHeader("Cache-Control", cacheControl);
+    }
+
+    /** Check whether an If-None-Match header holds the given tag, using the weak comparison.
+     *
+     * @param ifNoneMatch the value of the header, may be null
+     * @param tag the opaque tag, may be null
+     * @return whether the tag is one of those in the header
+     */
+    public static boolean matches(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null || tag == null) {
+            return false;
+        }
+        String quoted = '"' + tag + '"';
+        for (String t : ifNoneMatch.split(",")) {
+            t = t.trim();
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+            if (t.equals(quoted)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
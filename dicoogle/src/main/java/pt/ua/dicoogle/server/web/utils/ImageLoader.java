@@ -36,6 +36,11 @@ import pt.ua.dicoogle.sdk.StorageInputStream;
  */
 public class ImageLoader {
 
+    /** how many times larger than the target dimensions a subsampled image is kept,
+     * so that scaling it down afterwards still smooths it out
+     */
+    private static final int OVERSAMPLING = 2;
+
     private ImageLoader() {}
 
     static {
@@ -74,6 +79,80 @@ public class ImageLoader {
         return image;
     }
 
+    /**
+     * Obtain a frame of an image from an ordinary input stream, reduced while decoding to about the given
+     * dimensions. Only every n-th row and column of pixels is read, where n is the largest factor which keeps
+     * the image at least twice as large as the given dimensions. This method will attempt to automatically use
+     * the appropriate image reader for the image's format, including DICOM.
+     *
+     * The image is not scaled to the given dimensions, and readers which do not support subsampling
+     * return the image in full size.
+     *
+     * @param inputStream the input stream to retrieve the image from
+     * @param frame the index of the frame wanted (starting with #0)
+     * @param width the width of the image wanted, 0 for the original size
+     * @param height the height of the image wanted, 0 for the original size
+     * @return a buffered image
+     * @throws IOException if the image format is not supported or another IO issue occurred
+     */
+    public static BufferedImage loadImage(InputStream inputStream, int frame, int width, int height)
+            throws IOException {
+        try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, false);
+                return readFrame(reader, frame, width, height);
+            } finally {
+                reader.dispose();
+            }
+        } catch (org.dcm4che2.data.ConfigurationError ex) {
+            throw new IOException("Failed to load image reader", ex);
+        }
+    }
+
+    /**
+     * Read a frame from an image reader, reduced while decoding to about the given dimensions
+     * as in {@link #loadImage(InputStream, int, int, int)}.
+     *
+     * @param reader the image reader, with its input set
+     * @param frame the index of the frame wanted (starting with #0)
+     * @param width the width of the image wanted, 0 for the original size
+     * @param height the height of the image wanted, 0 for the original size
+     * @return a buffered image
+     * @throws IOException if the frame does not exist or another IO issue occurred
+     */
+    public static BufferedImage readFrame(ImageReader reader, int frame, int width, int height) throws IOException {
+        if (frame < 0 || frame >= reader.getNumImages(true)) {
+            throw new IOException("No such frame: " + frame);
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        // the dimensions are in the header, no pixels are read yet
+        int step = subsampling(reader.getWidth(frame), reader.getHeight(frame), width, height);
+        if (step > 1) {
+            param.setSourceSubsampling(step, step, 0, 0);
+        }
+        return reader.read(frame, param);
+    }
+
+    /** Obtain the subsampling factor of an image which keeps it at least twice as large as the target.
+     *
+     * @param imageWidth the width of the original image
+     * @param imageHeight the height of the original image
+     * @param width the target width
+     * @param height the target height
+     * @return the subsampling factor, 1 for none
+     */
+    static int subsampling(int imageWidth, int imageHeight, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.min(imageWidth / (width * OVERSAMPLING), imageHeight / (height * OVERSAMPLING)));
+    }
+
     /**
      * Obtain an image from a Dicoogle storage input stream. This method will attempt to automatically use the
      * appropriate image reader for the image's format, including DICOM.
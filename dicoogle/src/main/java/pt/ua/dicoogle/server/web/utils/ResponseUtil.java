@@ -20,8 +20,11 @@
 package pt.ua.dicoogle.server.web.utils;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.sf.json.JSONObject;
@@ -67,6 +70,28 @@ public class ResponseUtil {
         resp.getWriter().append(obj.toString());
     }
 
+    /**
+     * Open the body of a response for writing, compressed with gzip if the client accepts it.
+     *
+     * No content length is set, so the body is sent in chunks as it is written.
+     * The stream must be closed to complete the response.
+     *
+     * @param req the request
+     * @param resp the response
+     * @return the output stream of the response body
+     * @throws IOException if an I/O error occurs
+     */
+    public static OutputStream openOutputStream(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.addHeader("Vary", "Accept-Encoding");
+        String accepted = req.getHeader("Accept-Encoding");
+        if (accepted == null || !accepted.toLowerCase().contains("gzip")) {
+            return resp.getOutputStream();
+        }
+        resp.setHeader("Content-Encoding", "gzip");
+        // flushing the stream sends out what was compressed so far
+        return new GZIPOutputStream(resp.getOutputStream(), 8192, true);
+    }
+
     /*
      * Generic Pair Util for Json response
      */
@@ -21,6 +21,7 @@
 
 package pt.ua.dicoogle.server.web.utils;
 
+import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -33,6 +34,7 @@ import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
+import pt.ua.dicoogle.server.web.utils.cache.FrameReaderCache;
 
 /**
  *
@@ -42,9 +44,31 @@ public class SimpleImageRetriever implements ImageRetriever {
 
     private static final Logger logger = LoggerFactory.getLogger(SimpleImageRetriever.class);
 
+    private final FrameReaderCache frames;
+
+    public SimpleImageRetriever() {
+        this(null);
+    }
+
+    /**
+     * @param frames the cache of open image readers, so that the frames of an object are read
+     * without parsing it again, may be null
+     */
+    public SimpleImageRetriever(FrameReaderCache frames) {
+        this.frames = frames;
+    }
+
     @Override
     public ByteArrayInputStream get(URI uri, int frame, boolean thumbnail) throws IOException {
-        return getPNGStream(fromURI(uri), frame, thumbnail);
+        if (frames == null) {
+            return getPNGStream(fromURI(uri), frame, thumbnail);
+        }
+        int size = thumbnail ? ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize() : 0;
+        BufferedImage image = frames.read(uri, () -> fromURI(uri).getInputStream(), frame, size, size);
+        if (thumbnail) {
+            image = Convert2PNG.scaleImage(image, size, size);
+        }
+        return new ByteArrayInputStream(Convert2PNG.PNGStream(image).toByteArray());
     }
 
     private static StorageInputStream fromURI(URI uri) throws IOException {
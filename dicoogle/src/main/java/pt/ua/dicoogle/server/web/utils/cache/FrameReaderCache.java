@@ -0,0 +1,276 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+
+import pt.ua.dicoogle.server.web.utils.ImageLoader;
+
+/**
+ * Keeps the image readers of multi-frame objects open for a short while,
+ * so that reading several frames of the same object, such as when playing a cine,
+ * parses its header and frame offsets only once.
+ *
+ * Up to <tt>dicoogle.frames.readerCount</tt> readers are kept, each one for
+ * <tt>dicoogle.frames.readerTtl</tt> milliseconds after its last use.
+ * Objects with a single frame are read and closed right away.
+ * A reader is used by one thread at a time.
+ */
+public class FrameReaderCache implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FrameReaderCache.class);
+
+    /** Opens the content of an object. */
+    @FunctionalInterface
+    public interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    private final Cache<URI, Frames> readers;
+    private final ScheduledExecutorService cleaner;
+
+    private final AtomicLong opens = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    /** Create a frame reader cache configured from the system properties. */
+    public static FrameReaderCache create() {
+        int count = Integer.parseInt(System.getProperty("dicoogle.frames.readerCount", "16"));
+        long ttl = Long.parseLong(System.getProperty("dicoogle.frames.readerTtl", "30000"));
+        return new FrameReaderCache(count, ttl);
+    }
+
+    /**
+     * @param maxReaders the maximum number of readers kept open
+     * @param ttl how long a reader is kept open after its last use, in milliseconds
+     */
+    public FrameReaderCache(int maxReaders, long ttl) {
+        this.readers = CacheBuilder.newBuilder().maximumSize(maxReaders).expireAfterAccess(ttl, TimeUnit.MILLISECONDS)
+                .removalListener((RemovalListener<URI, Frames>) n -> n.getValue().close()).build();
+        // expired readers are only removed on access, so close them when idle as well
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "frame-reader-cleaner");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(ttl, 1000);
+        cleaner.scheduleWithFixedDelay(readers::cleanUp, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /** Obtain the number of frames of an object.
+     *
+     * @param uri the URI of the object
+     * @param opener opens the object if no reader is open for it
+     * @return the number of frames
+     * @throws IOException if the object could not be read
+     */
+    public int getFrameCount(URI uri, Opener opener) throws IOException {
+        return withReader(uri, opener, Frames::count);
+    }
+
+    /** Read a frame of an object, reduced while decoding to about the given dimensions.
+     *
+     * @param uri the URI of the object
+     * @param opener opens the object if no reader is open for it
+     * @param frame the index of the frame wanted (starting with #0)
+     * @param width the width of the image wanted, 0 for the original size
+     * @param height the height of the image wanted, 0 for the original size
+     * @return the frame
+     * @throws IOException if the frame could not be read
+     * @see ImageLoader#readFrame(ImageReader, int, int, int)
+     */
+    public BufferedImage read(URI uri, Opener opener, int frame, int width, int height) throws IOException {
+        return withReader(uri, opener, frames -> {
+            if (frame < 0 || frame >= frames.count()) {
+                throw new NoSuchFrameException(frame);
+            }
+            return ImageLoader.readFrame(frames.reader(), frame, width, height);
+        });
+    }
+
+    @FunctionalInterface
+    private interface ReaderFunction<T> {
+        T apply(Frames frames) throws IOException;
+    }
+
+    /** Use the reader of an object, while holding it.
+     * The cache is not touched while holding a reader, as that may close other readers.
+     */
+    private <T> T withReader(URI uri, Opener opener, ReaderFunction<T> function) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            Frames frames = acquire(uri, opener);
+            boolean failed = false;
+            try {
+                synchronized (frames) {
+                    // it may have been closed in the meantime, in which case it is opened again
+                    if (frames.closed && attempt == 0) {
+                        continue;
+                    }
+                    try {
+                        return function.apply(frames);
+                    } catch (NoSuchFrameException ex) {
+                        throw ex;
+                    } catch (IOException | RuntimeException ex) {
+                        // the reader may be left in a bad state
+                        failed = true;
+                        throw ex;
+                    }
+                }
+            } finally {
+                if (failed) {
+                    readers.asMap().remove(uri, frames);
+                }
+                release(uri, frames);
+            }
+        }
+    }
+
+    /** Obtain the open reader of an object, or open a new one. */
+    private Frames acquire(URI uri, Opener opener) throws IOException {
+        Frames frames = readers.getIfPresent(uri);
+        if (frames != null) {
+            reuses.incrementAndGet();
+            return frames;
+        }
+        frames = Frames.open(opener);
+        opens.incrementAndGet();
+        if (frames.count() > 1) {
+            Frames other = readers.asMap().putIfAbsent(uri, frames);
+            if (other != null) {
+                frames.close();
+                return other;
+            }
+        }
+        return frames;
+    }
+
+    /** Close the reader once used, unless kept. */
+    private void release(URI uri, Frames frames) {
+        if (readers.asMap().get(uri) != frames) {
+            frames.close();
+        }
+    }
+
+    /** @return the number of times an object was opened */
+    public long getOpenCount() {
+        return opens.get();
+    }
+
+    /** @return the number of times an open reader was used again */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /** @return the number of readers currently open */
+    public long size() {
+        return readers.size();
+    }
+
+    /** Close all readers. */
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+        readers.invalidateAll();
+    }
+
+    /** Thrown when reading a frame which the object does not have. */
+    private static final class NoSuchFrameException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NoSuchFrameException(int frame) {
+            super("No such frame: " + frame);
+        }
+    }
+
+    /** An open image reader. */
+    private static final class Frames {
+
+        private final ImageInputStream input;
+        private final ImageReader reader;
+        private int count = -1;
+        private boolean closed = false;
+
+        private Frames(ImageInputStream input, ImageReader reader) {
+            this.input = input;
+            this.reader = reader;
+        }
+
+        static Frames open(Opener opener) throws IOException {
+            ImageInputStream input = ImageIO.createImageInputStream(opener.open());
+            if (input == null) {
+                throw new IOException("Could not open the image");
+            }
+            Iterator<ImageReader> it = ImageIO.getImageReaders(input);
+            if (!it.hasNext()) {
+                input.close();
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = it.next();
+            // not seeking forward only, so that earlier frames can be read again
+            reader.setInput(input, false);
+            return new Frames(input, reader);
+        }
+
+        synchronized ImageReader reader() throws IOException {
+            if (closed) {
+                throw new IOException("Image reader closed");
+            }
+            return reader;
+        }
+
+        synchronized int count() throws IOException {
+            if (count < 0) {
+                count = reader().getNumImages(true);
+            }
+            return count;
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            reader.dispose();
+            try {
+                input.close();
+            } catch (IOException ex) {
+                logger.debug("Could not close an image input stream", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+import pt.ua.dicoogle.core.settings.ServerSettingsManager;
+import pt.ua.dicoogle.server.web.utils.ImageRetriever;
+
+/**
+ * A two-tier cache of rendered images.
+ *
+ * Small images, such as thumbnails, are kept in a least recently used cache in memory.
+ * All images are kept on disk in a {@link SegmentedDiskStore} within a byte budget,
+ * which is kept across restarts. Images are identified by a {@link RenderKey},
+ * so that renderings with different sizes or parameters do not mix.
+ * Concurrent requests for an image which is not cached render it only once.
+ *
+ * If the disk store cannot be opened, only the memory cache is used.
+ */
+public class RenderCache implements ImageRetriever, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+
+    /** the parameters of the images rendered by the underlying retriever */
+    private static final String PNG_PARAMS = "png";
+
+    /** Renders an image which is not cached. */
+    @FunctionalInterface
+    public interface Renderer {
+        byte[] render() throws IOException;
+    }
+
+    private final ImageRetriever renderer;
+    private final Cache<HashCode, byte[]> heap;
+    private final int heapEntryMax;
+    private final SegmentedDiskStore disk;
+    private final ConcurrentMap<HashCode, CompletableFuture<byte[]>> rendering = new ConcurrentHashMap<>();
+
+    private final AtomicLong heapHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Create a render cache configured by the system properties
+     * <tt>dicoogle.renderCache.dir</tt>, <tt>dicoogle.renderCache.diskBytes</tt>,
+     * <tt>dicoogle.renderCache.segmentBytes</tt>, <tt>dicoogle.renderCache.heapBytes</tt>
+     * and <tt>dicoogle.renderCache.heapEntryBytes</tt>.
+     *
+     * @param renderer the underlying image retriever
+     * @return a new render cache
+     */
+    public static RenderCache create(ImageRetriever renderer) {
+        File dir = new File(System.getProperty("dicoogle.renderCache.dir",
+                new File(System.getProperty("java.io.tmpdir"), "dicoogle-render-cache").getPath()));
+        long diskBytes = Long.parseLong(System.getProperty("dicoogle.renderCache.diskBytes", "1073741824"));
+        long segmentBytes = Long.parseLong(System.getProperty("dicoogle.renderCache.segmentBytes", "67108864"));
+        long heapBytes = Long.parseLong(System.getProperty("dicoogle.renderCache.heapBytes", "33554432"));
+        int heapEntryBytes = Integer.parseInt(System.getProperty("dicoogle.renderCache.heapEntryBytes", "65536"));
+        return new RenderCache(renderer, dir, diskBytes, segmentBytes, heapBytes, heapEntryBytes);
+    }
+
+    /**
+     * @param renderer the underlying image retriever
+     * @param dir the directory of the disk cache
+     * @param diskBytes the maximum size of the disk cache, 0 or less to disable it
+     * @param segmentBytes the size of each segment of the disk cache
+     * @param heapBytes the maximum size of the memory cache
+     * @param heapEntryBytes the maximum size of an image kept in memory
+     */
+    public RenderCache(ImageRetriever renderer, File dir, long diskBytes, long segmentBytes, long heapBytes,
+            int heapEntryBytes) {
+        this.renderer = renderer;
+        this.heap = CacheBuilder.newBuilder().maximumWeight(heapBytes).weigher((HashCode k, byte[] v) -> v.length + 64)
+                .build();
+        this.heapEntryMax = heapEntryBytes;
+        SegmentedDiskStore store = null;
+        if (diskBytes > 0) {
+            try {
+                store = new SegmentedDiskStore(dir, diskBytes, segmentBytes);
+            } catch (IOException ex) {
+                logger.warn("Could not open the render cache at {}, only keeping images in memory", dir, ex);
+            }
+        }
+        this.disk = store;
+    }
+
+    @Override
+    public InputStream get(URI uri, int frame, boolean thumbnail) throws IOException {
+        return new ByteArrayInputStream(get(key(uri, frame, thumbnail), () -> {
+            try (InputStream in = renderer.get(uri, frame, thumbnail)) {
+                return IOUtils.toByteArray(in);
+            }
+        }));
+    }
+
+    /** Obtain the key of an image rendered by the underlying retriever. */
+    public static RenderKey key(URI uri, int frame, boolean thumbnail) {
+        int size = thumbnail ? ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize() : 0;
+        return new RenderKey(uri, frame, size, PNG_PARAMS);
+    }
+
+    /** Obtain a rendered image, rendering and keeping it if not cached.
+     *
+     * @param key the key of the image
+     * @param render renders the image if not cached
+     * @return the content of the image
+     * @throws IOException if the image could not be rendered
+     */
+    public byte[] get(RenderKey key, Renderer render) throws IOException {
+        HashCode hash = key.hash();
+        byte[] data = lookup(hash);
+        if (data != null) {
+            return data;
+        }
+
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        CompletableFuture<byte[]> theirs = rendering.putIfAbsent(hash, mine);
+        if (theirs != null) {
+            // someone else is rendering it
+            return join(theirs);
+        }
+        try {
+            // it may have been stored since the lookup
+            data = lookup(hash);
+            if (data == null) {
+                misses.incrementAndGet();
+                data = render.render();
+                store(hash, data, true);
+            }
+            mine.complete(data);
+            return data;
+        } catch (IOException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            rendering.remove(hash, mine);
+        }
+    }
+
+    /** Render an image ahead of time, unless it is cached or being rendered.
+     *
+     * The image is kept on disk only, if there is a disk cache,
+     * so that it does not displace the images in memory, which were requested recently.
+     *
+     * @param key the key of the image
+     * @param render renders the image
+     * @return whether the image was rendered
+     * @throws IOException if the image could not be rendered
+     */
+    public boolean prefetch(RenderKey key, Renderer render) throws IOException {
+        HashCode hash = key.hash();
+        if (contains(key)) {
+            return false;
+        }
+        CompletableFuture<byte[]> mine = new CompletableFuture<>();
+        if (rendering.putIfAbsent(hash, mine) != null) {
+            return false;
+        }
+        try {
+            byte[] data = render.render();
+            store(hash, data, disk == null);
+            mine.complete(data);
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            rendering.remove(hash, mine);
+        }
+    }
+
+    /** @return whether the image is cached */
+    public boolean contains(RenderKey key) {
+        HashCode hash = key.hash();
+        return heap.getIfPresent(hash) != null || (disk != null && disk.contains(hash));
+    }
+
+    private byte[] lookup(HashCode hash) {
+        byte[] data = heap.getIfPresent(hash);
+        if (data != null) {
+            heapHits.incrementAndGet();
+            return data;
+        }
+        if (disk != null) {
+            data = disk.get(hash);
+            if (data != null) {
+                diskHits.incrementAndGet();
+                if (data.length <= heapEntryMax) {
+                    heap.put(hash, data);
+                }
+            }
+        }
+        return data;
+    }
+
+    private void store(HashCode hash, byte[] data, boolean inHeap) {
+        if (inHeap && data.length <= heapEntryMax) {
+            heap.put(hash, data);
+        }
+        if (disk != null) {
+            try {
+                disk.put(hash, data);
+            } catch (IOException ex) {
+                logger.warn("Could not keep a rendered image in the disk cache", ex);
+            }
+        }
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the image", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Failed to render the image", ex.getCause());
+        }
+    }
+
+    public long getHeapHitCount() {
+        return heapHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the number of images on disk */
+    public int getDiskCount() {
+        return disk == null ? 0 : disk.count();
+    }
+
+    /** @return the size of the disk cache in bytes */
+    public long getDiskSize() {
+        return disk == null ? 0 : disk.size();
+    }
+
+    /** Close the disk cache, which is kept for the next start. */
+    @Override
+    public void close() {
+        heap.invalidateAll();
+        if (disk != null) {
+            disk.close();
+        }
+    }
+}
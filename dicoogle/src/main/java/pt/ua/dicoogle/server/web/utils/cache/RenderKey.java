@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Identifies a rendered image: the storage URI of the instance, the frame,
+ * the size of the image and any other parameters which affect the rendering.
+ */
+public final class RenderKey {
+
+    private final String uri;
+    private final int frame;
+    private final int size;
+    private final String params;
+
+    /**
+     * @param uri the storage URI of the instance
+     * @param frame the frame number
+     * @param size the size of the image if scaled, such as for thumbnails, or 0 for the original size
+     * @param params the other parameters of the rendering, which change the image
+     */
+    public RenderKey(URI uri, int frame, int size, String params) {
+        this.uri = uri.toString();
+        this.frame = frame;
+        this.size = size;
+        this.params = Objects.requireNonNull(params);
+    }
+
+    /** @return a digest of this key, which names the rendered image */
+    HashCode hash() {
+        return Hashing.sha256().newHasher().putInt(uri.length()).putString(uri, StandardCharsets.UTF_8).putInt(frame)
+                .putInt(size).putString(params, StandardCharsets.UTF_8).hash();
+    }
+
+    public URI getURI() {
+        return URI.create(uri);
+    }
+
+    public int getFrame() {
+        return frame;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RenderKey)) {
+            return false;
+        }
+        RenderKey other = (RenderKey) o;
+        return frame == other.frame && size == other.size && uri.equals(other.uri) && params.equals(other.params);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(uri, frame, size, params);
+    }
+
+    @Override
+    public String toString() {
+        return uri + " frame " + frame + (size > 0 ? " size " + size : "") + (params.isEmpty() ? "" : " " + params);
+    }
+}
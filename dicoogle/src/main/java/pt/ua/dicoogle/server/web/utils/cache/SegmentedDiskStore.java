@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * A byte-bounded store of blobs on disk, kept in a few large append-only segment files.
+ *
+ * Each record holds the 32-byte key, the length and checksum of the data, and the data itself.
+ * The index of the records is kept in memory, and rebuilt on start by reading the record headers
+ * of the segments, so that the store survives restarts without ever listing its entries.
+ * Once the store exceeds its budget, whole segments are deleted, the oldest first.
+ * Entries read from the older half of the segments are written again to the newest one,
+ * so that frequently used entries are kept.
+ *
+ * Records which fail their checksum, such as after a crash, are treated as missing.
+ */
+final class SegmentedDiskStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentedDiskStore.class);
+
+    private static final int MAGIC = 0x44524331;
+    private static final int KEY_LENGTH = 32;
+    /** magic, key, data length and checksum */
+    private static final int HEADER_LENGTH = 4 + KEY_LENGTH + 4 + 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        final List<HashCode> keys = new ArrayList<>();
+        long size = 0;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File dir;
+    private final long budget;
+    private final long segmentSize;
+    private final Map<HashCode, Location> index = new HashMap<>();
+    /** oldest first, the last one is written to */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * @param dir the directory of the segments, created if needed
+     * @param budget the maximum size of the store in bytes
+     * @param segmentSize the size of each segment in bytes
+     * @throws IOException if the directory or the segments could not be opened
+     */
+    SegmentedDiskStore(File dir, long budget, long segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the directory " + dir);
+        }
+        this.dir = dir;
+        this.budget = budget;
+        // keep several segments within the budget, so that evictions are gradual
+        this.segmentSize = Math.max(HEADER_LENGTH, Math.min(segmentSize, budget / 4));
+        load();
+    }
+
+    /** Open the existing segments and index their records. */
+    private void load() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        long[] ids = new long[files == null ? 0 : files.length];
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            String name = files[i].getName();
+            try {
+                ids[n++] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                n--;
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        for (long id : ids) {
+            Segment s = new Segment(id, segmentFile(id));
+            scan(s);
+            segments.addLast(s);
+            size += s.size;
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+        evict();
+        logger.debug("Opened the store at {} with {} entries in {} segments", dir, index.size(), segments.size());
+    }
+
+    /** Index the records of a segment, cutting off an incomplete last record. */
+    private void scan(Segment s) throws IOException {
+        long fileSize = s.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long pos = 0;
+        while (pos + HEADER_LENGTH <= fileSize) {
+            header.clear();
+            readFully(s.channel, header, pos);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+            byte[] key = new byte[KEY_LENGTH];
+            header.get(key);
+            int length = header.getInt();
+            if (length < 0 || pos + HEADER_LENGTH + length > fileSize) {
+                break;
+            }
+            HashCode k = HashCode.fromBytes(key);
+            index.put(k, new Location(s, pos, length));
+            s.keys.add(k);
+            pos += HEADER_LENGTH + length;
+        }
+        if (pos < fileSize) {
+            logger.info("Discarding {} bytes of incomplete records in {}", fileSize - pos, s.file);
+            s.channel.truncate(pos);
+        }
+        s.size = pos;
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%s%012d%s", PREFIX, id, SUFFIX));
+    }
+
+    /** Obtain the data of an entry.
+     *
+     * @param key the key of the entry
+     * @return the data, or null if absent or unreadable
+     */
+    byte[] get(HashCode key) {
+        Location loc;
+        boolean old;
+        synchronized (this) {
+            loc = index.get(key);
+            if (loc == null) {
+                return null;
+            }
+            old = segments.size() > 1 && loc.segment.id <= segments.getLast().id - segments.size() / 2;
+        }
+        byte[] data = read(key, loc);
+        if (data == null) {
+            synchronized (this) {
+                index.remove(key, loc);
+            }
+            return null;
+        }
+        if (old) {
+            // keep it away from eviction
+            try {
+                put(key, data);
+            } catch (IOException ex) {
+                logger.debug("Could not rewrite an entry of {}", loc.segment.file, ex);
+            }
+        }
+        return data;
+    }
+
+    private static byte[] read(HashCode key, Location loc) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + loc.length);
+        try {
+            readFully(loc.segment.channel, buf, loc.offset);
+        } catch (IOException ex) {
+            // such as when the segment was deleted meanwhile
+            return null;
+        }
+        buf.flip();
+        byte[] k = new byte[KEY_LENGTH];
+        buf.getInt();
+        buf.get(k);
+        buf.getInt();
+        long checksum = buf.getLong();
+        byte[] data = new byte[loc.length];
+        buf.get(data);
+        if (!Arrays.equals(k, key.asBytes()) || checksum(data) != checksum) {
+            logger.warn("Corrupt record in {} at {}, ignoring it", loc.segment.file, loc.offset);
+            return null;
+        }
+        return data;
+    }
+
+    synchronized boolean contains(HashCode key) {
+        return index.containsKey(key);
+    }
+
+    /** Add or replace an entry, evicting the oldest segments if over budget.
+     *
+     * @param key the key of the entry
+     * @param data the data of the entry
+     * @throws IOException if the entry could not be written
+     */
+    synchronized void put(HashCode key, byte[] data) throws IOException {
+        if (closed) {
+            return;
+        }
+        int recordLength = HEADER_LENGTH + data.length;
+        if (recordLength > budget) {
+            return;
+        }
+        Segment active = segments.getLast();
+        if (active.size > 0 && active.size + recordLength > segmentSize) {
+            active = roll();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(recordLength);
+        buf.putInt(MAGIC).put(key.asBytes()).putInt(data.length).putLong(checksum(data)).put(data);
+        buf.flip();
+        long pos = active.size;
+        try {
+            while (buf.hasRemaining()) {
+                pos += active.channel.write(buf, pos);
+            }
+        } catch (IOException ex) {
+            // leave no partial record behind
+            active.channel.truncate(active.size);
+            throw ex;
+        }
+        index.put(key, new Location(active, active.size, data.length));
+        active.keys.add(key);
+        active.size += recordLength;
+        size += recordLength;
+        evict();
+    }
+
+    private Segment roll() throws IOException {
+        long id = segments.isEmpty() ? 1 : segments.getLast().id + 1;
+        Segment s = new Segment(id, segmentFile(id));
+        segments.addLast(s);
+        return s;
+    }
+
+    private void evict() {
+        while (size > budget && segments.size() > 1) {
+            Segment s = segments.pollFirst();
+            for (HashCode k : s.keys) {
+                Location loc = index.get(k);
+                if (loc != null && loc.segment == s) {
+                    index.remove(k);
+                }
+            }
+            size -= s.size;
+            try {
+                s.channel.close();
+            } catch (IOException ex) {
+                logger.debug("Could not close {}", s.file, ex);
+            }
+            if (!s.file.delete()) {
+                logger.warn("Could not delete the cache segment {}", s.file);
+            }
+        }
+    }
+
+    /** @return the number of entries */
+    synchronized int count() {
+        return index.size();
+    }
+
+    /** @return the size of the segments in bytes, including replaced entries */
+    synchronized long size() {
+        return size;
+    }
+
+    /** Close the segments, keeping them for the next start. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Segment s : segments) {
+            try {
+                s.channel.close();
+            } catch (IOException ex) {
+                logger.debug("Could not close {}", s.file, ex);
+            }
+        }
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            pos += n;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.io.IOUtils;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.core.settings.ServerSettingsManager;
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.server.IndexQueueWorker;
+import pt.ua.dicoogle.server.web.utils.ImageRetriever;
+
+/**
+ * Renders the series thumbnails of newly indexed instances into the render cache,
+ * so that they are ready when first requested by the web viewer.
+ *
+ * Only one thumbnail is rendered per series: that of the first instance of the series to be indexed,
+ * which comes first in the series' results and is the one shown for the series.
+ * The SeriesInstanceUID of each new instance is read from its header, and the series seen recently
+ * are remembered, so that the remaining instances of a series are left out.
+ *
+ * Thumbnails are rendered while the "save thumbnails" archive setting is enabled, at the configured
+ * thumbnail size, from the first frame of the instance. Rendering takes place in a small pool of
+ * low priority threads (<tt>dicoogle.thumbnails.threads</tt>) fed by a bounded queue
+ * (<tt>dicoogle.thumbnails.queueSize</tt>) of index batches to look into and of thumbnails to render.
+ * Work which does not fit in the queue is skipped, and those thumbnails are rendered on demand as before.
+ *
+ * The pool yields to storage: while more than <tt>dicoogle.thumbnails.yieldQueueDepth</tt> received
+ * objects are waiting to be indexed, or the index queue is saturated, no thumbnails are rendered.
+ *
+ * @see IndexQueueWorker#addIndexListener(Consumer)
+ */
+public class ThumbnailPrerenderer implements Consumer<List<URI>>, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailPrerenderer.class);
+
+    /** how long to wait before checking the storage load again, in milliseconds */
+    private static final long YIELD_PAUSE = 500;
+    /** the number of series recently seen, whose other instances are left out */
+    private static final int SERIES_MEMORY = 4096;
+
+    private final RenderCache cache;
+    private final ImageRetriever renderer;
+    private final Function<URI, String> seriesOf;
+    private final BooleanSupplier enabled;
+    private final BooleanSupplier busy;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> seenSeries;
+
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Create a thumbnail pre-renderer which yields to the index queue,
+     * configured from the system properties.
+     *
+     * @param cache the cache to render into
+     * @param renderer the retriever which renders the thumbnails
+     * @return a new pre-renderer
+     */
+    public static ThumbnailPrerenderer create(RenderCache cache, ImageRetriever renderer) {
+        int threads = Integer.parseInt(System.getProperty("dicoogle.thumbnails.threads", "1"));
+        int queueSize = Integer.parseInt(System.getProperty("dicoogle.thumbnails.queueSize", "1024"));
+        int yieldQueueDepth = Integer.parseInt(System.getProperty("dicoogle.thumbnails.yieldQueueDepth", "64"));
+        IndexQueueWorker worker = IndexQueueWorker.getInstance();
+        return new ThumbnailPrerenderer(cache, renderer, ThumbnailPrerenderer::readSeriesInstanceUID,
+                () -> ServerSettingsManager.getSettings().getArchiveSettings().getSaveThumbnails(),
+                () -> worker.isSaturated() || worker.getQueueDepth() > yieldQueueDepth, threads, queueSize);
+    }
+
+    /**
+     * @param cache the cache to render into
+     * @param renderer the retriever which renders the thumbnails
+     * @param seriesOf the function giving the SeriesInstanceUID of an instance, or null if unknown
+     * @param enabled whether thumbnails should be rendered
+     * @param busy whether the server is too busy to render thumbnails at the moment
+     * @param threads the number of rendering threads
+     * @param queueSize the maximum number of batches and thumbnails waiting to be handled
+     */
+    public ThumbnailPrerenderer(RenderCache cache, ImageRetriever renderer, Function<URI, String> seriesOf,
+            BooleanSupplier enabled, BooleanSupplier busy, int threads, int queueSize) {
+        this.cache = cache;
+        this.renderer = renderer;
+        this.seriesOf = seriesOf;
+        this.enabled = enabled;
+        this.busy = busy;
+        this.seenSeries = Collections
+                .synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                        return size() > SERIES_MEMORY;
+                    }
+                }));
+        AtomicInteger threadCount = new AtomicInteger();
+        threads = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread t = new Thread(r, "thumbnail-prerender-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    /** Queue the given instances to have the thumbnails of their series rendered, if enabled. */
+    @Override
+    public void accept(List<URI> uris) {
+        if (!enabled.getAsBoolean() || uris.isEmpty()) {
+            return;
+        }
+        // the headers are read in the pool, away from the index worker
+        try {
+            executor.execute(() -> selectSeries(uris));
+        } catch (RejectedExecutionException ex) {
+            dropped.addAndGet(uris.size());
+        }
+    }
+
+    /** Queue the thumbnails of the first instance of each series not seen before. */
+    private void selectSeries(List<URI> uris) {
+        for (URI uri : uris) {
+            if (!awaitIdle()) {
+                return;
+            }
+            String series = seriesOf.apply(uri);
+            if (series == null) {
+                failed.incrementAndGet();
+                continue;
+            }
+            if (!seenSeries.add(series)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> render(uri));
+            } catch (RejectedExecutionException ex) {
+                // another instance of the series may still make it
+                seenSeries.remove(series);
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void render(URI uri) {
+        if (!awaitIdle()) {
+            return;
+        }
+        try {
+            boolean done = cache.prefetch(RenderCache.key(uri, 0, true), () -> {
+                try (InputStream in = renderer.get(uri, 0, true)) {
+                    return IOUtils.toByteArray(in);
+                }
+            });
+            (done ? rendered : skipped).incrementAndGet();
+        } catch (IOException | RuntimeException ex) {
+            failed.incrementAndGet();
+            logger.debug("Could not render the thumbnail of {}", uri, ex);
+        }
+    }
+
+    /** Wait while the server is busy.
+     * @return false if interrupted while waiting
+     */
+    private boolean awaitIdle() {
+        try {
+            while (busy.getAsBoolean()) {
+                Thread.sleep(YIELD_PAUSE);
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Read the SeriesInstanceUID of a stored instance from its header.
+     *
+     * @param uri the location of the instance
+     * @return the SeriesInstanceUID, or null if it could not be read
+     */
+    static String readSeriesInstanceUID(URI uri) {
+        StorageInterface storage = PluginController.getInstance().getStorageForSchema(uri);
+        if (storage == null) {
+            return null;
+        }
+        for (StorageInputStream file : storage.at(uri)) {
+            try (DicomInputStream in = new DicomInputStream(new BufferedInputStream(file.getInputStream()))) {
+                in.setHandler(new StopTagInputHandler(Tag.SeriesInstanceUID + 1));
+                return in.readDicomObject().getString(Tag.SeriesInstanceUID);
+            } catch (IOException | RuntimeException ex) {
+                logger.debug("Could not read the header of {}", uri, ex);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of thumbnails rendered */
+    public long getRenderedCount() {
+        return rendered.get();
+    }
+
+    /** @return the number of thumbnails which were already cached */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /** @return the number of instances left out because the queue was full */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** @return the number of thumbnails which could not be rendered */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /** @return the number of batches and thumbnails waiting to be handled */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Stop rendering, discarding the instances still waiting. */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
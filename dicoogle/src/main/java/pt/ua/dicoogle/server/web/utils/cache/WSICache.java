@@ -24,15 +24,14 @@ import org.dcm4che3.data.Attributes;
 import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
 import org.dcm4che3.io.BulkDataDescriptor;
 import org.dcm4che3.io.DicomInputStream;
+import pt.ua.dicoogle.core.query.InstanceURIResolver;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.PluginController;
-import pt.ua.dicoogle.sdk.QueryInterface;
 import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.utils.QueryException;
 
 import java.net.URI;
 import java.security.InvalidParameterException;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -46,7 +45,6 @@ public class WSICache extends MemoryCache<DicomMetaData> {
     private static final String EXTENSION_GZIP = ".gz";
     private static final int BUFFER_SIZE = 8192;
 
-    private QueryInterface queryInterface;
     private final String queryProvider;
 
     private WSICache() {
@@ -72,9 +70,6 @@ public class WSICache extends MemoryCache<DicomMetaData> {
 
         @Override
         public DicomMetaData load(String sopInstanceUID) throws Exception {
-
-            queryInterface = PluginController.getInstance().getQueryProviderByName(queryProvider, false);
-
             URI uri = retrieveURI(sopInstanceUID);
             if (uri == null) {
                 throw new IllegalArgumentException("Could not find the desired URI");
@@ -110,23 +105,7 @@ public class WSICache extends MemoryCache<DicomMetaData> {
      * @return uri of the SopInstance
      */
     private URI retrieveURI(String sop) {
-        String query = "SOPInstanceUID:\"" + sop + '"';
-
-
-        Iterable<SearchResult> results;
-        try {
-            results = queryInterface.query(query);
-        } catch (QueryException e) {
-            logger.error("Could not complete query:", e);
-            return null;
-        }
-
-        for (SearchResult first : results) {
-            if (first != null) {
-                return first.getURI();
-            }
-        }
-        return null;
+        return InstanceURIResolver.getInstance().resolve(sop, Collections.singletonList(queryProvider));
     }
 
     private StorageInputStream retrieveInputStream(URI uri) {
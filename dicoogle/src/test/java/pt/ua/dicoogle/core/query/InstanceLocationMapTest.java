@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+public class InstanceLocationMapTest {
+
+    private static String uid(int i) {
+        return "1.2.826.0.1.3680043.8.1055." + i;
+    }
+
+    private static URI uri(int i) {
+        return URI.create("file:/archive/" + i + ".dcm");
+    }
+
+    @Test
+    public void testPutGet() {
+        InstanceLocationMap map = new InstanceLocationMap(16);
+        assertTrue(map.put(uid(1), uri(1)));
+        assertTrue(map.put(uid(2), uri(2)));
+        assertEquals(uri(1), map.get(uid(1)));
+        assertEquals(uri(2), map.get(uid(2)));
+        assertNull(map.get(uid(3)));
+        // a prefix packs into the same bytes but for the last nibble
+        assertNull(map.get("1.2.826.0.1.3680043.8.1055."));
+
+        assertTrue(map.put(uid(1), uri(3)));
+        assertEquals(uri(3), map.get(uid(1)));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testInvalidUIDs() {
+        InstanceLocationMap map = new InstanceLocationMap(16);
+        assertFalse(map.put("", uri(1)));
+        assertFalse(map.put("1.2.abc", uri(1)));
+        assertFalse(map.put("1.2.3 ", uri(1)));
+        assertFalse(map.put(new String(new char[65]).replace('\0', '1'), uri(1)));
+        assertNull(map.get("1.2.abc"));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testEviction() {
+        InstanceLocationMap map = new InstanceLocationMap(100);
+        for (int i = 0; i < 100; i++) {
+            map.put(uid(i), uri(i));
+        }
+        // touch the first, so that the second is the least recently used
+        assertEquals(uri(0), map.get(uid(0)));
+        map.put(uid(100), uri(100));
+        assertEquals(100, map.size());
+        assertNull(map.get(uid(1)));
+        assertEquals(uri(0), map.get(uid(0)));
+        assertEquals(uri(100), map.get(uid(100)));
+
+        for (int i = 1000; i < 1250; i++) {
+            map.put(uid(i), uri(i));
+        }
+        assertEquals(100, map.size());
+        for (int i = 1150; i < 1250; i++) {
+            assertEquals(uri(i), map.get(uid(i)));
+        }
+        assertNull(map.get(uid(0)));
+    }
+
+    @Test
+    public void testRemove() {
+        InstanceLocationMap map = new InstanceLocationMap(1000);
+        for (int i = 0; i < 1000; i++) {
+            map.put(uid(i), uri(i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(map.remove(uid(i)));
+        }
+        assertFalse(map.remove(uid(0)));
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : uri(i), map.get(uid(i)));
+        }
+
+        int removed = map.removeIf(u -> u.toString().endsWith("1.dcm"));
+        assertEquals(100, removed);
+        assertEquals(400, map.size());
+        assertNull(map.get(uid(11)));
+        assertEquals(uri(13), map.get(uid(13)));
+
+        // freed entries are reused
+        for (int i = 2000; i < 2600; i++) {
+            map.put(uid(i), uri(i));
+        }
+        assertEquals(1000, map.size());
+        assertEquals(uri(13), map.get(uid(13)));
+        assertEquals(uri(2599), map.get(uid(2599)));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(uid(13)));
+        map.put(uid(13), uri(13));
+        assertEquals(uri(13), map.get(uid(13)));
+    }
+}
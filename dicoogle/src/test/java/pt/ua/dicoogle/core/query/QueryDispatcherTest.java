@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.taskManager.TaskManager;
+
+public class QueryDispatcherTest {
+
+    private final TaskManager executor = new TaskManager(4);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private volatile boolean hang = true;
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+    }
+
+    private static Iterable<SearchResult> result(String provider) {
+        return Collections.singletonList(new SearchResult(URI.create("file:/" + provider), 1, null));
+    }
+
+    private static String providerOf(Iterable<SearchResult> results) {
+        Iterator<SearchResult> it = results.iterator();
+        assertTrue(it.hasNext());
+        return it.next().getURI().getPath().substring(1);
+    }
+
+    /** "slow" hangs until the gate opens, "broken" fails, and any other provider answers right away */
+    private Function<String, Task<Iterable<SearchResult>>> tasks() {
+        return provider -> new Task<>(provider, () -> {
+            if (provider.equals("slow") && hang) {
+                gate.await();
+            } else if (provider.equals("broken")) {
+                throw new IllegalStateException("broken provider");
+            }
+            return result(provider);
+        });
+    }
+
+    @Test
+    public void testProviderTimeout() throws Exception {
+        QueryDispatcher dispatcher =
+                new QueryDispatcher(executor, p -> true, 100, 95, Collections.<String, String>emptyMap());
+        Task<Iterable<SearchResult>> t = dispatcher.prepareQuery("slow", tasks());
+        dispatcher.dispatchQuery(t);
+        try {
+            t.get(5, TimeUnit.SECONDS);
+            fail("the task should have been cancelled");
+        } catch (CancellationException ex) {
+            assertTrue(t.isTimedOut());
+        }
+    }
+
+    @Test
+    public void testHedgeToReplica() throws Exception {
+        QueryDispatcher dispatcher =
+                new QueryDispatcher(executor, p -> true, 0, 95, Collections.singletonMap("slow", "replica"));
+        // learn the usual latency of the provider, which answers quickly at first
+        hang = false;
+        for (int i = 0; i < 30; i++) {
+            Task<Iterable<SearchResult>> t = dispatcher.prepareQuery("slow", tasks());
+            dispatcher.dispatchQuery(t);
+            assertEquals("slow", providerOf(t.get(5, TimeUnit.SECONDS)));
+        }
+        assertEquals(0, dispatcher.getHedgeCount());
+
+        // then hangs, so the replica is queried as well
+        hang = true;
+        Task<Iterable<SearchResult>> t = dispatcher.prepareQuery("slow", tasks());
+        dispatcher.dispatchQuery(t);
+        assertEquals("replica", providerOf(t.get(5, TimeUnit.SECONDS)));
+        assertEquals(1, dispatcher.getHedgeCount());
+    }
+
+    @Test
+    public void testFailoverToReplica() throws Exception {
+        QueryDispatcher dispatcher =
+                new QueryDispatcher(executor, p -> true, 0, 95, Collections.singletonMap("broken", "replica"));
+        Task<Iterable<SearchResult>> t = dispatcher.prepareQuery("broken", tasks());
+        dispatcher.dispatchQuery(t);
+        assertEquals("replica", providerOf(t.get(5, TimeUnit.SECONDS)));
+
+        // without an available replica, the failure comes through
+        dispatcher = new QueryDispatcher(executor, p -> false, 0, 95, Collections.singletonMap("broken", "replica"));
+        t = dispatcher.prepareQuery("broken", tasks());
+        dispatcher.dispatchQuery(t);
+        try {
+            t.get(5, TimeUnit.SECONDS);
+            fail("the query should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testParseReplicas() {
+        assertEquals(Collections.singletonMap("a", "b"), QueryDispatcher.parseReplicas(" a = b ,bad,"));
+        assertTrue(QueryDispatcher.parseReplicas("").isEmpty());
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class QueryResultCacheTest {
+
+    private static SearchResult result(String uri, String study) {
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("StudyInstanceUID", study);
+        return new SearchResult(URI.create(uri), 1, data);
+    }
+
+    /** Cache results by reading them all, as a query consumer would. */
+    private static void put(QueryResultCache cache, QueryResultCache.Key key, long generation,
+            List<SearchResult> results) {
+        for (SearchResult r : cache.put(key, generation, results)) {
+            assertNotNull(r);
+        }
+    }
+
+    private static HashMap<String, String> fields(String... names) {
+        HashMap<String, String> map = new HashMap<>();
+        for (String n : names) {
+            map.put(n, n);
+        }
+        return map;
+    }
+
+    @Test
+    public void testKey() {
+        assertEquals(QueryResultCache.key("lucene", "  Modality:CT   AND PatientName:\"A  B\" "),
+                QueryResultCache.key("Lucene", "Modality:CT AND PatientName:\"A  B\""));
+        assertNotEquals(QueryResultCache.key("lucene", "PatientName:\"A  B\""),
+                QueryResultCache.key("lucene", "PatientName:\"A B\""));
+        assertEquals(QueryResultCache.key("lucene", "q", fields("PatientID", "Modality")),
+                QueryResultCache.key("lucene", "q", fields("Modality", "PatientID")));
+        assertNotEquals(QueryResultCache.key("lucene", "q", fields("PatientID")),
+                QueryResultCache.key("lucene", "q", fields("Modality")));
+        assertNull(QueryResultCache.key("lucene", "q", "a", "b"));
+    }
+
+    @Test
+    public void testStaleGeneration() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 60000);
+        QueryResultCache.Key key = QueryResultCache.key("lucene", "Modality:CT");
+        long generation = cache.generation();
+        cache.invalidateIndexed(Collections.singleton("1.1"));
+        // the results were obtained before the invalidation, so they are not cached
+        put(cache, key, generation, Arrays.asList(result("file:/b/1.dcm", "1.1")));
+        assertNull(cache.get(key));
+
+        put(cache, key, cache.generation(), Arrays.asList(result("file:/b/1.dcm", "1.1")));
+        assertNotNull(cache.get(key));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidateIndexed() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 60000);
+        QueryResultCache.Key broad = QueryResultCache.key("lucene", "Modality:CT");
+        QueryResultCache.Key lookup = QueryResultCache.key("lucene", "SOPInstanceUID:1.2.3");
+        QueryResultCache.Key missing = QueryResultCache.key("lucene", "SOPInstanceUID:1.2.4");
+        QueryResultCache.Key study = QueryResultCache.key("lucene", "StudyInstanceUID:\"2.2\"");
+        put(cache, broad, cache.generation(), Arrays.asList(result("file:/a/1.dcm", "1.1")));
+        put(cache, lookup, cache.generation(), Arrays.asList(result("file:/a/1.dcm", "1.1")));
+        put(cache, missing, cache.generation(), Collections.emptyList());
+        put(cache, study, cache.generation(), Collections.emptyList());
+
+        // a file of another study
+        cache.invalidateIndexed(Collections.singleton("3.3"));
+        assertNull(cache.get(broad));
+        assertNull(cache.get(missing));
+        assertNotNull(cache.get(lookup));
+        assertNotNull(cache.get(study));
+
+        // the first study of a study lookup
+        cache.invalidateIndexed(Collections.singleton("2.2"));
+        assertNull(cache.get(study));
+        assertNotNull(cache.get(lookup));
+
+        // indexing the same file again drops the lookup as well
+        cache.invalidateIndexed(Collections.singleton("1.1"));
+        assertNull(cache.get(lookup));
+
+        // unknown studies drop everything
+        put(cache, study, cache.generation(), Collections.emptyList());
+        cache.invalidateIndexed(null);
+        assertNull(cache.get(study));
+        assertEquals(5, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void testPartialRead() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 60000);
+        QueryResultCache.Key key = QueryResultCache.key("lucene", "Modality:CT");
+        Iterable<SearchResult> results = cache.put(key, cache.generation(),
+                Arrays.asList(result("file:/a/1.dcm", "1.1"), result("file:/a/2.dcm", "1.1")));
+        assertNull(cache.get(key));
+        // results which were not read in full are not cached
+        results.iterator().next();
+        assertNull(cache.get(key));
+
+        results = cache.put(key, cache.generation(),
+                Arrays.asList(result("file:/a/1.dcm", "1.1"), result("file:/a/2.dcm", "1.1")));
+        int count = 0;
+        for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(2, count);
+        assertEquals(2, ((List<?>) cache.get(key)).size());
+        // and they can be read again
+        count = 0;
+        for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void testInvalidateRemovedByStudy() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 60000);
+        QueryResultCache.Key q1 = QueryResultCache.key("lucene", "SOPInstanceUID:1.1.1");
+        QueryResultCache.Key q2 = QueryResultCache.key("lucene", "StudyInstanceUID:1.1");
+        QueryResultCache.Key q3 = QueryResultCache.key("lucene", "StudyInstanceUID:2.2");
+        put(cache, q1, cache.generation(), Arrays.asList(result("file:/s1/1.dcm", "1.1")));
+        put(cache, q2, cache.generation(),
+                Arrays.asList(result("file:/s1/1.dcm", "1.1"), result("file:/s1/2.dcm", "1.1")));
+        put(cache, q3, cache.generation(), Arrays.asList(result("file:/s2/1.dcm", "2.2")));
+
+        // removing the second instance of the first study drops both queries of that study
+        cache.invalidateRemoved(Collections.singleton(URI.create("file:/s1/2.dcm")));
+        assertNull(cache.get(q1));
+        assertNull(cache.get(q2));
+        assertNotNull(cache.get(q3));
+
+        // and unindexing a directory drops what is inside it
+        cache.invalidateRemoved(Collections.singleton(URI.create("file:/s2")));
+        assertNull(cache.get(q3));
+        assertEquals(3, cache.getInvalidationCount());
+    }
+
+    @Test
+    public void testTooManyResults() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 60000);
+        QueryResultCache.Key key = QueryResultCache.key("lucene", "*:*");
+        SearchResult[] many = new SearchResult[10001];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = result("file:/a/" + i + ".dcm", "1.1");
+        }
+        List<SearchResult> all = Arrays.asList(many);
+        int count = 0;
+        for (SearchResult r : cache.put(key, cache.generation(), all)) {
+            assertSame(many[count++], r);
+        }
+        assertEquals(many.length, count);
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getUncacheableCount());
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class CFindAggregatorTest {
+
+    private static int n = 0;
+
+    private static SearchResult result(String study, String series, String modality) {
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("StudyInstanceUID", study);
+        data.put("SeriesInstanceUID", series);
+        data.put("Modality", modality);
+        return new SearchResult(URI.create("file:/" + (n++) + ".dcm"), 1, data);
+    }
+
+    @Test
+    public void testGroupedInput() {
+        CFindAggregator aggregator = new CFindAggregator("StudyInstanceUID", true, 100);
+        assertTrue(aggregator.add(result("1.1", "1.1.1", "CT")));
+        assertTrue(aggregator.add(result("1.1", "1.1.2", "PT")));
+        assertTrue(aggregator.add(result("1.1", "1.1.2", "PT")));
+        assertTrue(aggregator.add(result("1.2", "1.2.1", "MR")));
+        assertTrue(aggregator.add(result("1.2", "1.2.1", "MR")));
+        // the counters are only final once the stream ends
+        assertFalse(aggregator.hasComplete());
+
+        aggregator.flush();
+        CFindAggregator.Entry e = aggregator.pollComplete();
+        assertEquals("1.1", e.getTemplate().get("StudyInstanceUID"));
+        assertEquals(3, e.getNumberOfInstances());
+        assertEquals(2, e.getNumberOfSeries());
+        assertEquals("[CT, PT]", e.getModalities().toString());
+        e = aggregator.pollComplete();
+        assertEquals("1.2", e.getTemplate().get("StudyInstanceUID"));
+        assertEquals(2, e.getNumberOfInstances());
+        assertEquals(1, e.getNumberOfSeries());
+        assertNull(aggregator.pollComplete());
+    }
+
+    @Test
+    public void testInterleavedInput() {
+        CFindAggregator aggregator = new CFindAggregator("SeriesInstanceUID", true, 100);
+        aggregator.add(result("1.1", "1.1.1", "CT"));
+        aggregator.add(result("1.1", "1.1.2", "CT"));
+        aggregator.add(result("1.1", "1.1.1", "CT"));
+        aggregator.add(result("1.1", "1.1.2", "CT"));
+        aggregator.add(result("1.1", "1.1.3", "CT"));
+        aggregator.add(result("1.1", "1.1.1", "CT"));
+        aggregator.flush();
+
+        // every series is emitted once, with all of its instances counted
+        CFindAggregator.Entry e = aggregator.pollComplete();
+        assertEquals("1.1.1", e.getTemplate().get("SeriesInstanceUID"));
+        assertEquals(3, e.getNumberOfInstances());
+        e = aggregator.pollComplete();
+        assertEquals("1.1.2", e.getTemplate().get("SeriesInstanceUID"));
+        assertEquals(2, e.getNumberOfInstances());
+        e = aggregator.pollComplete();
+        assertEquals("1.1.3", e.getTemplate().get("SeriesInstanceUID"));
+        assertEquals(1, e.getNumberOfInstances());
+        assertNull(aggregator.pollComplete());
+    }
+
+    @Test
+    public void testWithoutCounters() {
+        CFindAggregator aggregator = new CFindAggregator("StudyInstanceUID", false, 100);
+        aggregator.add(result("1.1", "1.1.1", "CT"));
+        // complete right away, since only the template is needed
+        assertTrue(aggregator.hasComplete());
+        assertEquals("1.1", aggregator.pollComplete().getTemplate().get("StudyInstanceUID"));
+
+        aggregator.add(result("1.2", "1.2.1", "MR"));
+        aggregator.add(result("1.1", "1.1.2", "CT"));
+        aggregator.flush();
+        assertEquals("1.2", aggregator.pollComplete().getTemplate().get("StudyInstanceUID"));
+        assertNull(aggregator.pollComplete());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        for (boolean counting : new boolean[] {true, false}) {
+            CFindAggregator aggregator = new CFindAggregator("StudyInstanceUID", counting, 2);
+            assertTrue(aggregator.add(result("1.1", "1.1.1", "CT")));
+            assertTrue(aggregator.add(result("1.2", "1.2.1", "CT")));
+            assertTrue(aggregator.add(result("1.1", "1.1.2", "CT")));
+            assertFalse(aggregator.add(result("1.3", "1.3.1", "CT")));
+        }
+    }
+}
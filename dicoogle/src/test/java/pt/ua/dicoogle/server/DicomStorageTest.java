@@ -19,6 +19,8 @@
 
 package pt.ua.dicoogle.server;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
@@ -49,4 +51,20 @@ public class DicomStorageTest {
         assertPriorityOrderAsc("IMPORTANT AE 1", 4, "IMPORTANT AE 2", 40);
 
     }
+
+    @Test
+    public void testFileName() {
+        assertEquals("1.2.840.10008.1.2", DicomStorage.fileName(" 1.2.840.10008.1.2 "));
+        assertEquals("unknown", DicomStorage.fileName(null));
+        assertEquals("unknown", DicomStorage.fileName(""));
+
+        // anything else is mapped to a name which stays in its directory
+        for (String uid : Arrays.asList(".", "..", "../..", "1..2", "1.2.", "a/b", "1\\2",
+                "1.2.3.4.5.6.7.8.9.10.11.12.13.14.15.16.17.18.19.20.21.22.23.24.25.26.27.28")) {
+            String name = DicomStorage.fileName(uid);
+            assertTrue(name, name.matches("[0-9A-Za-z-]+"));
+            assertEquals(name, DicomStorage.fileName(uid));
+        }
+        assertFalse(DicomStorage.fileName("..").equals(DicomStorage.fileName(".")));
+    }
 }
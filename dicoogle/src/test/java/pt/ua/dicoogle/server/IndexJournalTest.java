@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayUnfinished() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (IndexJournal journal = new IndexJournal(dir, 1 << 16, 4, false)) {
+            assertTrue(journal.getRecovered().isEmpty());
+            for (long i = 0; i < 10; i++) {
+                journal.append(i, URI.create("file:/tmp/object" + i + ".dcm"), i % 2 == 0 ? "AE01" : "AE02");
+            }
+            for (long i = 0; i < 10; i += 3) {
+                journal.done(i);
+            }
+            assertEquals(6, journal.getPendingCount());
+        }
+
+        try (IndexJournal journal = new IndexJournal(dir, 1 << 16, 4, false)) {
+            List<IndexJournal.Entry> recovered = journal.getRecovered();
+            assertEquals(6, recovered.size());
+            long[] expected = {1, 2, 4, 5, 7, 8};
+            for (int i = 0; i < expected.length; i++) {
+                IndexJournal.Entry e = recovered.get(i);
+                assertEquals(expected[i], e.getSequenceNumber());
+                assertEquals(URI.create("file:/tmp/object" + expected[i] + ".dcm"), e.getUri());
+                assertEquals(expected[i] % 2 == 0 ? "AE01" : "AE02", e.getCallingAET());
+            }
+            assertEquals(10, journal.getNextSequenceNumber());
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        // small segments, so that they roll over often
+        try (IndexJournal journal = new IndexJournal(dir, 4096, 3, false)) {
+            // one element stays pending for the whole time
+            journal.append(0, URI.create("file:/tmp/stuck.dcm"), "AE01");
+            for (long i = 1; i < 2000; i++) {
+                journal.append(i, URI.create("file:/tmp/object" + i + ".dcm"), "AE01");
+                journal.done(i);
+            }
+            assertTrue("too many segments: " + journal, journal.getSegmentCount() <= 4);
+            assertEquals(1, journal.getPendingCount());
+        }
+
+        try (IndexJournal journal = new IndexJournal(dir, 4096, 3, false)) {
+            List<IndexJournal.Entry> recovered = journal.getRecovered();
+            assertEquals(1, recovered.size());
+            assertEquals(URI.create("file:/tmp/stuck.dcm"), recovered.get(0).getUri());
+        }
+    }
+}
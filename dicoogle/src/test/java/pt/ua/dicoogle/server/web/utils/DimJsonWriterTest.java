@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
+
+public class DimJsonWriterTest {
+
+    private static DIMGeneric example() throws Exception {
+        List<SearchResult> results = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            HashMap<String, Object> data = new HashMap<>();
+            data.put("PatientID", "P" + (i % 4));
+            data.put("PatientName", "Patient^" + (i % 4));
+            data.put("PatientSex", i % 2 == 0 ? "F" : "M");
+            data.put("StudyInstanceUID", "1.2.3." + (i % 8));
+            data.put("StudyDate", "20200101");
+            data.put("StudyDescription", "Study \"" + (i % 8) + "\" é");
+            data.put("SeriesInstanceUID", "1.2.3." + (i % 8) + "." + (i % 3));
+            data.put("SeriesNumber", Integer.toString(i % 3) + ".0");
+            data.put("Modality", i % 3 == 0 ? "CT" : "MR");
+            data.put("SOPInstanceUID", "1.2.3.4." + i);
+            if (i % 5 != 0) {
+                data.put("InstanceNumber", i % 7 == 0 ? "x" : i + ".0");
+            }
+            results.add(new SearchResult(URI.create("file:/data/" + i + ".dcm"), 1, data));
+        }
+        return new DIMGeneric(results);
+    }
+
+    private static JSONObject write(DIMGeneric dim, int depth, int offset, int psize) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DimJsonWriter writer = new DimJsonWriter(out);
+        writer.write(dim.getPatients(), depth, offset, psize, 42);
+        writer.close();
+        return JSONObject.fromObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSameAsJSONObject() throws Exception {
+        DIMGeneric dim = example();
+        for (int depth = 0; depth <= 4; depth++) {
+            for (int[] page : new int[][] {{0, 0}, {1, 2}, {3, 10}, {5, 1}, {0, Integer.MAX_VALUE}}) {
+                JSONObject expected = dim.getJSONObject(depth, page[0], page[1]);
+                expected.put("elapsedTime", 42);
+                assertEquals("depth " + depth + ", page " + page[0] + "+" + page[1], expected,
+                        write(dim, depth, page[0], page[1]));
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class HttpCachingTest {
+
+    @Test
+    public void testTag() {
+        String tag = HttpCaching.tag("dic2png", "sop:1.2.3", 0, null, 128);
+        assertEquals(40, tag.length());
+        assertEquals(tag, HttpCaching.tag("dic2png", "sop:1.2.3", 0, null, 128));
+        assertNotEquals(tag, HttpCaching.tag("dic2png", "sop:1.2.3", 1, null, 128));
+        assertNotEquals(tag, HttpCaching.tag("dic2png", "sop:1.2.3", 0, null, 0));
+        // parts are not simply concatenated
+        assertNotEquals(HttpCaching.tag("ab", "c"), HttpCaching.tag("a", "bc"));
+    }
+
+    @Test
+    public void testMatches() {
+        String tag = HttpCaching.tag("roi", "1.2.3");
+        assertTrue(HttpCaching.matches('"' + tag + '"', tag));
+        assertTrue(HttpCaching.matches("W/\"" + tag + '"', tag));
+        assertTrue(HttpCaching.matches("\"other\", \"" + tag + "\"", tag));
+        assertFalse(HttpCaching.matches(tag, tag));
+        assertFalse(HttpCaching.matches("\"other\"", tag));
+        assertFalse(HttpCaching.matches(null, tag));
+        assertFalse(HttpCaching.matches('"' + tag + '"', null));
+    }
+
+    @Test
+    public void testNotModified() {
+        String tag = HttpCaching.tag("dic2png", "sop:1.2.3");
+        Map<String, Object> sent = new HashMap<>();
+        HttpServletResponse resp = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("setHeader")) {
+                        sent.put((String) args[0], args[1]);
+                    } else if (method.getName().equals("setStatus")) {
+                        sent.put("status", args[0]);
+                    }
+                    return null;
+                });
+
+        assertFalse(HttpCaching.notModified(request(null), resp, tag, HttpCaching.IMMUTABLE));
+        assertFalse(HttpCaching.notModified(request("\"other\""), resp, tag, HttpCaching.IMMUTABLE));
+        assertTrue(sent.isEmpty());
+
+        assertTrue(HttpCaching.notModified(request('"' + tag + '"'), resp, tag, HttpCaching.IMMUTABLE));
+        assertEquals(304, sent.get("status"));
+        assertEquals('"' + tag + '"', sent.get("ETag"));
+        assertTrue(((String) sent.get("Cache-Control")).contains("immutable"));
+    }
+
+    private static HttpServletRequest request(String ifNoneMatch) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpCachingTest.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class},
+                (proxy, method, args) -> method.getName().equals("getHeader") && "If-None-Match".equals(args[0])
+                        ? ifNoneMatch
+                        : null);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
+
+public class ImageLoaderTest {
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width / 2, height);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSubsampling() {
+        assertEquals(1, ImageLoader.subsampling(512, 512, 256, 256));
+        assertEquals(1, ImageLoader.subsampling(100, 100, 256, 256));
+        assertEquals(16, ImageLoader.subsampling(4096, 4096, 128, 128));
+        assertEquals(11, ImageLoader.subsampling(3000, 3000, 128, 128));
+        // the smaller dimension prevails
+        assertEquals(2, ImageLoader.subsampling(3000, 600, 128, 128));
+        assertEquals(1, ImageLoader.subsampling(3000, 3000, 0, 0));
+    }
+
+    @Test
+    public void testLoadSubsampled() throws IOException {
+        BufferedImage image = ImageLoader.loadImage(new ByteArrayInputStream(png(1000, 600)), 0, 64, 64);
+        assertEquals(250, image.getWidth());
+        assertEquals(150, image.getHeight());
+        // the content is kept
+        assertEquals(0xFFFFFFFF, image.getRGB(10, 10));
+        assertEquals(0xFF000000, image.getRGB(240, 10));
+
+        try {
+            ImageLoader.loadImage(new ByteArrayInputStream(png(100, 100)), 1, 64, 64);
+            fail("frame 1 should not exist");
+        } catch (IOException ex) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testScaledPNG() throws IOException {
+        ByteArrayOutputStream out =
+                Convert2PNG.DICOM2ScaledPNGStream(new ByteArrayInputStream(png(1000, 600)), 0, 64, 64);
+        BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(64, thumbnail.getWidth());
+        assertEquals(38, thumbnail.getHeight());
+    }
+}
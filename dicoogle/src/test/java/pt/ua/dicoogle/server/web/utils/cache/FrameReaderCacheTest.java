@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+
+public class FrameReaderCacheTest {
+
+    private final AtomicInteger opens = new AtomicInteger();
+
+    /** An animated image, the width of each frame being 100 plus its index. */
+    private static byte[] cine(int frames) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++) {
+                BufferedImage frame = new BufferedImage(100 + i, 80, BufferedImage.TYPE_BYTE_INDEXED);
+                writer.writeToSequence(new IIOImage(frame, null, null), null);
+            }
+            writer.endWriteSequence();
+        }
+        return out.toByteArray();
+    }
+
+    private FrameReaderCache.Opener opener(byte[] data) {
+        return () -> {
+            opens.incrementAndGet();
+            return new ByteArrayInputStream(data);
+        };
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        URI uri = URI.create("file:/data/cine.dcm");
+        FrameReaderCache.Opener opener = opener(cine(5));
+        try (FrameReaderCache cache = new FrameReaderCache(4, 60000)) {
+            assertEquals(5, cache.getFrameCount(uri, opener));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(100 + i, cache.read(uri, opener, i, 0, 0).getWidth());
+            }
+            // going back to a frame already read
+            assertEquals(101, cache.read(uri, opener, 1, 0, 0).getWidth());
+            assertEquals(1, opens.get());
+            assertEquals(6, cache.getReuseCount());
+            assertEquals(1, cache.size());
+
+            try {
+                cache.read(uri, opener, 5, 0, 0);
+                fail("frame 5 should not exist");
+            } catch (IOException ex) {
+                // ok, and the reader is kept
+            }
+            assertEquals(104, cache.read(uri, opener, 4, 0, 0).getWidth());
+            assertEquals(1, opens.get());
+        }
+    }
+
+    @Test
+    public void testSingleFrameAndEviction() throws IOException {
+        FrameReaderCache.Opener single = opener(cine(1));
+        try (FrameReaderCache cache = new FrameReaderCache(2, 60000)) {
+            URI uri = URI.create("file:/data/single.dcm");
+            cache.read(uri, single, 0, 0, 0);
+            cache.read(uri, single, 0, 0, 0);
+            // single frame objects are not kept open
+            assertEquals(2, opens.get());
+            assertEquals(0, cache.size());
+
+            byte[] data = cine(3);
+            for (int i = 0; i < 3; i++) {
+                cache.read(URI.create("file:/data/" + i + ".dcm"), opener(data), 0, 0, 0);
+            }
+            assertEquals(2, cache.size());
+            // the least recently used one was closed and is opened again
+            assertEquals(101, cache.read(URI.create("file:/data/0.dcm"), opener(data), 1, 0, 0).getWidth());
+            assertEquals(6, opens.get());
+        }
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        URI uri = URI.create("file:/data/cine.dcm");
+        FrameReaderCache.Opener opener = opener(cine(2));
+        try (FrameReaderCache cache = new FrameReaderCache(4, 50)) {
+            cache.read(uri, opener, 0, 0, 0);
+            assertEquals(1, cache.size());
+            Thread.sleep(100);
+            cache.read(uri, opener, 1, 0, 0);
+            assertEquals(2, opens.get());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.hash.HashCode;
+
+public class RenderCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RenderKey key(int i) {
+        return new RenderKey(URI.create("file:/data/" + i + ".dcm"), 0, 0, "png");
+    }
+
+    private static byte[] image(int i, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private RenderCache cache(File dir) {
+        return new RenderCache(null, dir, 1 << 20, 1 << 16, 1 << 12, 1024);
+    }
+
+    @Test
+    public void testTiersAndRestart() throws Exception {
+        File dir = folder.newFolder();
+        AtomicInteger renders = new AtomicInteger();
+        RenderCache cache = cache(dir);
+        // a small image is kept in memory, a large one only on disk
+        assertArrayEquals(image(1, 100), cache.get(key(1), () -> {
+            renders.incrementAndGet();
+            return image(1, 100);
+        }));
+        assertArrayEquals(image(2, 5000), cache.get(key(2), () -> {
+            renders.incrementAndGet();
+            return image(2, 5000);
+        }));
+        assertArrayEquals(image(1, 100), cache.get(key(1), () -> image(0, 1)));
+        assertArrayEquals(image(2, 5000), cache.get(key(2), () -> image(0, 1)));
+        assertEquals(2, renders.get());
+        assertEquals(1, cache.getHeapHitCount());
+        assertEquals(1, cache.getDiskHitCount());
+        assertFalse(cache.contains(new RenderKey(URI.create("file:/data/1.dcm"), 0, 128, "png")));
+        cache.close();
+
+        // the disk cache survives a restart
+        cache = cache(dir);
+        assertEquals(2, cache.getDiskCount());
+        assertTrue(cache.contains(key(1)));
+        assertArrayEquals(image(2, 5000), cache.get(key(2), () -> image(0, 1)));
+        assertEquals(0, cache.getMissCount());
+        cache.close();
+    }
+
+    @Test
+    public void testDiskBudget() throws Exception {
+        File dir = folder.newFolder();
+        try (SegmentedDiskStore store = new SegmentedDiskStore(dir, 64 * 1024, 16 * 1024)) {
+            for (int i = 0; i < 200; i++) {
+                store.put(key(i).hash(), image(i, 1000));
+            }
+            assertTrue(store.size() <= 64 * 1024);
+            assertNull(store.get(key(0).hash()));
+            assertArrayEquals(image(199, 1000), store.get(key(199).hash()));
+            assertTrue(dir.list().length <= 5);
+
+            // entries read from old segments are kept
+            HashCode kept = key(150).hash();
+            assertNotNull(store.get(kept));
+            for (int i = 200; i < 240; i++) {
+                store.put(key(i).hash(), image(i, 1000));
+                store.get(kept);
+            }
+            assertArrayEquals(image(150, 1000), store.get(kept));
+        }
+    }
+
+    @Test
+    public void testDamagedSegments() throws Exception {
+        File dir = folder.newFolder();
+        try (SegmentedDiskStore store = new SegmentedDiskStore(dir, 1 << 20, 1 << 18)) {
+            for (int i = 0; i < 10; i++) {
+                store.put(key(i).hash(), image(i, 1000));
+            }
+        }
+        File segment = dir.listFiles()[0];
+        // an incomplete record, as left by a crash
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(new byte[] {0x44, 0x52, 0x43, 0x31, 1, 2, 3});
+        }
+        // and a damaged one
+        try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+            f.seek(100);
+            f.write(0x7f);
+        }
+        try (SegmentedDiskStore store = new SegmentedDiskStore(dir, 1 << 20, 1 << 18)) {
+            assertEquals(10, store.count());
+            assertNull(store.get(key(0).hash()));
+            assertEquals(9, store.count());
+            assertArrayEquals(image(9, 1000), store.get(key(9).hash()));
+            store.put(key(10).hash(), image(10, 10));
+            assertArrayEquals(image(10, 10), store.get(key(10).hash()));
+        }
+    }
+
+    @Test
+    public void testRendersOnce() throws Exception {
+        RenderCache cache = cache(folder.newFolder());
+        AtomicInteger renders = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cache.get(key(1), () -> {
+                        renders.incrementAndGet();
+                        try {
+                            Thread.sleep(200);
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                        return image(1, 100);
+                    });
+                }));
+            }
+            start.countDown();
+            for (Future<byte[]> r : results) {
+                assertArrayEquals(image(1, 100), r.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, renders.get());
+        } finally {
+            pool.shutdownNow();
+            cache.close();
+        }
+    }
+}
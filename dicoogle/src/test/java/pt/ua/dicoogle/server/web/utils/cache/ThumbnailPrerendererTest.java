@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ua.dicoogle.server.web.utils.ImageRetriever;
+
+public class ThumbnailPrerendererTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger renders = new AtomicInteger();
+    private final ImageRetriever renderer = (uri, frame, thumbnail) -> {
+        renders.incrementAndGet();
+        return new ByteArrayInputStream(uri.toString().getBytes());
+    };
+
+    /** the series of an instance is given by its directory */
+    private static String seriesOf(URI uri) {
+        String path = uri.getPath();
+        return path.substring(0, path.lastIndexOf('/'));
+    }
+
+    private static void await(ThumbnailPrerenderer prerenderer, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (prerenderer.getRenderedCount() + prerenderer.getSkippedCount() + prerenderer.getFailedCount() < count
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPrerender() throws Exception {
+        URI a = URI.create("file:/data/1/a.dcm");
+        URI b = URI.create("file:/data/2/b.dcm");
+        AtomicBoolean busy = new AtomicBoolean(true);
+        try (RenderCache cache = new RenderCache(renderer, folder.newFolder(), 1 << 20, 1 << 16, 1 << 16, 1024);
+                ThumbnailPrerenderer prerenderer = new ThumbnailPrerenderer(cache, renderer,
+                        ThumbnailPrerendererTest::seriesOf, () -> true, busy::get, 1, 16)) {
+            prerenderer.accept(Arrays.asList(a, b));
+
+            // nothing is rendered while the server is busy
+            Thread.sleep(200);
+            assertEquals(0, renders.get());
+            busy.set(false);
+            await(prerenderer, 2);
+            assertEquals(2, prerenderer.getRenderedCount());
+            assertTrue(cache.contains(RenderCache.key(a, 0, true)));
+
+            // the thumbnails are served from the cache, and not rendered again
+            cache.get(b, 0, true).close();
+            assertEquals(2, renders.get());
+            assertEquals(1, cache.getDiskHitCount());
+        }
+    }
+
+    @Test
+    public void testOneThumbnailPerSeries() throws Exception {
+        URI a1 = URI.create("file:/data/1/a1.dcm");
+        URI a2 = URI.create("file:/data/1/a2.dcm");
+        URI b1 = URI.create("file:/data/2/b1.dcm");
+        URI a3 = URI.create("file:/data/1/a3.dcm");
+        try (RenderCache cache = new RenderCache(renderer, null, 0, 0, 1 << 16, 1024);
+                ThumbnailPrerenderer prerenderer = new ThumbnailPrerenderer(cache, renderer,
+                        ThumbnailPrerendererTest::seriesOf, () -> true, () -> false, 1, 16)) {
+            prerenderer.accept(Arrays.asList(a1, a2, b1));
+            await(prerenderer, 2);
+            prerenderer.accept(Arrays.asList(a3));
+            Thread.sleep(200);
+
+            // only the first instance of each series is rendered
+            assertEquals(2, prerenderer.getRenderedCount());
+            assertEquals(2, renders.get());
+            assertTrue(cache.contains(RenderCache.key(a1, 0, true)));
+            assertTrue(cache.contains(RenderCache.key(b1, 0, true)));
+            assertFalse(cache.contains(RenderCache.key(a2, 0, true)));
+            assertFalse(cache.contains(RenderCache.key(a3, 0, true)));
+        }
+    }
+
+    @Test
+    public void testDisabledAndFull() throws Exception {
+        AtomicBoolean enabled = new AtomicBoolean(false);
+        try (RenderCache cache = new RenderCache(renderer, null, 0, 0, 1 << 16, 1024);
+                ThumbnailPrerenderer prerenderer = new ThumbnailPrerenderer(cache, renderer,
+                        ThumbnailPrerendererTest::seriesOf, enabled::get, () -> true, 1, 2)) {
+            prerenderer.accept(Arrays.asList(URI.create("file:/data/1/a.dcm")));
+            assertEquals(0, prerenderer.getQueueDepth());
+
+            enabled.set(true);
+            for (int i = 0; i < 4; i++) {
+                prerenderer.accept(Arrays.asList(URI.create("file:/data/" + i + "/a.dcm"),
+                        URI.create("file:/data/" + i + "/b.dcm")));
+            }
+            // one batch waiting on the busy server, two in the queue
+            assertEquals(2, prerenderer.getDroppedCount());
+            assertEquals(2, prerenderer.getQueueDepth());
+        }
+        assertEquals(0, renders.get());
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk;
+
+import pt.ua.dicoogle.sdk.datastructs.dim.DimCounts;
+import pt.ua.dicoogle.sdk.utils.QueryException;
+
+/**
+ * Query providers which can count the results of a query without producing them,
+ * for instance from the term statistics of an index.
+ *
+ * Providers which do not implement this interface are counted by Dicoogle,
+ * by going through their results.
+ */
+public interface CountableQueryInterface extends QueryInterface {
+
+    /**
+     * Counts the distinct patients, studies, series and instances matching a query.
+     *
+     * @param query a string describing the query, as in {@link #query(String, Object...)}
+     * @param parameters a variable list of parameters of the query, as in {@link #query(String, Object...)}
+     * @return the counts of the results at each level
+     * @throws QueryException if the provider could not perform the query
+     */
+    public DimCounts countQuery(String query, Object... parameters) throws QueryException;
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk;
+
+import pt.ua.dicoogle.sdk.datastructs.QueryHints;
+import pt.ua.dicoogle.sdk.datastructs.ResultPage;
+import pt.ua.dicoogle.sdk.utils.QueryException;
+
+/**
+ * Query providers which can return a single page of the results of a query,
+ * so that Dicoogle does not have to go through all results to serve one page.
+ *
+ * Providers which do not implement this interface are still paginated by Dicoogle,
+ * by skipping over their results.
+ */
+public interface PageableQueryInterface extends QueryInterface {
+
+    /**
+     * Performs a search on the database, returning only the page of results selected by the hints.
+     *
+     * The results must come in the same order each time the same query is performed,
+     * so that consecutive pages neither repeat nor miss results. When sort fields are given,
+     * the results should be sorted accordingly; fields which cannot be sorted by may be ignored.
+     * When only the count is requested (see {@link QueryHints#isCountOnly()}), the page should hold no results.
+     *
+     * @param query a string describing the query, as in {@link #query(String, Object...)}
+     * @param hints which results are wanted
+     * @param parameters a variable list of parameters of the query, as in {@link #query(String, Object...)}
+     * @return the page of results, along with the total count if requested and a cursor to the next page
+     * if the provider supports it
+     * @throws QueryException if the provider could not perform the query
+     */
+    public ResultPage queryPage(String query, QueryHints hints, Object... parameters) throws QueryException;
+}
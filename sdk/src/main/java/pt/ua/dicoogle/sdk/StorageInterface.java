@@ -133,6 +133,20 @@ public interface StorageInterface extends DicooglePlugin {
      */
     public URI store(DicomInputStream inputStream, Object... parameters) throws IOException;
 
+    /**
+     * Checks whether this storage supports storing objects directly from a stream,
+     * with {@link #store(DicomInputStream, Object...)}.
+     *
+     * When it does, objects received by the DICOM storage service are passed to this storage
+     * as a DICOM Part 10 stream, instead of being read into memory first.
+     * The default implementation returns false.
+     *
+     * @return true if this storage can store objects from a stream
+     */
+    public default boolean supportsStreamingStore() {
+        return false;
+    }
+
     /** Removes an element at the given URI.
      * 
      * @param location the URI of the stored data
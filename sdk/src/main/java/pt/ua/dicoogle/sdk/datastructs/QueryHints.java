@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Hints on which part of the results of a query are wanted,
+ * to be honoured by query providers which support pagination.
+ *
+ * A page of results is selected either by an offset into the full sequence of results,
+ * or by a cursor (<i>search after</i> token) previously returned by the same provider
+ * for the same query. Hints are immutable, and built with {@link #builder()}.
+ *
+ * @see pt.ua.dicoogle.sdk.PageableQueryInterface
+ */
+public final class QueryHints {
+
+    /** A field to sort the results by. */
+    public static final class SortField {
+        private final String field;
+        private final boolean descending;
+
+        public SortField(String field, boolean descending) {
+            this.field = Objects.requireNonNull(field);
+            this.descending = descending;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public boolean isDescending() {
+            return descending;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SortField)) {
+                return false;
+            }
+            SortField other = (SortField) o;
+            return field.equals(other.field) && descending == other.descending;
+        }
+
+        @Override
+        public int hashCode() {
+            return field.hashCode() * 31 + (descending ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (descending ? "-" : "") + field;
+        }
+    }
+
+    /** Builder of query hints. */
+    public static final class Builder {
+        private int limit = -1;
+        private int offset = 0;
+        private final List<SortField> sort = new ArrayList<>(2);
+        private String searchAfter = null;
+        private boolean countOnly = false;
+        private boolean includeTotal = false;
+
+        private Builder() {}
+
+        /** @param limit the maximum number of results, or a negative number for no limit */
+        public Builder limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        /** @param offset the number of results to skip */
+        public Builder offset(int offset) {
+            if (offset < 0) {
+                throw new IllegalArgumentException("offset must not be negative");
+            }
+            this.offset = offset;
+            return this;
+        }
+
+        /** Add a sort field, after the ones already added. */
+        public Builder sortBy(String field, boolean descending) {
+            this.sort.add(new SortField(field, descending));
+            return this;
+        }
+
+        /** @param searchAfter a cursor returned by the provider with the previous page, or null */
+        public Builder searchAfter(String searchAfter) {
+            this.searchAfter = searchAfter;
+            return this;
+        }
+
+        /** @param countOnly whether only the total number of results is wanted, and no results */
+        public Builder countOnly(boolean countOnly) {
+            this.countOnly = countOnly;
+            return this;
+        }
+
+        /** @param includeTotal whether the total number of results is wanted along with the page */
+        public Builder includeTotal(boolean includeTotal) {
+            this.includeTotal = includeTotal;
+            return this;
+        }
+
+        public QueryHints build() {
+            return new QueryHints(this);
+        }
+    }
+
+    private final int limit;
+    private final int offset;
+    private final List<SortField> sort;
+    private final String searchAfter;
+    private final boolean countOnly;
+    private final boolean includeTotal;
+
+    private QueryHints(Builder b) {
+        this.limit = b.limit;
+        this.offset = b.offset;
+        this.sort = Collections.unmodifiableList(new ArrayList<>(b.sort));
+        this.searchAfter = b.searchAfter;
+        this.countOnly = b.countOnly;
+        this.includeTotal = b.includeTotal;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** @return the maximum number of results wanted, or a negative number for no limit */
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean hasLimit() {
+        return limit >= 0;
+    }
+
+    /** @return the number of results to skip, ignored when a cursor is given */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @return the fields to sort by, in order of precedence (empty for the provider's natural order) */
+    public List<SortField> getSort() {
+        return sort;
+    }
+
+    /** @return the cursor after which to continue, or null to start at the offset */
+    public String getSearchAfter() {
+        return searchAfter;
+    }
+
+    /** @return whether only the total number of results is wanted */
+    public boolean isCountOnly() {
+        return countOnly;
+    }
+
+    /** @return whether the total number of results is wanted along with the page */
+    public boolean isIncludeTotal() {
+        return includeTotal || countOnly;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryHints{limit=" + limit + ", offset=" + offset + ", sort=" + sort + ", searchAfter=" + searchAfter
+                + ", countOnly=" + countOnly + ", includeTotal=" + includeTotal + '}';
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import java.util.Collections;
+
+/**
+ * A page of results of a query, as returned by query providers which support pagination.
+ *
+ * @see pt.ua.dicoogle.sdk.PageableQueryInterface
+ * @see QueryHints
+ */
+public class ResultPage {
+
+    private final Iterable<SearchResult> results;
+    private final long totalCount;
+    private final String nextCursor;
+
+    /**
+     * @param results the results in this page
+     * @param totalCount the total number of results of the query, or -1 if not known
+     * @param nextCursor a cursor to obtain the next page with {@link QueryHints#getSearchAfter()},
+     * or null if there are no more results or the provider does not support cursors
+     */
+    public ResultPage(Iterable<SearchResult> results, long totalCount, String nextCursor) {
+        this.results = results == null ? Collections.<SearchResult>emptyList() : results;
+        this.totalCount = totalCount;
+        this.nextCursor = nextCursor;
+    }
+
+    /** Create a page with no results, only the total count.
+     * @param totalCount the total number of results of the query
+     * @return the page
+     */
+    public static ResultPage countOnly(long totalCount) {
+        return new ResultPage(Collections.<SearchResult>emptyList(), totalCount, null);
+    }
+
+    /** @return the results in this page, to be traversed only once */
+    public Iterable<SearchResult> getResults() {
+        return results;
+    }
+
+    /** @return the total number of results of the query, or -1 if not known */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /** @return a cursor to the next page, or null */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
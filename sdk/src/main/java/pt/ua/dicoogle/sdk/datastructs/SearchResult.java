@@ -20,6 +20,7 @@ package pt.ua.dicoogle.sdk.datastructs;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.Collection;
 import java.util.HashMap;
 
 /**
@@ -35,7 +36,7 @@ public class SearchResult implements Serializable {
     private double score; // score given by the querier
 
     // stores extra data, placed by specific plugins or inserted along the way
-    private HashMap<String, Object> extraData = new HashMap<>();
+    private HashMap<String, Object> extraData;
 
     public SearchResult(URI location, double score, HashMap<String, Object> data) {
         this.location = location;
@@ -43,8 +44,16 @@ public class SearchResult implements Serializable {
 
         if (data != null)
             this.extraData = data;
+        else
+            this.extraData = new HashMap<>();
     }
 
+    /**
+     * For views over results stored elsewhere, such as the rows of a {@link SearchResultBatch},
+     * which override all accessors.
+     */
+    protected SearchResult() {}
+
 
     /**
      * Gets the location of the hit
@@ -96,6 +105,15 @@ public class SearchResult implements Serializable {
         return extraData;
     }
 
+    /**
+     * Gets the names of the extra fields of this result,
+     * which can be read with {@link #get(String)} without going through the whole table.
+     * @return the names of the extra fields
+     */
+    public Collection<String> getFieldNames() {
+        return extraData.keySet();
+    }
+
     @Override
     public String toString() {
         return location.toString() + " " + score;
@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact, column-oriented list of search results.
+ *
+ * The names of the extra fields are kept once for the whole batch, and the values of each field
+ * are kept in an array of their own. String values of fields with few distinct values,
+ * such as Modality or InstitutionName, are interned within the batch, so that repeated values
+ * share a single instance.
+ *
+ * Elements of the list are {@link SearchResult} views over a row of the batch, created on access,
+ * so that existing code keeps working. Code handling large result sets should rather read the batch
+ * by row and field, through {@link #getURI(int)} and {@link #get(int, int)}.
+ *
+ * Fields with null values are not distinguished from absent fields.
+ * Batches are not thread safe, and should not be modified once shared.
+ */
+public class SearchResultBatch extends AbstractList<SearchResult> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    /** the number of distinct values of a field beyond which its values are no longer interned */
+    private static final int INTERN_LIMIT = 512;
+
+    private static final class Column implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Object[] values;
+        private transient Map<String, String> dictionary = new HashMap<>();
+
+        Column(int capacity) {
+            this.values = new Object[capacity];
+        }
+
+        Object intern(Object value) {
+            if (dictionary == null || !(value instanceof String)) {
+                return value;
+            }
+            String s = (String) value;
+            String interned = dictionary.putIfAbsent(s, s);
+            if (interned != null) {
+                return interned;
+            }
+            if (dictionary.size() > INTERN_LIMIT) {
+                // a high cardinality field such as a UID, stop trying
+                dictionary = null;
+            }
+            return s;
+        }
+    }
+
+    private final List<String> fields = new ArrayList<>();
+    private final Map<String, Integer> fieldIndex = new HashMap<>();
+    private final List<Column> columns = new ArrayList<>();
+    private URI[] uris = new URI[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    private int size = 0;
+    private boolean readOnly = false;
+
+    public SearchResultBatch() {}
+
+    /** Gather search results into a batch.
+     *
+     * @param results the results, which are returned as they are if already a batch
+     * @return a batch with the given results
+     */
+    public static SearchResultBatch of(Iterable<? extends SearchResult> results) {
+        if (results instanceof SearchResultBatch) {
+            return (SearchResultBatch) results;
+        }
+        return of(results.iterator());
+    }
+
+    /** Gather search results into a batch.
+     *
+     * @param results an iterator over the results
+     * @return a batch with the given results
+     */
+    public static SearchResultBatch of(Iterator<? extends SearchResult> results) {
+        SearchResultBatch batch = new SearchResultBatch();
+        while (results.hasNext()) {
+            batch.add(results.next());
+        }
+        return batch;
+    }
+
+    /** Append a search result, copying its extra fields into the batch. */
+    @Override
+    public boolean add(SearchResult result) {
+        int row = appendRow(result.getURI(), result.getScore());
+        for (String field : result.getFieldNames()) {
+            set(row, field, result.get(field));
+        }
+        return true;
+    }
+
+    /** Append a search result.
+     *
+     * @param uri the location of the result
+     * @param score the score of the result
+     * @param data the extra fields of the result, may be null
+     */
+    public void add(URI uri, double score, Map<String, ?> data) {
+        int row = appendRow(uri, score);
+        if (data != null) {
+            for (Map.Entry<String, ?> e : data.entrySet()) {
+                set(row, e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private int appendRow(URI uri, double score) {
+        checkWritable();
+        if (size == uris.length) {
+            int capacity = uris.length + (uris.length >> 1);
+            uris = Arrays.copyOf(uris, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+        }
+        uris[size] = uri;
+        scores[size] = score;
+        modCount++;
+        return size++;
+    }
+
+    private void set(int row, String field, Object value) {
+        checkWritable();
+        Integer index = fieldIndex.get(field);
+        if (index == null) {
+            if (value == null) {
+                return;
+            }
+            index = fields.size();
+            fields.add(field);
+            fieldIndex.put(field, index);
+            columns.add(new Column(uris.length));
+        }
+        Column column = columns.get(index);
+        if (row >= column.values.length) {
+            column.values = Arrays.copyOf(column.values, uris.length);
+        }
+        column.values[row] = column.intern(value);
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("This batch of results is read only");
+        }
+    }
+
+    /** Forbid further changes to the batch, so that it can be shared. */
+    public void setReadOnly() {
+        this.readOnly = true;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** Obtain a view of a row of the batch as a search result.
+     *
+     * Changes to its fields through {@link SearchResult#put} are written to the batch,
+     * but its {@link SearchResult#getExtraData()} is a copy.
+     */
+    @Override
+    public SearchResult get(int row) {
+        checkRow(row);
+        return new Row(row);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    public URI getURI(int row) {
+        checkRow(row);
+        return uris[row];
+    }
+
+    public double getScore(int row) {
+        checkRow(row);
+        return scores[row];
+    }
+
+    /** @return the names of all fields in the batch, by field index */
+    public List<String> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    /** @return the index of a field in the batch, or -1 if no result has it */
+    public int fieldIndex(String field) {
+        Integer index = fieldIndex.get(field);
+        return index == null ? -1 : index;
+    }
+
+    /** @return the value of a field in a row, or null if absent */
+    public Object get(int row, int field) {
+        checkRow(row);
+        Object[] values = columns.get(field).values;
+        return row < values.length ? values[row] : null;
+    }
+
+    /** @return the value of a field in a row, or null if absent */
+    public Object get(int row, String field) {
+        int index = fieldIndex(field);
+        return index < 0 ? null : get(row, index);
+    }
+
+    /** @return the names of the fields with a value in a row */
+    public List<String> getFieldNames(int row) {
+        checkRow(row);
+        List<String> names = new ArrayList<>(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            Object[] values = columns.get(i).values;
+            if (row < values.length && values[row] != null) {
+                names.add(fields.get(i));
+            }
+        }
+        return names;
+    }
+
+    /** Estimate the memory taken by the batch, counting shared values once.
+     *
+     * @return the approximate size of the batch, in bytes
+     */
+    public long estimateBytes() {
+        long bytes = 64 + uris.length * 16L;
+        for (int row = 0; row < size; row++) {
+            bytes += 64 + uris[row].toString().length() * 2;
+        }
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < columns.size(); i++) {
+            Object[] values = columns.get(i).values;
+            bytes += 48 + fields.get(i).length() * 2 + values.length * 8L;
+            for (int row = 0; row < Math.min(size, values.length); row++) {
+                Object v = values[row];
+                if (v != null && seen.add(v)) {
+                    bytes += 40 + (v instanceof String ? ((String) v).length() * 2 : 16);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /** A search result backed by a row of the batch. */
+    private final class Row extends SearchResult {
+        private final int row;
+
+        Row(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public URI getURI() {
+            return uris[row];
+        }
+
+        @Override
+        public double getScore() {
+            return scores[row];
+        }
+
+        @Override
+        public Object get(String tag) {
+            return SearchResultBatch.this.get(row, tag);
+        }
+
+        @Override
+        public void put(String tag, Object value) {
+            set(row, tag, value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getData(String extraFieldName) {
+            return (T) get(extraFieldName);
+        }
+
+        @Override
+        public HashMap<String, Object> getExtraData() {
+            HashMap<String, Object> data = new HashMap<>();
+            for (String field : getFieldNames()) {
+                data.put(field, get(field));
+            }
+            return data;
+        }
+
+        @Override
+        public Collection<String> getFieldNames() {
+            return SearchResultBatch.this.getFieldNames(row);
+        }
+
+        @Override
+        public String toString() {
+            return getURI().toString() + " " + getScore();
+        }
+
+        /** Serialize as a plain search result, without the rest of the batch. */
+        private Object writeReplace() {
+            return new SearchResult(getURI(), getScore(), getExtraData());
+        }
+    }
+}
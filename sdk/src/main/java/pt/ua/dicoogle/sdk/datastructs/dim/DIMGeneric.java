@@ -22,7 +22,6 @@ import java.io.StringWriter;
 import java.net.URI;
 import java.util.*;
 
-import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.transform.OutputKeys;
@@ -52,38 +51,12 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
  */
 public class DIMGeneric {
 
-    /**
-     *
-     * There are double space to save the results but it decrease the search
-     * time and it is important because a querySearch should be little enough.
-     */
-    private ArrayList<Patient> patients = new ArrayList<>();
-    private HashMap<String, Patient> patientsHash = new HashMap<>();
-
-    private static String toTrimmedString(Object o, boolean allowNull) {
-        if (o == null) {
-            if (allowNull) {
-                return null;
-            } else {
-                return "";
-            }
-        }
-
-        if (allowNull) {
-            return StringUtils.trimToNull(o.toString());
-        }
-
-        return StringUtils.trimToEmpty(o.toString());
-    }
-
-    private ConcatTags tags;
-
-    private static final Logger logger = LoggerFactory.getLogger(DIMGeneric.class);
+    private ArrayList<Patient> patients;
 
     public DIMGeneric(ConcatTags tags, Collection<SearchResult> arr) throws Exception {
-        this.tags = tags;
-        fill(arr);
-
+        DimBuilder builder = new DimBuilder(tags);
+        builder.addAll(arr);
+        this.patients = builder.getPatients();
     }
 
     /**
@@ -92,8 +65,7 @@ public class DIMGeneric {
      * @param arr
      */
     public DIMGeneric(Collection<SearchResult> arr) throws Exception {
-        fill(arr);
-
+        this(null, arr);
     }
 
     /**
@@ -103,243 +75,23 @@ public class DIMGeneric {
      * @param uri
      */
     public DIMGeneric(Map<String, Object> arr, URI uri) throws Exception {
-        fillWithMap(arr, uri);
+        DimBuilder builder = new DimBuilder();
+        builder.add(arr::get, uri);
+        this.patients = builder.getPatients();
     }
 
-    /**
-     * it is allow to handle a ArrayList of Strings or SearchResults
-     *
-     * @param arr
-     */
-    private void fill(Collection<SearchResult> arr) {
-        for (SearchResult r : arr) {
-            /**
-             * Looking for SeachResults and put it in right side :)
-             */
-            // SearchResult r = (SearchResult) arr.get(i);
-            HashMap<String, Object> extra = r.getExtraData();
-            fillDim(extra, r.getURI());
-
-        }
-
+    private DIMGeneric(ArrayList<Patient> patients) {
+        this.patients = patients;
     }
 
     /**
-     * it is allow to handle a map with keys and values
+     * Wrap patients already built, for instance with a {@link DimBuilder}.
      *
-     * @param arr
-     * @param uri
-     */
-    private void fillWithMap(Map<String, Object> arr, URI uri) {
-        fillDim(arr, uri);
-    }
-
-    /**
-     * Generic function for fill dim object
-     * @param extra
-     * @param uri 
+     * @param patients the patients of the tree
+     * @return the DIM tree of the given patients
      */
-    private void fillDim(Map<String, Object> extra, URI uri) {
-        Map<String, String> descriptions = new HashMap<String, String>();
-        /**
-         * Get data from Study
-         */
-        String studyUID = toTrimmedString(extra.get("StudyInstanceUID"), false);
-        String studyID = toTrimmedString(extra.get("StudyID"), false);
-        String studyDate = toTrimmedString(extra.get("StudyDate"), false);
-        String studyTime = toTrimmedString(extra.get("StudyTime"), true);
-        String AccessionNumber = toTrimmedString(extra.get("AccessionNumber"), false);
-        String StudyDescription = toTrimmedString(extra.get("StudyDescription"), false);
-        String InstitutionName = toTrimmedString(extra.get("InstitutionName"), false);
-        String operatorsName = toTrimmedString(extra.get("OperatorsName"), false);
-        String RequestingPhysician = toTrimmedString(extra.get("RequestingPhysician"), false);
-
-        /**
-         * Get data to Series
-         */
-        String serieUID = toTrimmedString(extra.get("SeriesInstanceUID"), false);
-        String BodyPartThickness = toTrimmedString(extra.get("BodyPartThickness"), true);
-        String serieNumber = toTrimmedString(extra.get("SeriesNumber"), true);
-        String serieDescription = toTrimmedString(extra.get("SeriesDescription"), false);
-        String modality = toTrimmedString(extra.get("Modality"), false);
-        String patientID = toTrimmedString(extra.get("PatientID"), false);
-
-        String ViewPosition = toTrimmedString(extra.get("ViewPosition"), false);
-        String ImageLaterality = toTrimmedString(extra.get("ImageLaterality"), false);
-        String AcquisitionDeviceProcessingDescription =
-                toTrimmedString(extra.get("AcquisitionDeviceProcessingDescription"), false);
-
-        String ViewCodeSequence_CodeValue = toTrimmedString(extra.get("ViewCodeSequence_CodeValue"), false);
-        String ViewCodeSequence_CodingSchemeDesignator =
-                toTrimmedString(extra.get("ViewCodeSequence_CodingSchemeDesignator"), false);
-        String ViewCodeSequence_CodingSchemeVersion =
-                toTrimmedString(extra.get("ViewCodeSequence_CodingSchemeVersion"), false);
-        String ViewCodeSequence_CodeMeaning = toTrimmedString(extra.get("ViewCodeSequence_CodeMeaning"), false);
-
-
-        /* Get Patient Data */
-        String patientSex = toTrimmedString(extra.get("PatientSex"), false);
-        String patientBirthDate = toTrimmedString(extra.get("PatientBirthDate"), false);
-
-        String patientName = toTrimmedString(extra.get("PatientName"), false);
-
-        String SeriesDate = toTrimmedString(extra.get("SeriesDate"), false);
-        String ProtocolName = toTrimmedString(extra.get("ProtocolName"), false);
-
-        String instanceNumber = toTrimmedString(extra.get("InstanceNumber"), true);
-
-        /**
-         * Get data to Image
-         */
-        String sopInstUID = toTrimmedString(extra.get("SOPInstanceUID"), true);
-
-        if (sopInstUID == null) {
-            sopInstUID = "no uid";
-        }
-
-        // This is a quick fix for changing the parameters for the query.
-        if ((StudyDescription == null || StudyDescription.equals("") || StudyDescription.toLowerCase().contains("fuji"))
-                && this.tags != null) {
-            logger.debug("Checking if the Rule applies." + studyUID);
-            String description = "";
-
-            if (descriptions.containsKey(studyUID)) {
-                description = descriptions.get(studyUID);
-            }
-
-            for (ConcatTags.Rule rule : this.tags.getRules()) {
-                logger.debug("Checking if the Rule applies." + modality);
-
-                if (modality.equals(rule.getModality())) {
-
-                    String valueTagToReplace = (String) extra.get(rule.getTagToReplace());
-                    logger.debug("Checking if the Rule value." + valueTagToReplace);
-                    logger.debug("Checking if the Rule value." + rule.getTagToReplace());
-
-                    if (valueTagToReplace != null) {
-                        // Required to production enviroment. I'm not changing to toTrimmedString until get a stable release.
-                        // complete ported.
-                        valueTagToReplace = valueTagToReplace.trim().replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", "");
-                        description = description + valueTagToReplace + "; ";
-
-                    }
-
-                }
-
-            }
-            StudyDescription = description;
-            descriptions.put(studyUID, StudyDescription);
-
-        }
-
-        String patientIdentifier = "";
-        if (patientID.equals("")) {
-            patientIdentifier = patientName;
-        } else {
-            patientIdentifier = patientID;
-        }
-
-        /**
-         * Verify if Patient already exists
-         */
-        if (this.patientsHash.containsKey(patientIdentifier)) {
-            /**
-             * Patient Already exists, let's check studys
-             */
-            // Real data does not have Patient Id - sometimes.
-            Patient p = this.patientsHash.get(patientIdentifier);
-
-            /**
-             * Add Study It also verify if it exists In the last case Object
-             * will be discarded and the data will be added for the Study that
-             * already exists
-             */
-            Study s = new Study(p, studyUID, studyDate);
-
-            s.setInstitutuionName(InstitutionName);
-            s.setAccessionNumber(AccessionNumber);
-            s.setStudyTime(studyTime);
-            s.setStudyID(studyID);
-            s.setStudyDescription(StudyDescription);
-
-            s.setPatientName(patientName);
-
-            s.setOperatorsName(operatorsName);
-            s.setRequestingPhysician(RequestingPhysician);
-
-            Series series = new Series(s, serieUID, modality);
-            try {
-                if (serieNumber != null) {
-                    series.setSeriesNumber((int) Float.parseFloat(serieNumber));
-                }
-            } catch (Exception ex) {
-                // nothing to do anyway
-            }
-            series.setSeriesDescription(serieDescription);
-            series.setSeriesDescription(serieDescription);
-            series.setProtocolName(ProtocolName);
-            series.setSeriesDate(SeriesDate);
-            series.setBodyPartThickness(BodyPartThickness);
-            series.setViewPosition(ViewPosition);
-            series.setImageLaterality(ImageLaterality);
-            series.setAcquisitionDeviceProcessingDescription(AcquisitionDeviceProcessingDescription);
-            series.setViewCodeSequence_CodeMeaning(ViewCodeSequence_CodeMeaning);
-            series.setViewCodeSequence_CodeValue(ViewCodeSequence_CodeValue);
-            series.setViewCodeSequence_CodingSchemeDesignator(ViewCodeSequence_CodingSchemeDesignator);
-            series.setViewCodeSequence_CodingSchemeVersion(ViewCodeSequence_CodingSchemeVersion);
-
-            series.addImage(uri, sopInstUID, instanceNumber);
-            s.addSerie(series);
-            p.addStudy(s);
-
-        } else {
-            /**
-             * Patient does not exist
-             */
-            Patient p = new Patient(patientID, patientName);
-            p.setPatientSex(patientSex);
-            p.setPatientBirthDate(patientBirthDate);
-
-            /**
-             * Create Study
-             */
-            Study s = new Study(p, studyUID, studyDate);
-            s.setAccessionNumber(AccessionNumber);
-            s.setStudyTime(studyTime);
-            s.setStudyDescription(StudyDescription);
-            s.setStudyID(studyID);
-            s.setInstitutuionName(InstitutionName);
-            s.setPatientName(patientName);
-
-            s.setOperatorsName(operatorsName);
-            s.setRequestingPhysician(RequestingPhysician);
-
-            p.addStudy(s);
-
-            /**
-             * Create Series
-             */
-            Series series = new Series(s, serieUID, modality);
-            if (serieNumber != null && !serieNumber.equals("")) {
-                series.setSeriesNumber((int) Float.parseFloat(serieNumber));
-            }
-            series.setSeriesDescription(serieDescription);
-            series.setProtocolName(ProtocolName);
-
-            series.setSeriesDate(SeriesDate);
-            series.setViewPosition(ViewPosition);
-            series.setImageLaterality(ImageLaterality);
-            series.setAcquisitionDeviceProcessingDescription(AcquisitionDeviceProcessingDescription);
-            series.setViewCodeSequence_CodeMeaning(ViewCodeSequence_CodeMeaning);
-            series.setViewCodeSequence_CodeValue(ViewCodeSequence_CodeValue);
-            series.setViewCodeSequence_CodingSchemeDesignator(ViewCodeSequence_CodingSchemeDesignator);
-            series.setViewCodeSequence_CodingSchemeVersion(ViewCodeSequence_CodingSchemeVersion);
-
-            series.addImage(uri, sopInstUID, instanceNumber);
-            s.addSerie(series);
-            this.patients.add(p);
-            this.patientsHash.put(patientIdentifier, p);
-        }
+    public static DIMGeneric ofPatients(Collection<Patient> patients) {
+        return new DIMGeneric(new ArrayList<>(patients));
     }
 
     /** Obtain the full DIM tree as JSON.
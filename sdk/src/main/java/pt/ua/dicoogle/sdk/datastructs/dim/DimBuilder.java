@@ -0,0 +1,283 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs.dim;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.SearchResultBatch;
+
+/**
+ * Builds the DIM tree (patients, studies, series and instances) from search results, one at a time.
+ *
+ * Each result is placed by looking up its patient, study and series in hash indexes,
+ * creating only the nodes which do not exist yet. Repeated values, such as names, dates,
+ * descriptions and modalities, are interned so that the tree keeps a single instance of each.
+ *
+ * When the results are known to arrive grouped by patient, such as when sorted by patient,
+ * each patient subtree is complete once a result of another patient arrives.
+ * If a listener is given, complete patients are handed over to it as soon as that happens,
+ * and are no longer kept by the builder.
+ *
+ * @see DIMGeneric
+ */
+public class DimBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(DimBuilder.class);
+
+    /** the maximum number of distinct values interned */
+    private static final int INTERN_LIMIT = 65536;
+
+    private final ConcatTags tags;
+    private final Map<String, Patient> patients = new LinkedHashMap<>();
+    private final Map<String, String> strings = new HashMap<>();
+
+    private Consumer<Patient> listener = null;
+    private boolean groupedByPatient = false;
+    private String currentPatient = null;
+    private int patientCount = 0;
+
+    public DimBuilder() {
+        this(null);
+    }
+
+    /**
+     * @param tags the rules to fill in empty study descriptions, may be null
+     */
+    public DimBuilder(ConcatTags tags) {
+        this.tags = tags;
+    }
+
+    /** Hand over each patient to a listener once its subtree is complete, rather than keeping it.
+     *
+     * Unless the results are {@link #groupedByPatient(boolean) grouped by patient},
+     * patients are only complete once {@link #finish()} is called.
+     *
+     * @param listener the listener of complete patients
+     * @return this builder
+     */
+    public DimBuilder onPatientComplete(Consumer<Patient> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /** Declare whether the results are grouped by patient, that is,
+     * all results of a patient are added before any result of the next patient.
+     *
+     * If a patient shows up again after it was handed over, it is handed over again as a new patient.
+     *
+     * @param grouped whether the results are grouped by patient
+     * @return this builder
+     */
+    public DimBuilder groupedByPatient(boolean grouped) {
+        this.groupedByPatient = grouped;
+        return this;
+    }
+
+    /** Add all search results, reading batches by column. */
+    public void addAll(Iterable<? extends SearchResult> results) {
+        if (results instanceof SearchResultBatch) {
+            SearchResultBatch batch = (SearchResultBatch) results;
+            for (int i = 0; i < batch.size(); i++) {
+                final int row = i;
+                add(field -> batch.get(row, field), batch.getURI(row));
+            }
+            return;
+        }
+        for (SearchResult r : results) {
+            add(r);
+        }
+    }
+
+    /** Add a search result. */
+    public void add(SearchResult result) {
+        add(result::get, result.getURI());
+    }
+
+    /** Add an instance.
+     *
+     * @param fields the accessor to the fields of the instance
+     * @param uri the location of the instance
+     */
+    public void add(Function<String, Object> fields, URI uri) {
+        String patientID = value(fields, "PatientID");
+        String patientName = value(fields, "PatientName");
+        String patientIdentifier = patientID.isEmpty() ? patientName : patientID;
+
+        if (groupedByPatient && listener != null && currentPatient != null
+                && !currentPatient.equals(patientIdentifier)) {
+            Patient complete = patients.remove(currentPatient);
+            if (complete != null) {
+                listener.accept(complete);
+            }
+        }
+        currentPatient = patientIdentifier;
+
+        Patient p = patients.get(patientIdentifier);
+        if (p == null) {
+            p = new Patient(patientID, patientName);
+            p.setPatientSex(value(fields, "PatientSex"));
+            p.setPatientBirthDate(value(fields, "PatientBirthDate"));
+            patients.put(patientIdentifier, p);
+            patientCount++;
+        }
+
+        String studyUID = uid(fields, "StudyInstanceUID");
+        String modality = value(fields, "Modality");
+        String studyDescription = studyDescription(fields, modality);
+        Study s = p.getStudy(studyUID);
+        if (s == null) {
+            s = new Study(p, studyUID, value(fields, "StudyDate"));
+            s.setAccessionNumber(value(fields, "AccessionNumber"));
+            s.setStudyTime(nullableValue(fields, "StudyTime"));
+            s.setStudyID(value(fields, "StudyID"));
+            s.setStudyDescription(studyDescription);
+            s.setInstitutuionName(value(fields, "InstitutionName"));
+            s.setPatientName(patientName);
+            s.setOperatorsName(value(fields, "OperatorsName"));
+            s.setRequestingPhysician(value(fields, "RequestingPhysician"));
+            p.addStudy(s);
+        } else {
+            // the description of the last instance of the study prevails
+            s.setStudyDescription(studyDescription);
+        }
+
+        String seriesUID = uid(fields, "SeriesInstanceUID");
+        Series series = s.getSeries(seriesUID);
+        if (series == null) {
+            series = new Series(s, seriesUID, modality);
+            String seriesNumber = nullableValue(fields, "SeriesNumber");
+            if (seriesNumber != null) {
+                try {
+                    series.setSeriesNumber((int) Float.parseFloat(seriesNumber));
+                } catch (NumberFormatException ex) {
+                    // leave it unset
+                }
+            }
+            series.setSeriesDescription(value(fields, "SeriesDescription"));
+            series.setProtocolName(value(fields, "ProtocolName"));
+            series.setSeriesDate(value(fields, "SeriesDate"));
+            series.setBodyPartThickness(nullableValue(fields, "BodyPartThickness"));
+            series.setViewPosition(value(fields, "ViewPosition"));
+            series.setImageLaterality(value(fields, "ImageLaterality"));
+            series.setAcquisitionDeviceProcessingDescription(value(fields, "AcquisitionDeviceProcessingDescription"));
+            series.setViewCodeSequence_CodeMeaning(value(fields, "ViewCodeSequence_CodeMeaning"));
+            series.setViewCodeSequence_CodeValue(value(fields, "ViewCodeSequence_CodeValue"));
+            series.setViewCodeSequence_CodingSchemeDesignator(value(fields, "ViewCodeSequence_CodingSchemeDesignator"));
+            series.setViewCodeSequence_CodingSchemeVersion(value(fields, "ViewCodeSequence_CodingSchemeVersion"));
+            s.addSerie(series);
+        }
+
+        String sopInstanceUID = StringUtils.trimToNull(toString(fields.apply("SOPInstanceUID")));
+        series.addImage(uri, sopInstanceUID != null ? sopInstanceUID : "no uid",
+                nullableValue(fields, "InstanceNumber"));
+    }
+
+    /** The study description, or the concatenation of the tags given by the rules
+     * for the modality if it is empty or meaningless.
+     */
+    private String studyDescription(Function<String, Object> fields, String modality) {
+        String description = value(fields, "StudyDescription");
+        if (tags == null || !(description.isEmpty() || description.toLowerCase().contains("fuji"))) {
+            return description;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ConcatTags.Rule rule : tags.getRules()) {
+            if (modality.equals(rule.getModality())) {
+                String valueTagToReplace = toString(fields.apply(rule.getTagToReplace()));
+                logger.debug("Applying the rule of tag {}: {}", rule.getTagToReplace(), valueTagToReplace);
+                if (valueTagToReplace != null) {
+                    sb.append(valueTagToReplace.trim().replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", "")).append("; ");
+                }
+            }
+        }
+        return intern(sb.toString());
+    }
+
+    /** Hand over the remaining patients to the listener, if any.
+     *
+     * @return the patients kept by the builder, which are all patients if there is no listener
+     */
+    public List<Patient> finish() {
+        List<Patient> remaining = new ArrayList<>(patients.values());
+        if (listener != null) {
+            patients.clear();
+            currentPatient = null;
+            for (Patient p : remaining) {
+                listener.accept(p);
+            }
+            return new ArrayList<>();
+        }
+        return remaining;
+    }
+
+    /** @return the patients kept by the builder, in order of appearance */
+    public ArrayList<Patient> getPatients() {
+        return new ArrayList<>(patients.values());
+    }
+
+    /** @return the number of patients seen so far, including the ones handed over */
+    public int getPatientCount() {
+        return patientCount;
+    }
+
+    private static String toString(Object o) {
+        return o == null ? null : o.toString();
+    }
+
+    /** @return the trimmed value of a field, interned, or an empty string if absent */
+    private String value(Function<String, Object> fields, String name) {
+        return intern(StringUtils.trimToEmpty(toString(fields.apply(name))));
+    }
+
+    /** @return the trimmed value of a field, interned, or null if absent or empty */
+    private String nullableValue(Function<String, Object> fields, String name) {
+        return intern(StringUtils.trimToNull(toString(fields.apply(name))));
+    }
+
+    /** @return the trimmed value of a unique identifier, which is not worth interning */
+    private static String uid(Function<String, Object> fields, String name) {
+        return StringUtils.trimToEmpty(toString(fields.apply(name)));
+    }
+
+    private String intern(String s) {
+        if (s == null || s.isEmpty()) {
+            return s;
+        }
+        String interned = strings.get(s);
+        if (interned != null) {
+            return interned;
+        }
+        if (strings.size() < INTERN_LIMIT) {
+            strings.put(s, s);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs.dim;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+/**
+ * The number of distinct patients, studies, series and instances matching a query.
+ *
+ * @see pt.ua.dicoogle.sdk.CountableQueryInterface
+ */
+public final class DimCounts {
+
+    /** The fields which the results must carry in order to be counted by a {@link Counter}. */
+    public static final Map<String, String> FIELDS;
+    static {
+        Map<String, String> fields = new HashMap<>();
+        for (String f : Arrays.asList("PatientID", "PatientName", "StudyInstanceUID", "SeriesInstanceUID",
+                "SOPInstanceUID")) {
+            fields.put(f, f);
+        }
+        FIELDS = Collections.unmodifiableMap(fields);
+    }
+
+    public static final DimCounts EMPTY = new DimCounts(0, 0, 0, 0);
+
+    private final long patients;
+    private final long studies;
+    private final long series;
+    private final long instances;
+
+    public DimCounts(long patients, long studies, long series, long instances) {
+        this.patients = patients;
+        this.studies = studies;
+        this.series = series;
+        this.instances = instances;
+    }
+
+    public long getPatients() {
+        return patients;
+    }
+
+    public long getStudies() {
+        return studies;
+    }
+
+    public long getSeries() {
+        return series;
+    }
+
+    public long getInstances() {
+        return instances;
+    }
+
+    /** @return the count at the given level */
+    public long get(DimLevel level) {
+        switch (level) {
+            case PATIENT:
+                return patients;
+            case STUDY:
+                return studies;
+            case SERIES:
+                return series;
+            default:
+                return instances;
+        }
+    }
+
+    /** @return the sum of these counts with the given ones, as for results of distinct providers */
+    public DimCounts plus(DimCounts other) {
+        return new DimCounts(patients + other.patients, studies + other.studies, series + other.series,
+                instances + other.instances);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DimCounts)) {
+            return false;
+        }
+        DimCounts other = (DimCounts) o;
+        return patients == other.patients && studies == other.studies && series == other.series
+                && instances == other.instances;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new long[] {patients, studies, series, instances});
+    }
+
+    @Override
+    public String toString() {
+        return "DimCounts{patients=" + patients + ", studies=" + studies + ", series=" + series + ", instances="
+                + instances + '}';
+    }
+
+    /** Count the distinct entities in the results of a query.
+     *
+     * Patients are identified as in {@link DIMGeneric}, by their ID or by their name when they have no ID.
+     * Only the identifiers are kept, so results can be discarded as soon as they are counted.
+     */
+    public static final class Counter {
+        private final Set<String> patients = new HashSet<>();
+        private final Set<String> studies = new HashSet<>();
+        private final Set<String> series = new HashSet<>();
+        private long instances = 0;
+
+        private static String field(SearchResult result, String name) {
+            Object o = result.get(name);
+            return o == null ? "" : o.toString().trim();
+        }
+
+        /** Count one result, holding the {@link #FIELDS} as extra data. */
+        public void add(SearchResult result) {
+            String patient = field(result, "PatientID");
+            patients.add(patient.isEmpty() ? field(result, "PatientName") : patient);
+            studies.add(field(result, "StudyInstanceUID"));
+            series.add(field(result, "SeriesInstanceUID"));
+            instances++;
+        }
+
+        /** Count all results. */
+        public Counter addAll(Iterable<SearchResult> results) {
+            for (SearchResult r : results) {
+                add(r);
+            }
+            return this;
+        }
+
+        public DimCounts toCounts() {
+            return new DimCounts(patients.size(), studies.size(), series.size(), instances);
+        }
+    }
+}
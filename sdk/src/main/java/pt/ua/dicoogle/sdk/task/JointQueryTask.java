@@ -19,8 +19,27 @@
 package pt.ua.dicoogle.sdk.task;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 
@@ -28,53 +47,359 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
  * Advanced task which encompases multiple sub-tasks.
  * 
  * This class helps dicoogle to deal with multiple providers simultaneously.
+ * The results can be obtained all at once with {@link #get()},
+ * or as a stream with {@link #stream(int)}, which delivers the results of
+ * each provider as soon as it finishes.
+ *
+ * {@link #onReceive(Task)} is called once for each provider task as it finishes,
+ * possibly from several threads at the same time, and {@link #onCompletion()} is called
+ * once after all of them, also available as a future with {@link #getCompletion()}.
+ *
+ * Providers which fail, or do not finish within the deadline of the request, are left out
+ * of the results. The outcome of each provider is given by {@link #getProviderStatus()}.
  * 
  * @author Tiago Marques Godinho, tmgodinho@ua.pt
  *
  */
 public abstract class JointQueryTask {
 
-    private boolean cancelled;
-    private int numberOfCompletedTasks;
+    private static final Logger logger = LoggerFactory.getLogger(JointQueryTask.class);
+
+    /** The outcome of the query to a provider. */
+    public enum ProviderStatus {
+        /** the provider did not finish yet */
+        PENDING,
+        /** the provider finished, its results are included */
+        OK,
+        /** the provider ran out of time, its results are missing */
+        TIMEOUT,
+        /** the provider failed, its results are missing */
+        ERROR,
+        /** the provider was cancelled, such as once enough results were obtained */
+        CANCELLED
+    }
 
-    private List<Task<Iterable<SearchResult>>> searchTasks;
+    /** An iterator over the results of all providers, in order of completion of the providers.
+     *
+     * Calls to {@link #hasNext()} block until a provider with results finishes,
+     * or all providers are finished. Closing the stream, or reaching its limit,
+     * cancels the providers which did not finish yet. Once the deadline of the stream passes,
+     * the providers which did not finish yet are cancelled as timed out.
+     */
+    public final class ResultStream implements Iterator<SearchResult>, AutoCloseable {
+        private final int limit;
+        /** the deadline in {@link System#nanoTime()} units, or null if none */
+        private final Long deadline;
+        private int returned = 0;
+        private int received = 0;
+        private Iterator<SearchResult> current = Collections.emptyIterator();
+        private boolean closed = false;
+        private boolean expired = false;
 
-    public JointQueryTask() {
-        this.searchTasks = new ArrayList<>();
-        this.numberOfCompletedTasks = 0;
-        this.cancelled = false;
+        private ResultStream(int limit, Long deadline) {
+            this.limit = limit;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (limit >= 0 && returned >= limit) {
+                close();
+                return false;
+            }
+            while (!current.hasNext()) {
+                if (received >= searchTasks.size()) {
+                    closed = true;
+                    return false;
+                }
+                Task<Iterable<SearchResult>> task;
+                try {
+                    task = nextCompleted();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    return false;
+                }
+                if (task == null) {
+                    expire();
+                    continue;
+                }
+                received += 1;
+                current = resultsOf(task);
+            }
+            return true;
+        }
+
+        @Override
+        public SearchResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            returned += 1;
+            return current.next();
+        }
+
+        /** @return the next provider task to finish, or null if the deadline passed first */
+        private Task<Iterable<SearchResult>> nextCompleted() throws InterruptedException {
+            if (deadline == null || expired) {
+                return completedTasks.take();
+            }
+            return completedTasks.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        /** Cancel the providers which did not finish yet, whose results are then skipped. */
+        private void expire() {
+            expired = true;
+            for (Task<Iterable<SearchResult>> t : searchTasks) {
+                if (t.cancelOnTimeout()) {
+                    logger.warn("Query provider {} did not finish within the deadline of the request", t.getName());
+                }
+            }
+        }
+
+        /** Stop the stream, cancelling the providers which did not finish yet. */
+        @Override
+        public void close() {
+            closed = true;
+            current = Collections.emptyIterator();
+            for (Task<Iterable<SearchResult>> t : searchTasks) {
+                if (!t.isDone()) {
+                    t.cancel(true);
+                }
+            }
+        }
     }
 
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final AtomicInteger numberOfCompletedTasks = new AtomicInteger(0);
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    private final List<Task<Iterable<SearchResult>>> searchTasks = new CopyOnWriteArrayList<>();
+    /** provider tasks in order of completion */
+    private final BlockingQueue<Task<Iterable<SearchResult>>> completedTasks = new LinkedBlockingQueue<>();
+    private final AtomicBoolean streamed = new AtomicBoolean(false);
+
+    public JointQueryTask() {}
+
+    /** Add a provider task to this joint task.
+     * All tasks must be added before any of them is executed.
+     * Use {@link #addTasks(Collection)} to add tasks which may already be finished,
+     * such as tasks answered from a cache.
+     *
+     * @param e the provider task
+     * @return true
+     */
     public boolean addTask(final Task<Iterable<SearchResult>> e) {
-        // Add hook
-        e.onCompletion(new Runnable() {
-            @Override
-            public void run() {
-                numberOfCompletedTasks++;
-                onReceive(e);
-                if (numberOfCompletedTasks == searchTasks.size())
-                    onCompletion();
+        boolean added = searchTasks.add(e);
+        e.onCompletion(() -> onTaskDone(e));
+        return added;
+    }
+
+    /** Add all provider tasks of this joint task at once.
+     * Unlike {@link #addTask(Task)}, some of the tasks may already be finished:
+     * every task is added before any completion is handled,
+     * so that {@link #onCompletion()} is only called once all of them are finished.
+     *
+     * @param tasks the provider tasks
+     * @return true if any task was added
+     */
+    public boolean addTasks(Collection<? extends Task<Iterable<SearchResult>>> tasks) {
+        boolean added = searchTasks.addAll(tasks);
+        for (Task<Iterable<SearchResult>> e : tasks) {
+            e.onCompletion(() -> onTaskDone(e));
+        }
+        return added;
+    }
+
+    /** Called exactly once for each finished provider task, from the thread which finished it. */
+    private void onTaskDone(Task<Iterable<SearchResult>> e) {
+        completedTasks.add(e);
+        try {
+            onReceive(e);
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to handle the results of provider {}", e.getName(), ex);
+        }
+        // counted only after onReceive, so that onCompletion comes after every onReceive
+        if (numberOfCompletedTasks.incrementAndGet() >= searchTasks.size() && completed.compareAndSet(false, true)) {
+            try {
+                onCompletion();
+            } catch (RuntimeException ex) {
+                logger.warn("Failed to complete joint query task", ex);
+            } finally {
+                completion.complete(null);
             }
-        });
+        }
+    }
 
-        return searchTasks.add(e);
+    /** Obtain a future which completes once all provider tasks are finished
+     * and {@link #onCompletion()} has returned.
+     *
+     * @return a future of the completion of this task
+     */
+    public CompletableFuture<Void> getCompletion() {
+        // a dependent future, so that callers cannot complete this task's own
+        return completion.thenApply(Function.identity());
     }
 
     public abstract void onCompletion();
 
     public abstract void onReceive(Task<Iterable<SearchResult>> e);
 
+    /** Wait for all providers and obtain their results.
+     * The results of a provider which failed or was cancelled are skipped.
+     *
+     * @return the results of all providers, in the order in which they were added
+     */
     public Iterable<SearchResult> get() throws InterruptedException, ExecutionException {
         List<SearchResult> list = new ArrayList<>();
 
         for (Task<Iterable<SearchResult>> task : searchTasks) {
-            Iterable<SearchResult> res = task.get();
-            for (SearchResult i : res)
-                list.add(i);
+            try {
+                task.get();
+            } catch (ExecutionException | CancellationException ex) {
+                // skipped below
+            }
+            resultsOf(task).forEachRemaining(list::add);
         }
         return list;
     }
 
+    /** Wait for the providers up to a deadline and obtain their results.
+     * The providers which do not finish in time are cancelled, and their results are skipped,
+     * as are the results of a provider which failed or was cancelled.
+     *
+     * @param timeout the maximum time to wait for all providers
+     * @param unit the unit of the timeout
+     * @return the results of the providers which finished in time, in the order in which they were added
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Iterable<SearchResult> get(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<SearchResult> list = new ArrayList<>();
+
+        for (Task<Iterable<SearchResult>> task : searchTasks) {
+            try {
+                task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                if (task.cancelOnTimeout()) {
+                    logger.warn("Query provider {} did not finish within the deadline of the request", task.getName());
+                }
+            } catch (ExecutionException | CancellationException ex) {
+                // skipped below
+            }
+            resultsOf(task).forEachRemaining(list::add);
+        }
+        return list;
+    }
+
+    /** Obtain the results of all providers as a stream, without limit.
+     *
+     * @return a stream of results, in order of completion of the providers
+     * @see #stream(int)
+     */
+    public ResultStream stream() {
+        return stream(-1);
+    }
+
+    /** Obtain the results of all providers as a stream.
+     *
+     * The results of each provider are delivered as soon as it finishes, regardless of
+     * the order in which the providers were added, so that a slow provider does not
+     * hold back the results of the others. Once <tt>limit</tt> results are delivered,
+     * the providers which did not finish yet are cancelled.
+     * The results of a provider which failed or was cancelled are skipped.
+     *
+     * This method must be called after all provider tasks were added,
+     * and only once per joint task.
+     *
+     * @param limit the maximum number of results to deliver, or a negative number for no limit
+     * @return a stream of results, in order of completion of the providers
+     * @throws IllegalStateException if a stream was already obtained from this task
+     */
+    public ResultStream stream(int limit) {
+        return stream(limit, null);
+    }
+
+    /** Obtain the results of all providers as a stream, up to a deadline.
+     *
+     * Behaves as {@link #stream(int)}, except that once the timeout elapses,
+     * the providers which did not finish yet are cancelled and their results are left out.
+     *
+     * @param limit the maximum number of results to deliver, or a negative number for no limit
+     * @param timeout the maximum time to wait for all providers, from now
+     * @param unit the unit of the timeout
+     * @return a stream of results, in order of completion of the providers
+     * @throws IllegalStateException if a stream was already obtained from this task
+     */
+    public ResultStream stream(int limit, long timeout, TimeUnit unit) {
+        return stream(limit, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private ResultStream stream(int limit, Long deadline) {
+        if (!streamed.compareAndSet(false, true)) {
+            throw new IllegalStateException("The results of this task are already being streamed");
+        }
+        return new ResultStream(limit, deadline);
+    }
+
+    private static Iterator<SearchResult> resultsOf(Task<Iterable<SearchResult>> task) {
+        if (task.isCancelled()) {
+            return Collections.emptyIterator();
+        }
+        try {
+            Iterable<SearchResult> results = task.get();
+            return results == null ? Collections.<SearchResult>emptyIterator() : results.iterator();
+        } catch (ExecutionException | CancellationException ex) {
+            logger.warn("Query provider {} failed, its results are skipped", task.getName(), ex.getCause());
+            return Collections.emptyIterator();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyIterator();
+        }
+    }
+
+    /** Obtain the outcome of the query to each provider.
+     *
+     * @return the status of each provider task, by task name, in the order in which they were added
+     */
+    public Map<String, ProviderStatus> getProviderStatus() {
+        Map<String, ProviderStatus> status = new LinkedHashMap<>();
+        for (Task<Iterable<SearchResult>> task : searchTasks) {
+            status.put(task.getName(), statusOf(task));
+        }
+        return status;
+    }
+
+    /** Obtain the outcome of a provider task, without waiting for it.
+     *
+     * @param task the provider task
+     * @return the status of the task
+     */
+    public static ProviderStatus statusOf(Task<?> task) {
+        if (!task.isDone()) {
+            return ProviderStatus.PENDING;
+        }
+        if (task.isTimedOut()) {
+            return ProviderStatus.TIMEOUT;
+        }
+        if (task.isCancelled()) {
+            return ProviderStatus.CANCELLED;
+        }
+        try {
+            task.get();
+            return ProviderStatus.OK;
+        } catch (ExecutionException ex) {
+            return ProviderStatus.ERROR;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return ProviderStatus.PENDING;
+        }
+    }
+
     public float getProgress() {
         if (isCancelled())
             return -1;
@@ -82,18 +407,19 @@ public abstract class JointQueryTask {
         if (isDone())
             return 1;
 
-        return numberOfCompletedTasks / searchTasks.size();
+        return (float) numberOfCompletedTasks.get() / searchTasks.size();
     }
 
     public boolean isCancelled() {
-        return cancelled;
+        return cancelled.get();
     }
 
     public boolean isDone() {
-        return numberOfCompletedTasks == searchTasks.size();
+        return numberOfCompletedTasks.get() >= searchTasks.size();
     }
 
     public boolean cancel(boolean mayInterruptIfRunning) {
+        cancelled.set(true);
         boolean ret = true;
         for (Task<Iterable<SearchResult>> t : searchTasks) {
             if (!t.isCancelled())
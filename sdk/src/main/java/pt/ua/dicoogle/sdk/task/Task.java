@@ -20,6 +20,7 @@ package pt.ua.dicoogle.sdk.task;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
@@ -39,8 +40,10 @@ public class Task<Type> extends FutureTask<Type> {
     private final String uid;
     private String taskName;
     private Callable<Type> callable;
-    private ArrayList<Runnable> toRunWhenComplete;
+    /** completion hooks, or null once they were run */
+    private List<Runnable> toRunWhenComplete;
     private LocalDateTime timeCreated;
+    private volatile boolean timedOut = false;
 
     /** Create a new task with a randomly generated ID. */
     public Task(Callable<Type> c) {
@@ -66,24 +69,65 @@ public class Task<Type> extends FutureTask<Type> {
      */
     @Override
     protected void done() {
-        for (Runnable r : this.toRunWhenComplete) {
-            try {
-                r.run();
-            } catch (Exception ex) {
-                LOG.warn("Error running task completion hook", ex);
-            }
+        List<Runnable> hooks;
+        synchronized (this) {
+            hooks = this.toRunWhenComplete;
+            this.toRunWhenComplete = null;
+        }
+        for (Runnable r : hooks) {
+            runHook(r);
         }
-        this.toRunWhenComplete.clear();
         this.callable = null;
     }
 
+    private static void runHook(Runnable r) {
+        try {
+            r.run();
+        } catch (Exception ex) {
+            LOG.warn("Error running task completion hook", ex);
+        }
+    }
+
     public String getUid() {
         return uid;
     }
 
-    /** Add a completion hook to this task. */
+    /** Add a completion hook to this task.
+     * If the task is already done, the hook runs immediately in the calling thread.
+     * Each hook runs exactly once.
+     */
     public void onCompletion(Runnable r) {
-        toRunWhenComplete.add(r);
+        synchronized (this) {
+            if (toRunWhenComplete != null) {
+                toRunWhenComplete.add(r);
+                return;
+            }
+        }
+        runHook(r);
+    }
+
+    /** Cancel this task for running out of time, interrupting it if it is running.
+     *
+     * @return whether the task was cancelled, false if it was already done
+     */
+    public boolean cancelOnTimeout() {
+        if (isDone()) {
+            return false;
+        }
+        // set before cancelling, so that completion hooks can see it
+        timedOut = true;
+        if (cancel(true)) {
+            return true;
+        }
+        timedOut = false;
+        return false;
+    }
+
+    /** Checks whether this task was cancelled for running out of time.
+     * @return whether the task was cancelled by {@link #cancelOnTimeout()}
+     */
+    public boolean isTimedOut() {
+        return timedOut && isCancelled();
     }
 
     /** Gets the task's name
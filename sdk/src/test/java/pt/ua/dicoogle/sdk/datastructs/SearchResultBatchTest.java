@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class SearchResultBatchTest {
+
+    private static SearchResult result(int i, String modality) {
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("SOPInstanceUID", "1.2.3." + i);
+        data.put("Modality", new String(modality)); // a distinct instance each time
+        if (i % 2 == 0) {
+            data.put("InstanceNumber", Integer.toString(i));
+        }
+        return new SearchResult(URI.create("file:/" + i + ".dcm"), i, data);
+    }
+
+    private static SearchResultBatch example(int n) {
+        SearchResultBatch batch = new SearchResultBatch();
+        for (int i = 0; i < n; i++) {
+            batch.add(result(i, i % 3 == 0 ? "CT" : "MR"));
+        }
+        return batch;
+    }
+
+    @Test
+    public void testColumns() {
+        SearchResultBatch batch = example(100);
+        assertEquals(100, batch.size());
+        assertEquals(new HashSet<>(Arrays.asList("SOPInstanceUID", "Modality", "InstanceNumber")),
+                new HashSet<>(batch.getFields()));
+        assertEquals(URI.create("file:/7.dcm"), batch.getURI(7));
+        assertEquals(7.0, batch.getScore(7), 0);
+        assertEquals("1.2.3.7", batch.get(7, "SOPInstanceUID"));
+        assertNull(batch.get(7, "InstanceNumber"));
+        assertEquals("8", batch.get(8, "InstanceNumber"));
+        assertNull(batch.get(8, "PatientName"));
+        assertEquals(-1, batch.fieldIndex("PatientName"));
+
+        int modality = batch.fieldIndex("Modality");
+        assertEquals("MR", batch.get(1, modality));
+        // low cardinality values are shared
+        assertSame(batch.get(0, modality), batch.get(3, modality));
+        assertSame(batch.get(1, modality), batch.get(2, modality));
+    }
+
+    @Test
+    public void testViews() {
+        SearchResultBatch batch = example(10);
+        SearchResult r = batch.get(4);
+        assertEquals(URI.create("file:/4.dcm"), r.getURI());
+        assertEquals("1.2.3.4", r.get("SOPInstanceUID"));
+        assertEquals("4", r.<String>getData("InstanceNumber"));
+        assertEquals(result(4, "MR").getExtraData(), r.getExtraData());
+        assertEquals(new HashSet<>(Arrays.asList("SOPInstanceUID", "Modality")),
+                new HashSet<>(batch.get(5).getFieldNames()));
+
+        r.put("PatientName", "A^B");
+        assertEquals("A^B", batch.get(4, "PatientName"));
+        assertNull(batch.get(3, "PatientName"));
+
+        int n = 0;
+        for (SearchResult each : batch) {
+            assertEquals(batch.getURI(n++), each.getURI());
+        }
+        assertEquals(10, n);
+
+        // copying a batch through its views keeps the same content
+        SearchResultBatch copy = SearchResultBatch.of(batch.iterator());
+        assertEquals(batch.size(), copy.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(batch.get(i).getExtraData(), copy.get(i).getExtraData());
+        }
+        assertSame(batch, SearchResultBatch.of(batch));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() {
+        SearchResultBatch batch = example(3);
+        batch.setReadOnly();
+        batch.get(0).put("Modality", "US");
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        SearchResultBatch batch = example(5);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(batch);
+            out.writeObject(batch.get(2));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            SearchResultBatch read = (SearchResultBatch) in.readObject();
+            assertEquals(5, read.size());
+            assertEquals("1.2.3.4", read.get(4, "SOPInstanceUID"));
+            SearchResult row = (SearchResult) in.readObject();
+            assertEquals(SearchResult.class, row.getClass());
+            assertEquals(batch.get(2).getExtraData(), row.getExtraData());
+            // the batch can still grow
+            read.add(result(5, "CT"));
+            assertEquals("CT", read.get(5, "Modality"));
+        }
+    }
+}
@@ -23,12 +23,14 @@ import static org.junit.Assert.*;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.SearchResultBatch;
 import java.util.HashMap;
 
 public class DIMGenericTest {
@@ -57,8 +59,11 @@ public class DIMGenericTest {
     private static final String STUID4 = "1.2.345.777.4";
 
     private static DIMGeneric example() throws Exception {
+        return new DIMGeneric(exampleResults());
+    }
 
-        return new DIMGeneric(new ArrayList<>(Arrays.asList(
+    private static List<SearchResult> exampleResults() {
+        return new ArrayList<>(Arrays.asList(
                 createResult("file:/CR/P001/A1/1", "PatientID", "P001", "PatientName", "Patient^Anonymous",
                         "AccessionNumber", "A1", "StudyInstanceUID", STUID1, "SeriesInstanceUID", STUID1 + ".1",
                         "Modality", "CR", "SOPInstanceUID", STUID1 + ".1.1", "InstanceNumber", "1"),
@@ -73,7 +78,72 @@ public class DIMGenericTest {
                         "Modality", "MG", "SOPInstanceUID", STUID4 + ".1.1", "InstanceNumber", "1"),
                 createResult("file:/MG/P003/C5/2.dcm", "PatientID", "P003", "PatientName", "Patient^Anonymousse",
                         "AccessionNumber", "C5", "StudyInstanceUID", STUID4, "SeriesInstanceUID", STUID4 + ".1",
-                        "Modality", "MG", "SOPInstanceUID", STUID4 + ".1.1", "InstanceNumber", "2"))));
+                        "Modality", "MG", "SOPInstanceUID", STUID4 + ".1.1", "InstanceNumber", "2")));
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        DimCounts counts = new DimCounts.Counter().addAll(exampleResults()).toCounts();
+        assertEquals(new DimCounts(3, 4, 4, 5), counts);
+        assertEquals(3, counts.get(DimLevel.PATIENT));
+        assertEquals(example().getPatients().size(), counts.getPatients());
+        assertEquals(new DimCounts(6, 8, 8, 10), counts.plus(counts));
+    }
+
+    @Test
+    public void testDimFromBatch() throws Exception {
+        DIMGeneric dim = new DIMGeneric(SearchResultBatch.of(exampleResults()));
+        assertEquals(example().getJSON(), dim.getJSON());
+    }
+
+    @Test
+    public void testBuilderEmitsCompletePatients() throws Exception {
+        List<Patient> complete = new ArrayList<>();
+        DimBuilder builder = new DimBuilder().groupedByPatient(true).onPatientComplete(complete::add);
+        List<SearchResult> results = exampleResults();
+
+        builder.add(results.get(0));
+        builder.add(results.get(1));
+        assertTrue(complete.isEmpty());
+        assertEquals(1, builder.getPatients().size());
+
+        // the first patient is complete once the second one shows up
+        builder.add(results.get(2));
+        assertEquals(1, complete.size());
+        assertEquals("P001", complete.get(0).getPatientID());
+        assertEquals(2, complete.get(0).getStudies().size());
+        assertEquals(1, builder.getPatients().size());
+
+        builder.add(results.get(3));
+        builder.add(results.get(4));
+        assertTrue(builder.finish().isEmpty());
+        assertEquals(3, complete.size());
+        assertEquals(3, builder.getPatientCount());
+        assertTrue(builder.getPatients().isEmpty());
+
+        // the same tree as when built at once
+        assertEquals(example().getJSON(), DIMGeneric.ofPatients(complete).getJSON());
+    }
+
+    @Test
+    public void testBuilderSharesValues() throws Exception {
+        List<SearchResult> results = exampleResults();
+        results.add(createResult("file:/CR/P002/B3/1", "PatientID", "P002", "PatientName", "Patient^Anonymouse",
+                "AccessionNumber", "B3", "StudyInstanceUID", STUID3 + "0", "SeriesInstanceUID", STUID3 + "0.1",
+                "Modality", new String("CR "), "SOPInstanceUID", STUID3 + "0.1.1", "InstanceNumber", "1"));
+        DimBuilder builder = new DimBuilder();
+        builder.addAll(results);
+        List<Patient> patients = builder.finish();
+
+        Patient p2 = patients.get(1);
+        assertEquals(2, p2.getStudies().size());
+        Series s1 = p2.getStudies().get(0).getSeries().get(0);
+        Series s2 = p2.getStudies().get(1).getSeries().get(0);
+        assertEquals("CR", s2.getModality());
+        assertSame(s1.getModality(), s2.getModality());
+        assertSame(s1.getInstanceNumberList().get(0), s2.getInstanceNumberList().get(0));
+        // series belong to the study they were found in
+        assertSame(p2.getStudies().get(1), s2.getParent());
     }
 
     @Test
@@ -0,0 +1,244 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.task;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class JointQueryTaskTest {
+
+    private static final int PROVIDERS = 500;
+    private static final int RESULTS_PER_PROVIDER = 10;
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(64);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private static class CountingTask extends JointQueryTask {
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger completions = new AtomicInteger();
+        volatile int receivedAtCompletion = -1;
+
+        @Override
+        public void onCompletion() {
+            receivedAtCompletion = received.get();
+            completions.incrementAndGet();
+        }
+
+        @Override
+        public void onReceive(Task<Iterable<SearchResult>> e) {
+            received.incrementAndGet();
+        }
+    }
+
+    private static Task<Iterable<SearchResult>> provider(int id, CountDownLatch gate) {
+        return new Task<>("provider-" + id, () -> {
+            if (gate != null) {
+                gate.await();
+            }
+            List<SearchResult> results = new ArrayList<>(RESULTS_PER_PROVIDER);
+            for (int i = 0; i < RESULTS_PER_PROVIDER; i++) {
+                results.add(new SearchResult(URI.create("file:/p" + id + "/" + i + ".dcm"), 1, null));
+            }
+            return results;
+        });
+    }
+
+    @Test
+    public void testConcurrentCompletion() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            CountingTask joint = new CountingTask();
+            List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+            for (int i = 0; i < PROVIDERS; i++) {
+                Task<Iterable<SearchResult>> t = provider(i, null);
+                tasks.add(t);
+                joint.addTask(t);
+            }
+            for (Task<?> t : tasks) {
+                pool.execute(t);
+            }
+
+            joint.getCompletion().get(30, TimeUnit.SECONDS);
+            assertEquals(1, joint.completions.get());
+            assertEquals(PROVIDERS, joint.received.get());
+            assertEquals(PROVIDERS, joint.receivedAtCompletion);
+            assertTrue(joint.isDone());
+            assertEquals(1f, joint.getProgress(), 0f);
+
+            int count = 0;
+            for (JointQueryTask.ResultStream it = joint.stream(); it.hasNext(); it.next()) {
+                count++;
+            }
+            assertEquals(PROVIDERS * RESULTS_PER_PROVIDER, count);
+        }
+    }
+
+    @Test
+    public void testHookAfterCompletion() throws Exception {
+        Task<Iterable<SearchResult>> t = provider(0, null);
+        t.run();
+        CountingTask joint = new CountingTask();
+        // the task is already done, so the hook must run right away
+        joint.addTask(t);
+        joint.getCompletion().get(1, TimeUnit.SECONDS);
+        assertEquals(1, joint.completions.get());
+        assertEquals(1, joint.received.get());
+    }
+
+    @Test
+    public void testStreamLimitCancelsProviders() throws Exception {
+        CountingTask joint = new CountingTask();
+        CountDownLatch gate = new CountDownLatch(1);
+        List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+        // one fast provider, and many which never finish by themselves
+        tasks.add(provider(0, null));
+        for (int i = 1; i < PROVIDERS; i++) {
+            tasks.add(provider(i, gate));
+        }
+        for (Task<Iterable<SearchResult>> t : tasks) {
+            joint.addTask(t);
+        }
+        for (Task<?> t : tasks) {
+            pool.execute(t);
+        }
+
+        int count = 0;
+        try (JointQueryTask.ResultStream it = joint.stream(5)) {
+            while (it.hasNext()) {
+                assertEquals("file:/p0/" + count + ".dcm", it.next().getURI().toString());
+                count++;
+            }
+        }
+        assertEquals(5, count);
+        for (int i = 1; i < PROVIDERS; i++) {
+            assertTrue(tasks.get(i).isCancelled());
+        }
+        joint.getCompletion().get(30, TimeUnit.SECONDS);
+        assertEquals(1, joint.completions.get());
+    }
+
+    @Test
+    public void testDeadlineGivesPartialResults() throws Exception {
+        CountingTask joint = new CountingTask();
+        CountDownLatch gate = new CountDownLatch(1);
+        List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+        tasks.add(provider(0, null));
+        tasks.add(provider(1, gate));
+        tasks.add(new Task<>("provider-2", () -> {
+            throw new IllegalStateException("broken provider");
+        }));
+        for (Task<Iterable<SearchResult>> t : tasks) {
+            joint.addTask(t);
+        }
+        for (Task<?> t : tasks) {
+            pool.execute(t);
+        }
+
+        int count = 0;
+        try (JointQueryTask.ResultStream it = joint.stream(-1, 200, TimeUnit.MILLISECONDS)) {
+            while (it.hasNext()) {
+                assertTrue(it.next().getURI().toString().startsWith("file:/p0/"));
+                count++;
+            }
+        }
+        assertEquals(RESULTS_PER_PROVIDER, count);
+        assertTrue(tasks.get(1).isTimedOut());
+        assertFalse(tasks.get(0).isTimedOut());
+
+        Map<String, JointQueryTask.ProviderStatus> status = joint.getProviderStatus();
+        assertEquals(JointQueryTask.ProviderStatus.OK, status.get("provider-0"));
+        assertEquals(JointQueryTask.ProviderStatus.TIMEOUT, status.get("provider-1"));
+        assertEquals(JointQueryTask.ProviderStatus.ERROR, status.get("provider-2"));
+        joint.getCompletion().get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testGetWithDeadline() throws Exception {
+        CountingTask joint = new CountingTask();
+        CountDownLatch gate = new CountDownLatch(1);
+        Task<Iterable<SearchResult>> slow = provider(1, gate);
+        Task<Iterable<SearchResult>> fast = provider(0, null);
+        joint.addTask(slow);
+        joint.addTask(fast);
+        pool.execute(slow);
+        pool.execute(fast);
+
+        int count = 0;
+        for (SearchResult r : joint.get(200, TimeUnit.MILLISECONDS)) {
+            assertTrue(r.getURI().toString().startsWith("file:/p0/"));
+            count++;
+        }
+        assertEquals(RESULTS_PER_PROVIDER, count);
+        assertTrue(slow.isTimedOut());
+    }
+
+    @Test
+    public void testCachedAndSlowProvider() throws Exception {
+        CountingTask joint = new CountingTask();
+        CountDownLatch gate = new CountDownLatch(1);
+        // a provider answered from a cache is already finished when added
+        Task<Iterable<SearchResult>> cached = provider(0, null);
+        cached.run();
+        Task<Iterable<SearchResult>> slow = provider(1, gate);
+        List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+        tasks.add(cached);
+        tasks.add(slow);
+        joint.addTasks(tasks);
+        pool.execute(slow);
+
+        assertEquals(1, joint.received.get());
+        assertEquals(0, joint.completions.get());
+        assertFalse(joint.isDone());
+        assertFalse(joint.getCompletion().isDone());
+
+        gate.countDown();
+        joint.getCompletion().get(5, TimeUnit.SECONDS);
+        assertEquals(1, joint.completions.get());
+        assertEquals(2, joint.receivedAtCompletion);
+
+        int count = 0;
+        for (JointQueryTask.ResultStream it = joint.stream(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(2 * RESULTS_PER_PROVIDER, count);
+    }
+}